@@ -0,0 +1,92 @@
+package dev.espi.ebackup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Archives the whole synthetic server tree, by format, compression level and thread count.
+ * The archive is discarded, so this is reading and compression without disk writes.
+ *
+ * Level applies to zip and tar.zst, tar.lz4 has no levels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ArchiveBenchmark {
+
+    @Param({"zip", "tar.zst", "tar.lz4"})
+    public String format;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"16"})
+    public int regionFiles;
+
+    private ServerTree tree;
+    private IgnoreMatcher ignore;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tree = ServerTree.create(regionFiles, 4, 2000, 12);
+        ignore = new IgnoreMatcher(ServerTree.IGNORE_RULES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.delete();
+    }
+
+    @Benchmark
+    public long archive() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ArchiveWriter archive = format.equals("zip")
+                ? new ParallelZipWriter(out, new CompressionPolicy(level), threads, false)
+                : new TarArchiveWriter(out, format, level, threads, false);
+        try (ArchiveWriter a = archive) {
+            BackupUtil.zipFile(tree.root, "", a, ignore, null, null, null, false, ServerTree.SILENT);
+        }
+        return out.count;
+    }
+
+    // discards the archive, keeping its size
+    static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package dev.espi.ebackup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Retention decisions over a catalog of many backups, with the limit above the number of backups so
+ * nothing is deleted and every run decides over the same backups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RetentionBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int backups;
+
+    private File dir;
+    private BackupCatalog catalog;
+    private RetentionPolicy policy;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("ebackup-bench").toFile();
+        long time = System.currentTimeMillis() - backups * 60_000L;
+        for (int i = 0; i < backups; i++) {
+            // a full backup followed by four incrementals
+            File f = new File(dir, "backup-" + i + (i % 5 == 0 ? "" : BackupCatalog.INCREMENTAL_SUFFIX) + ".zip");
+            f.createNewFile();
+            f.setLastModified(time + i * 60_000L);
+        }
+        catalog = BackupCatalog.load(dir);
+        policy = new RetentionPolicy(backups + 1, 24, 7, 4, 12);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        WorldSnapshot.delete(dir);
+    }
+
+    @Benchmark
+    public void scan() throws IOException {
+        BackupUtil.checkMaxBackups(catalog, policy, false, ServerTree.SILENT);
+    }
+}
@@ -0,0 +1,124 @@
+package dev.espi.ebackup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Synthetic server folder for the benchmarks: a world with large region files, many small plugin
+ * files and a deep folder chain. Contents come from a fixed seed, so every run archives the same data.
+ *
+ * Region files are mostly incompressible like real ones (chunks are stored zlib compressed), with
+ * zero padding at the end of each sector; plugin files are repetitive yml text.
+ */
+public class ServerTree {
+
+    // ignore rules like the ones servers use, plain paths and globs
+    static final List<String> IGNORE_RULES = Arrays.asList(
+            "logs", "cache", "crash-reports", "plugins/dynmap/web/tiles",
+            "plugins/*/logs", "**/*.tmp", "world/session.lock", "plugins/CoreProtect/database.db");
+
+    // logger that drops everything, the benchmarks must not measure console output
+    static final Logger SILENT = Logger.getLogger("eBackup-benchmark");
+
+    static {
+        SILENT.setUseParentHandlers(false);
+        SILENT.setLevel(Level.OFF);
+    }
+
+    private static final int SECTOR = 4096;
+
+    public final File root;
+    // paths of everything in the tree relative to root, for matching benchmarks
+    public final List<String> paths = new ArrayList<>();
+    private final Random random = new Random(42);
+
+    private ServerTree(File root) {
+        this.root = root;
+    }
+
+    /**
+     * Creates the tree in a new temporary folder, remove it with {@link #delete()}.
+     */
+    public static ServerTree create(int regionFiles, int regionSizeMb, int pluginFiles, int depth) throws IOException {
+        ServerTree tree = new ServerTree(Files.createTempDirectory("ebackup-bench").toFile());
+        for (int i = 0; i < regionFiles; i++) {
+            tree.region("world/region/r." + (i % 8 - 4) + "." + (i / 8 - 4) + ".mca", regionSizeMb);
+        }
+        for (int i = 0; i < pluginFiles; i++) {
+            tree.text("plugins/plugin" + (i % 40) + "/data/file" + i + ".yml", 200 + tree.random.nextInt(4000));
+        }
+        StringBuilder deep = new StringBuilder("plugins/deep");
+        for (int i = 0; i < depth; i++) {
+            deep.append("/level").append(i);
+            tree.text(deep + "/config.yml", 500);
+        }
+        // ignored by the rules above
+        for (int i = 0; i < 100; i++) {
+            tree.text("logs/" + i + ".log", 2000);
+            tree.text("plugins/dynmap/web/tiles/" + (i % 10) + "/" + i + ".png", 2000);
+        }
+        return tree;
+    }
+
+    private void region(String path, int sizeMb) throws IOException {
+        byte[] sector = new byte[SECTOR];
+        try (OutputStream out = open(path)) {
+            for (long written = 0; written < (long) sizeMb * 1024 * 1024; written += SECTOR) {
+                Arrays.fill(sector, (byte) 0);
+                byte[] data = new byte[SECTOR * 3 / 4];
+                random.nextBytes(data);
+                System.arraycopy(data, 0, sector, 0, data.length);
+                out.write(sector);
+            }
+        }
+    }
+
+    private void text(String path, int size) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("player-").append(random.nextInt(1000)).append(":\n  balance: ").append(random.nextInt(100000))
+                    .append("\n  home: world,").append(random.nextInt(10000)).append(",64,").append(random.nextInt(10000)).append('\n');
+        }
+        try (OutputStream out = open(path)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private OutputStream open(String path) throws IOException {
+        File f = new File(root, path);
+        f.getParentFile().mkdirs();
+        paths.add(path);
+        return new FileOutputStream(f);
+    }
+
+    public void delete() throws IOException {
+        WorldSnapshot.delete(root);
+    }
+}
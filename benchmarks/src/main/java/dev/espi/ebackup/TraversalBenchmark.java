@@ -0,0 +1,100 @@
+package dev.espi.ebackup;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Cost of walking the server folder and of the ignore rules, without reading file contents.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TraversalBenchmark {
+
+    // extra rules on top of ServerTree.IGNORE_RULES, half plain paths and half globs
+    @Param({"0", "50", "500"})
+    public int extraRules;
+
+    private ServerTree tree;
+    private IgnoreMatcher ignore;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tree = ServerTree.create(4, 1, 20000, 30);
+        List<String> rules = new ArrayList<>(ServerTree.IGNORE_RULES);
+        for (int i = 0; i < extraRules; i++) {
+            rules.add(i % 2 == 0 ? "plugins/other" + i + "/data" : "plugins/other" + i + "/**/*.dat");
+        }
+        ignore = new IgnoreMatcher(rules);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.delete();
+    }
+
+    // the backup walk with an archive that only counts entries
+    @Benchmark
+    public int walk() throws IOException {
+        CountingArchive archive = new CountingArchive();
+        BackupUtil.zipFile(tree.root, "", archive, ignore, null, null, null, false, ServerTree.SILENT);
+        return archive.entries;
+    }
+
+    // matching alone, over every path in the tree
+    @Benchmark
+    public void match(Blackhole bh) {
+        for (String path : tree.paths) {
+            bh.consume(ignore.isIgnored(path));
+        }
+    }
+
+    static class CountingArchive implements ArchiveWriter {
+        int entries = 0;
+
+        @Override
+        public void putDirectory(String name, long time) {
+            entries++;
+        }
+
+        @Override
+        public void putFile(String name, File file) {
+            entries++;
+        }
+
+        @Override
+        public void putBytes(String name, byte[] data, long time) {
+            entries++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
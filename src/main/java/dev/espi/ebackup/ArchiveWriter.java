@@ -0,0 +1,57 @@
+package dev.espi.ebackup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Destination of a backup, entries are added in order and the backup is complete once closed.
+ *
+ * An {@link IOException} from {@link #putFile(String, File)} means the file could not be read and the
+ * backup continues without it; failures writing the backup itself are thrown unchecked.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Thrown by {@link #putFile(String, File)} when a file could only be read in part (a read error or it shrank
+     * while it was read). Unlike other read errors its entry is in the archive, cut short.
+     */
+    class TruncatedEntryException extends IOException {
+        public TruncatedEntryException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    void putDirectory(String name, long time) throws IOException;
+
+    void putFile(String name, File file) throws IOException;
+
+    void putBytes(String name, byte[] data, long time) throws IOException;
+
+    /**
+     * Content hashes of the files written, by entry name (see {@link BackupManifest#contentHash(java.io.InputStream)}).
+     * Complete once the archive is closed, empty if the writer doesn't hash content.
+     */
+    default Map<String, String> getContentHashes() {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,353 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Every backup eBackup knows of, local and uploaded, in the order they were made.
+ *
+ * Stored as a tab separated text file in the backup folder and updated as backups are made, uploaded and
+ * deleted, so retention and /ebackup list never list folders or remote servers. The backup folder is only
+ * scanned on load, to pick up backups from before the catalog and files that were removed by hand.
+ * Uploads from before the catalog are not known.
+ */
+public class BackupCatalog {
+
+    static final String FILE_NAME = "catalog.tsv";
+    private static final String HEADER = "# eBackup catalog v4";
+    // columns per version, older catalogs are upgraded when saved
+    private static final String[] HEADERS = {"# eBackup catalog v1", "# eBackup catalog v2", "# eBackup catalog v3", HEADER};
+    private static final int[] COLUMNS = {7, 8, 9, 10};
+
+    static final String FULL = "full", INCREMENTAL = "incremental", SNAPSHOT = "snapshot";
+
+    // file extensions of the archive formats, and of backup sets (see BackupSet)
+    static final String[] ARCHIVE_EXTENSIONS = {".zip", "." + TarArchiveWriter.ZSTD, "." + TarArchiveWriter.LZ4, BackupSet.EXTENSION};
+    // incremental backups are named "<backup-format>.incr.<extension>"
+    static final String INCREMENTAL_SUFFIX = ".incr";
+    // entry in incremental backups listing the files deleted since the previous backup
+    static final String DELETED_ENTRY = ".ebackup-deleted";
+    // folder in the backup path used by the repository format
+    static final String REPOSITORY_DIR = "repository";
+
+    // extension of a backup archive, null if the file isn't one
+    static String archiveExtension(String name) {
+        for (String extension : ARCHIVE_EXTENSIONS) {
+            if (name.endsWith(extension)) return extension;
+        }
+        return null;
+    }
+
+    static boolean isIncremental(File f) {
+        String extension = archiveExtension(f.getName());
+        return extension != null && f.getName().endsWith(INCREMENTAL_SUFFIX + extension);
+    }
+
+    static class Backup {
+        // file name in the backup folder (and on the server), the snapshot name for the repository format
+        final String name;
+        final long created;
+        final long size;
+        final String type;
+        // full backup an incremental is based on, null otherwise
+        String base;
+        // SHA-256 of the archive, null if unknown
+        final String checksum;
+        boolean local, remote;
+        // the uploaded copy is encrypted (see BackupCrypto), its files have the .enc extension
+        boolean encrypted;
+        // result of the last verification of each copy (see BackupVerifier), null if not verified
+        String verifiedLocal, verifiedRemote;
+        // archives of a backup set next to the set file, null for a single archive
+        List<String> parts;
+        // files that were uploaded as a delta (see DeltaTransfer), with the file they are a delta of; null if none
+        Map<String, String> deltas;
+
+        Backup(String name, long created, long size, String type, String base, String checksum, boolean local, boolean remote) {
+            this.name = name;
+            this.created = created;
+            this.size = size;
+            this.type = type;
+            this.base = base;
+            this.checksum = checksum;
+            this.local = local;
+            this.remote = remote;
+        }
+
+        boolean isIncremental() {
+            return type.equals(INCREMENTAL);
+        }
+
+        boolean isSet() {
+            return parts != null;
+        }
+    }
+
+    private final File dir, file;
+    // oldest to newest, backups made in the same millisecond stay in the order they were added
+    private final List<Backup> backups = new ArrayList<>();
+
+    private BackupCatalog(File dir) {
+        this.dir = dir;
+        this.file = new File(dir, FILE_NAME);
+    }
+
+    /**
+     * Loads the catalog of the backup folder and brings it up to date with the files in it.
+     */
+    public static BackupCatalog load(File dir) throws IOException {
+        BackupCatalog c = new BackupCatalog(dir);
+        if (c.file.exists()) {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(c.file), StandardCharsets.UTF_8))) {
+                String line = r.readLine();
+                int version = line == null ? -1 : Arrays.asList(HEADERS).indexOf(line);
+                if (version < 0) throw new IOException("Not an eBackup catalog: " + c.file);
+                int columns = COLUMNS[version];
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("#") || line.isEmpty()) continue;
+
+                    // created, size, type, base, checksum, location (",encrypted" for encrypted uploads), verified (since v2), parts (since v3), deltas (since v4),
+                    // name (name last so it may contain tabs)
+                    String[] parts = line.split("\t", columns);
+                    if (parts.length != columns) throw new IOException("Corrupt catalog line in " + c.file + ": " + line);
+                    Backup b = new Backup(parts[columns - 1], Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2],
+                            parts[3].equals("-") ? null : parts[3], parts[4].equals("-") ? null : parts[4],
+                            parts[5].contains("local"), parts[5].contains("remote"));
+                    b.encrypted = parts[5].contains("encrypted");
+                    if (columns >= 8) {
+                        // "local=<status>,remote=<status>"
+                        for (String v : parts[6].split(",")) {
+                            if (v.startsWith("local=")) b.verifiedLocal = v.substring(6);
+                            if (v.startsWith("remote=")) b.verifiedRemote = v.substring(7);
+                        }
+                    }
+                    // file names can't contain slashes
+                    if (columns >= 9 && !parts[7].equals("-")) b.parts = Arrays.asList(parts[7].split("/"));
+                    // "<file>/<base>/<file>/<base>..."
+                    if (columns >= 10 && !parts[8].equals("-")) {
+                        String[] deltas = parts[8].split("/");
+                        b.deltas = new LinkedHashMap<>();
+                        for (int i = 0; i + 1 < deltas.length; i += 2) b.deltas.put(deltas[i], deltas[i + 1]);
+                    }
+                    c.backups.add(b);
+                }
+            }
+        }
+        if (c.sync()) c.save();
+        return c;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    // adds backups that are in the folder but not in the catalog, and forgets local copies that are gone
+    private boolean sync() {
+        boolean changed = false;
+        Set<String> known = new HashSet<>();
+        for (Iterator<Backup> it = backups.iterator(); it.hasNext(); ) {
+            Backup b = it.next();
+            known.add(b.name);
+            if (b.local && !(b.type.equals(SNAPSHOT) ? snapshotFile(b.name) : new File(dir, b.name)).exists()) {
+                b.local = false;
+                changed = true;
+                if (!b.remote) it.remove();
+            }
+        }
+
+        List<Backup> found = new ArrayList<>();
+        File[] files = dir.listFiles();
+        List<File> archives = new ArrayList<>();
+        Set<String> parts = new HashSet<>();
+        for (Backup b : backups) {
+            if (b.isSet()) parts.addAll(b.parts);
+        }
+        if (files != null) {
+            for (File f : files) {
+                if (archiveExtension(f.getName()) != null && !known.contains(f.getName())) archives.add(f);
+            }
+        }
+        for (File f : archives) {
+            if (!f.getName().endsWith(BackupSet.EXTENSION)) continue;
+            Backup b = new Backup(f.getName(), f.lastModified(), f.length(), isIncremental(f) ? INCREMENTAL : FULL, null, null, true, false);
+            try {
+                BackupSet set = BackupSet.load(f);
+                b = new Backup(f.getName(), f.lastModified(), set.size(), b.type, null, null, true, false);
+                b.parts = set.names();
+                parts.addAll(b.parts);
+            } catch (IOException ignored) {
+                // listed without its parts, they show up on their own below
+            }
+            found.add(b);
+        }
+        for (File f : archives) {
+            if (f.getName().endsWith(BackupSet.EXTENSION) || parts.contains(f.getName())) continue;
+            found.add(new Backup(f.getName(), f.lastModified(), f.length(), isIncremental(f) ? INCREMENTAL : FULL, null, null, true, false));
+        }
+        for (File f : new ChunkRepository(new File(dir, REPOSITORY_DIR)).listSnapshots()) {
+            String name = f.getName().substring(0, f.getName().length() - ChunkRepository.SNAPSHOT_EXTENSION.length());
+            if (!known.contains(name)) found.add(new Backup(name, f.lastModified(), f.length(), SNAPSHOT, null, null, true, false));
+        }
+
+        if (!found.isEmpty()) {
+            backups.addAll(found);
+            backups.sort(Comparator.comparingLong(b -> b.created)); // stable, keeps the order of equal times
+            changed = true;
+
+            // found incrementals belong to the full backup before them
+            String base = null;
+            for (Backup b : backups) {
+                if (b.type.equals(FULL)) base = b.name;
+                if (b.isIncremental() && b.base == null) b.base = base;
+            }
+        }
+        return changed;
+    }
+
+    // the files of a backup in the backup folder, the set file last
+    List<File> files(Backup b) {
+        List<File> files = new ArrayList<>();
+        if (b.type.equals(SNAPSHOT)) {
+            files.add(snapshotFile(b.name));
+            return files;
+        }
+        if (b.isSet()) {
+            for (String part : b.parts) files.add(new File(dir, part));
+        }
+        files.add(new File(dir, b.name));
+        return files;
+    }
+
+    File snapshotFile(String name) {
+        return new File(new File(new File(dir, REPOSITORY_DIR), "snapshots"), name + ChunkRepository.SNAPSHOT_EXTENSION);
+    }
+
+    public synchronized void add(Backup b) throws IOException {
+        backups.add(b);
+        save();
+    }
+
+    public synchronized Backup get(String name) {
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            if (backups.get(i).name.equals(name)) return backups.get(i);
+        }
+        return null;
+    }
+
+    // all backups, oldest to newest
+    public synchronized List<Backup> list() {
+        return new ArrayList<>(backups);
+    }
+
+    // backups with a copy in the backup folder, oldest to newest
+    public synchronized List<Backup> local() {
+        List<Backup> list = new ArrayList<>();
+        for (Backup b : backups) {
+            if (b.local) list.add(b);
+        }
+        return list;
+    }
+
+    // backups with a copy on the FTP/SFTP server, oldest to newest
+    public synchronized List<Backup> remote() {
+        List<Backup> list = new ArrayList<>();
+        for (Backup b : backups) {
+            if (b.remote) list.add(b);
+        }
+        return list;
+    }
+
+    // records where copies of a backup are, a backup without copies is dropped; call save() afterwards
+    public synchronized void setLocation(Backup b, boolean local, boolean remote) {
+        b.local = local;
+        b.remote = remote;
+        if (!local) b.verifiedLocal = null;
+        if (!remote) {
+            b.verifiedRemote = null;
+            b.deltas = null;
+            b.encrypted = false;
+        }
+        if (!local && !remote) backups.remove(b);
+    }
+
+    // records the result of verifying a copy of a backup; call save() afterwards
+    public synchronized void setVerified(Backup b, boolean remote, String status) {
+        if (remote) {
+            b.verifiedRemote = status;
+        } else {
+            b.verifiedLocal = status;
+        }
+    }
+
+    // the backup set a file is a part of, null if it isn't one
+    public synchronized Backup setOf(String part) {
+        for (Backup b : backups) {
+            if (b.isSet() && b.parts.contains(part)) return b;
+        }
+        return null;
+    }
+
+    // the backup a file in the backup folder belongs to, null if none
+    public synchronized Backup owner(String file) {
+        Backup b = get(file);
+        return b != null ? b : setOf(file);
+    }
+
+    // the full backup an incremental of the manifest builds on, by name without extension
+    public synchronized Backup findFull(String name) {
+        for (int i = backups.size() - 1; i >= 0; i--) {
+            Backup b = backups.get(i);
+            String extension = archiveExtension(b.name);
+            if (b.type.equals(FULL) && extension != null && b.name.equals(name + extension)) return b;
+        }
+        return null;
+    }
+
+    // write to a temporary file first, so a crash never leaves a half written catalog behind
+    public synchronized void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            w.write(HEADER + "\n");
+            for (Backup b : backups) {
+                String location = (b.local && b.remote ? "local,remote" : b.local ? "local" : "remote") + (b.remote && b.encrypted ? ",encrypted" : "");
+                String verified = b.verifiedLocal == null && b.verifiedRemote == null ? "-"
+                        : (b.verifiedLocal == null ? "" : "local=" + b.verifiedLocal) + (b.verifiedLocal != null && b.verifiedRemote != null ? "," : "")
+                        + (b.verifiedRemote == null ? "" : "remote=" + b.verifiedRemote);
+                w.write(b.created + "\t" + b.size + "\t" + b.type + "\t" + (b.base == null ? "-" : b.base) + "\t"
+                        + (b.checksum == null ? "-" : b.checksum) + "\t" + location + "\t" + verified + "\t"
+                        + (b.isSet() ? String.join("/", b.parts) : "-") + "\t" + deltas(b) + "\t" + b.name + "\n");
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String deltas(Backup b) {
+        if (b.deltas == null || b.deltas.isEmpty()) return "-";
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : b.deltas.entrySet()) {
+            if (sb.length() > 0) sb.append('/');
+            sb.append(e.getKey()).append('/').append(e.getValue());
+        }
+        return sb.toString();
+    }
+}
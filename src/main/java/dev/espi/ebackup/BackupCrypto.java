@@ -0,0 +1,401 @@
+package dev.espi.ebackup;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Encrypts uploads with AES-256-GCM, in fixed-size chunks so they can be encrypted on several threads and
+ * any part of the encrypted file can be produced on its own (for uploads in pieces, see {@link SegmentedUpload}).
+ *
+ * File format: a header (magic, version, key derivation, iterations, salt, chunk size), then every chunk of
+ * {@value #CHUNK_SIZE} bytes followed by its 16 byte tag. The last chunk is shorter than the others (possibly
+ * empty) and marked as last in its authenticated data, so a file that was cut off doesn't decrypt. Every file
+ * gets its own key derived from the passphrase or key file and a random salt, the nonce is the chunk index.
+ *
+ * Also runs without the server, to decrypt a downloaded backup before restoring it:
+ * java -cp eBackup.jar dev.espi.ebackup.BackupCrypto (--key-file &lt;file&gt; | --passphrase &lt;passphrase&gt;) &lt;file.enc&gt; [output]
+ */
+public class BackupCrypto {
+
+    static final String EXTENSION = ".enc";
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int HEADER_SIZE = 34;
+
+    private static final byte[] MAGIC = "eBackupE".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final byte PASSPHRASE = 1, KEY_FILE = 2;
+    private static final int ITERATIONS = 200_000, SALT_SIZE = 16, TAG_SIZE = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // size of the encrypted form of a file
+    static long encryptedSize(long size) {
+        return HEADER_SIZE + size + (size / CHUNK_SIZE + 1) * TAG_SIZE;
+    }
+
+    /**
+     * The secret from the config, a passphrase or the contents of a key file.
+     */
+    public static class Key {
+        private final char[] passphrase;
+        private final byte[] keyFile;
+
+        private Key(char[] passphrase, byte[] keyFile) {
+            this.passphrase = passphrase;
+            this.keyFile = keyFile;
+        }
+
+        public static Key passphrase(String passphrase) {
+            return new Key(passphrase.toCharArray(), null);
+        }
+
+        public static Key file(File f) throws IOException {
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            if (bytes.length < 16) throw new IOException("Key file " + f + " is too short, it needs at least 16 random bytes");
+            return new Key(null, bytes);
+        }
+
+        private byte kdf() {
+            return passphrase != null ? PASSPHRASE : KEY_FILE;
+        }
+
+        // the key of one file, slow on purpose for passphrases
+        private SecretKeySpec derive(byte kdf, int iterations, byte[] salt) throws IOException {
+            if (kdf != kdf()) throw new IOException("File was encrypted with a " + (kdf == PASSPHRASE ? "passphrase" : "key file") + ", not a " + (kdf() == PASSPHRASE ? "passphrase" : "key file"));
+            try {
+                if (passphrase != null) {
+                    SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+                    return new SecretKeySpec(f.generateSecret(new PBEKeySpec(passphrase, salt, iterations, 256)).getEncoded(), "AES");
+                }
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(keyFile, "HmacSHA256"));
+                return new SecretKeySpec(mac.doFinal(salt), "AES");
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to derive the encryption key", e);
+            }
+        }
+    }
+
+    /**
+     * The key and header of one encrypted file. Encrypts and decrypts chunks, from any number of threads.
+     */
+    static class FileKey {
+        final byte[] header;
+        private final SecretKeySpec key;
+
+        private FileKey(byte[] header, SecretKeySpec key) {
+            this.header = header;
+            this.key = key;
+        }
+
+        // a new file with a random salt
+        static FileKey create(Key key) throws IOException {
+            byte[] salt = new byte[SALT_SIZE];
+            RANDOM.nextBytes(salt);
+            int iterations = key.kdf() == PASSPHRASE ? ITERATIONS : 0;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC).put((byte) VERSION).put(key.kdf()).putInt(iterations).put(salt).putInt(CHUNK_SIZE);
+            return new FileKey(header.array(), key.derive(key.kdf(), iterations, salt));
+        }
+
+        // an existing file, from its header
+        static FileKey read(Key key, byte[] header) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(header);
+            byte[] magic = new byte[MAGIC.length];
+            b.get(magic);
+            if (header.length != HEADER_SIZE || !Arrays.equals(magic, MAGIC)) throw new IOException("Not an encrypted eBackup file");
+            if (b.get() != VERSION) throw new IOException("Unsupported encryption version");
+            byte kdf = b.get();
+            int iterations = b.getInt();
+            byte[] salt = new byte[SALT_SIZE];
+            b.get(salt);
+            if (b.getInt() != CHUNK_SIZE) throw new IOException("Unsupported chunk size");
+            return new FileKey(header.clone(), key.derive(kdf, iterations, salt));
+        }
+
+        // only the same key gives the same value, so a changed key is noticed before anything is encrypted with it
+        byte[] check() throws IOException {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+                return mac.doFinal("eBackup key check".getBytes(StandardCharsets.US_ASCII));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to check the key", e);
+            }
+        }
+
+        byte[] seal(long index, byte[] buf, int off, int len, boolean last) throws IOException {
+            try {
+                return cipher(Cipher.ENCRYPT_MODE, index, last).doFinal(buf, off, len);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt", e);
+            }
+        }
+
+        byte[] open(long index, byte[] buf, int off, int len, boolean last) throws IOException {
+            try {
+                return cipher(Cipher.DECRYPT_MODE, index, last).doFinal(buf, off, len);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Chunk " + index + " is corrupt or the key is wrong", e);
+            }
+        }
+
+        // a new cipher every time, GCM refuses to encrypt twice with the same nonce on one instance
+        private Cipher cipher(int mode, long index, boolean last) throws GeneralSecurityException {
+            byte[] nonce = ByteBuffer.allocate(12).putInt(0).putLong(index).array();
+            Cipher c = Cipher.getInstance("AES/GCM/NoPadding");
+            c.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            c.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+            return c;
+        }
+    }
+
+    /**
+     * Encrypts everything written to it, chunks are encrypted on several threads and written in order.
+     */
+    static class EncryptingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final FileKey key;
+        private final ExecutorService pool;
+        private final int maxPending;
+        private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int len = 0;
+        private long index = 0;
+        private boolean closed = false;
+
+        EncryptingOutputStream(OutputStream out, FileKey key, int threads) throws IOException {
+            this.out = out;
+            this.key = key;
+            this.maxPending = threads * 2;
+            AtomicInteger count = new AtomicInteger();
+            this.pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "eBackup-encrypt-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            out.write(key.header);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int n) throws IOException {
+            while (n > 0) {
+                // a full chunk is only sealed once more data comes, the last one is sealed on close
+                if (len == CHUNK_SIZE) submit(false);
+                int copy = Math.min(n, CHUNK_SIZE - len);
+                System.arraycopy(b, off, chunk, len, copy);
+                len += copy;
+                off += copy;
+                n -= copy;
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            byte[] data = chunk;
+            int length = len;
+            long i = index++;
+            pending.add(pool.submit(() -> key.seal(i, data, 0, length, last)));
+            chunk = new byte[CHUNK_SIZE];
+            len = 0;
+            while (pending.size() > (last ? 0 : maxPending)) writeNext();
+        }
+
+        private void writeNext() throws IOException {
+            try {
+                out.write(pending.poll().get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while encrypting");
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                // the last chunk is always short, after a full one it is empty
+                if (len == CHUNK_SIZE) submit(false);
+                submit(true);
+            } finally {
+                pool.shutdownNow();
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * The encrypted form of a file, any range of it is encrypted when it is read.
+     */
+    static class EncryptedFile {
+        private final FileKey key;
+        private final RandomAccessFile in;
+        private final long size;
+        private final byte[] plain = new byte[CHUNK_SIZE];
+        // the last chunk that was encrypted, reads mostly continue where the last one stopped
+        private long cachedIndex = -1;
+        private byte[] cached;
+
+        EncryptedFile(FileKey key, RandomAccessFile in) throws IOException {
+            this.key = key;
+            this.in = in;
+            this.size = in.length();
+        }
+
+        void read(long pos, byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (pos < HEADER_SIZE) {
+                    int n = (int) Math.min(len, HEADER_SIZE - pos);
+                    System.arraycopy(key.header, (int) pos, b, off, n);
+                    pos += n;
+                    off += n;
+                    len -= n;
+                    continue;
+                }
+                long index = (pos - HEADER_SIZE) / (CHUNK_SIZE + TAG_SIZE);
+                int within = (int) ((pos - HEADER_SIZE) % (CHUNK_SIZE + TAG_SIZE));
+                byte[] sealed = chunk(index);
+                if (within >= sealed.length) throw new EOFException("Read past the end of the encrypted file");
+                int n = Math.min(len, sealed.length - within);
+                System.arraycopy(sealed, within, b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private byte[] chunk(long index) throws IOException {
+            if (index == cachedIndex) return cached;
+            long start = index * CHUNK_SIZE;
+            if (start > size) throw new EOFException("Read past the end of the encrypted file");
+            int n = (int) Math.min(CHUNK_SIZE, size - start);
+            in.seek(start);
+            in.readFully(plain, 0, n);
+            cached = key.seal(index, plain, 0, n, n < CHUNK_SIZE);
+            cachedIndex = index;
+            return cached;
+        }
+    }
+
+    /**
+     * Decrypts an encrypted file while it is read, fails if it was changed or cut off.
+     */
+    static InputStream decrypt(Key key, InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] header = new byte[HEADER_SIZE];
+        data.readFully(header);
+        FileKey fileKey = FileKey.read(key, header);
+        return new InputStream() {
+            private final byte[] sealed = new byte[CHUNK_SIZE + TAG_SIZE];
+            private byte[] chunk = new byte[0];
+            private int pos = 0;
+            private long index = 0;
+            private boolean last = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (pos == chunk.length) {
+                    if (last) return -1;
+                    // a full chunk is followed by at least the tag of the last one
+                    int n = 0, r;
+                    while (n < sealed.length && (r = data.read(sealed, n, sealed.length - n)) > 0) n += r;
+                    if (n < TAG_SIZE) throw new EOFException("Encrypted file is cut off");
+                    last = n < sealed.length;
+                    chunk = fileKey.open(index++, sealed, 0, n, last);
+                    pos = 0;
+                }
+                int n = Math.min(len, chunk.length - pos);
+                System.arraycopy(chunk, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                data.close();
+            }
+        };
+    }
+
+    public static void main(String[] args) throws IOException {
+        Key key = null;
+        int i = 0;
+        if (args.length >= 2 && args[0].equals("--key-file")) {
+            key = Key.file(new File(args[1]));
+            i = 2;
+        } else if (args.length >= 2 && args[0].equals("--passphrase")) {
+            key = Key.passphrase(args[1]);
+            i = 2;
+        }
+        if (key == null || args.length - i < 1 || args.length - i > 2) {
+            System.err.println("Usage: java -cp eBackup.jar dev.espi.ebackup.BackupCrypto (--key-file <file> | --passphrase <passphrase>) <file.enc> [output]");
+            System.exit(1);
+            return;
+        }
+        File in = new File(args[i]);
+        File out = args.length - i == 2 ? new File(args[i + 1])
+                : new File(in.getPath().endsWith(EXTENSION) ? in.getPath().substring(0, in.getPath().length() - EXTENSION.length()) : in.getPath() + ".decrypted");
+        try (InputStream is = decrypt(key, new BufferedInputStream(new FileInputStream(in), 1024 * 1024));
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 1024 * 1024)) {
+            byte[] buf = new byte[1024 * 1024];
+            int n;
+            while ((n = is.read(buf)) > 0) os.write(buf, 0, n);
+        } catch (IOException e) {
+            out.delete();
+            throw e;
+        }
+        System.out.println("Decrypted " + in + " to " + out);
+    }
+}
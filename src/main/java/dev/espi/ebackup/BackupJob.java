@@ -0,0 +1,74 @@
+package dev.espi.ebackup;
+
+import com.cronutils.model.time.ExecutionTime;
+
+import java.io.File;
+import java.time.ZonedDateTime;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * A named backup with its own schedule, scope, format, compression and upload setting.
+ *
+ * The main settings of the config are the "default" job, the jobs section adds more that take what they
+ * leave out from the main settings. Every job keeps its backups in its own folder with its own catalog,
+ * manifest and retention, so e.g. hourly backups of one world never count against the nightly full ones.
+ */
+public class BackupJob {
+
+    static final String DEFAULT = "default";
+
+    final String name;
+
+    // schedule, null to only run from /ebackup backup
+    String crontask;
+    ExecutionTime executionTime;
+    ZonedDateTime nextExecution;
+
+    String backupFormat, archiveFormat;
+    File backupPath;
+    BackupCatalog catalog;
+    RetentionPolicy retention, remoteRetention;
+    CompressionPolicy compressionPolicy;
+
+    // names of the worlds to back up, null for all of them
+    Set<String> worlds;
+    // also back up everything outside the worlds
+    boolean otherFiles = true;
+    // upload to ftp/sftp when ftp is enabled
+    boolean upload = true;
+
+    // players joined since the last backup of this job
+    final AtomicBoolean playersWereOn = new AtomicBoolean(false);
+
+    // change tracker marks of the last backup of this job, null before the first one
+    volatile ChangeTracker.Marks changeMarks;
+
+    // held while a backup of this job uploads
+    final Object uploadLock = new Object();
+
+    BackupJob(String name) {
+        this.name = name;
+    }
+
+    boolean isDefault() {
+        return name.equals(DEFAULT);
+    }
+}
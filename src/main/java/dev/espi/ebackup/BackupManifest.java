@@ -0,0 +1,205 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * State of every backed up file (path, size, last modified, content hash) as of the last backup.
+ *
+ * Stored as a tab separated text file in the backup folder; incremental backups compare against it to
+ * find new, changed and deleted files. The chunk timestamps of region files are kept next to it in
+ * {@value #REGIONS_FILE_NAME}, for {@link RegionDelta}.
+ */
+public class BackupManifest {
+
+    static final String FILE_NAME = "manifest.tsv";
+    static final String REGIONS_FILE_NAME = "manifest-regions.dat";
+    private static final String HEADER = "# eBackup manifest v1";
+
+    static class FileState {
+        final long size, modified;
+        String hash;
+
+        FileState(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    private final Map<String, FileState> files = new HashMap<>();
+    private final Map<String, int[]> regions = new HashMap<>();
+    // the paths in order, built the first time a folder is looked up
+    private String[] sorted;
+
+    // name of the full backup the current chain is based on, and how many incrementals followed it
+    String fullBackup = "";
+    int incrementalsSinceFull = 0;
+
+    public FileState get(String path) {
+        return files.get(path);
+    }
+
+    public void put(String path, FileState state) {
+        files.put(path, state);
+        sorted = null;
+    }
+
+    // adds the files and region timestamps of another manifest, e.g. of one part of a backup set
+    public void putAll(BackupManifest other) {
+        files.putAll(other.files);
+        regions.putAll(other.regions);
+        sorted = null;
+    }
+
+    // paths of the files in a folder and below it, meant for a manifest that no longer changes (like the previous one)
+    public synchronized List<String> pathsUnder(String folder) {
+        if (sorted == null) {
+            sorted = files.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+        }
+        String prefix = folder + "/";
+        int from = Arrays.binarySearch(sorted, prefix);
+        if (from < 0) from = -from - 1;
+        int to = from;
+        while (to < sorted.length && sorted[to].startsWith(prefix)) to++;
+        return Arrays.asList(sorted).subList(from, to);
+    }
+
+    public Set<String> paths() {
+        return files.keySet();
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public int[] getRegionTimestamps(String path) {
+        return regions.get(path);
+    }
+
+    public void putRegionTimestamps(String path, int[] timestamps) {
+        if (timestamps != null) regions.put(path, timestamps);
+    }
+
+    public static BackupManifest load(File f) throws IOException {
+        BackupManifest m = new BackupManifest();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 1024 * 1024)) {
+            String line = r.readLine();
+            if (line == null || !line.equals(HEADER)) throw new IOException("Not an eBackup manifest: " + f);
+
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    // metadata, "# key=value"
+                    int eq = line.indexOf('=');
+                    if (eq < 0) continue;
+                    String key = line.substring(2, eq), value = line.substring(eq + 1);
+                    if (key.equals("full")) m.fullBackup = value;
+                    if (key.equals("incrementals")) m.incrementalsSinceFull = Integer.parseInt(value);
+                    continue;
+                }
+
+                // size, modified, hash, path (path last so it may contain tabs)
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) throw new IOException("Corrupt manifest line in " + f + ": " + line);
+                m.files.put(parts[3], new FileState(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2].equals("-") ? null : parts[2]));
+            }
+        }
+
+        File regionsFile = new File(f.getParentFile(), REGIONS_FILE_NAME);
+        if (regionsFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(regionsFile))))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    int[] timestamps = new int[in.readInt()];
+                    for (int j = 0; j < timestamps.length; j++) timestamps[j] = in.readInt();
+                    m.regions.put(path, timestamps);
+                }
+            }
+        }
+        return m;
+    }
+
+    // write to a temporary file first, so a crash never leaves a half written manifest behind
+    public void save(File f) throws IOException {
+        File temp = new File(f.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8), 1024 * 1024)) {
+            w.write(HEADER + "\n");
+            w.write("# full=" + fullBackup + "\n");
+            w.write("# incrementals=" + incrementalsSinceFull + "\n");
+            for (Map.Entry<String, FileState> e : files.entrySet()) {
+                FileState s = e.getValue();
+                w.write(s.size + "\t" + s.modified + "\t" + (s.hash == null ? "-" : s.hash) + "\t" + e.getKey() + "\n");
+            }
+        }
+        File regionsFile = new File(f.getParentFile(), REGIONS_FILE_NAME), regionsTemp = new File(regionsFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(regionsTemp))))) {
+            out.writeInt(regions.size());
+            for (Map.Entry<String, int[]> e : regions.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                for (int t : e.getValue()) out.writeInt(t);
+            }
+        }
+        Files.move(regionsTemp.toPath(), regionsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // SHA-256 over the SHA-256 of each block, the same hash ParallelZipWriter computes while compressing
+    public static String contentHash(InputStream in) throws IOException {
+        MessageDigest outer = newDigest(), inner = newDigest();
+        byte[] buf = new byte[ParallelZipWriter.BLOCK_SIZE];
+        int len = ParallelZipWriter.readFully(in, buf);
+        while (true) {
+            inner.update(buf, 0, len);
+            outer.update(inner.digest());
+            if (len < buf.length) break;
+            len = ParallelZipWriter.readFully(in, buf);
+            if (len == 0) break;
+        }
+        return toHex(outer.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = hex[(bytes[i] >> 4) & 0xF];
+            out[i * 2 + 1] = hex[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,333 @@
+package dev.espi.ebackup;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Timings and counters of the last backup, upload and verification, plus totals since the server started.
+ *
+ * Shown by /ebackup stats and exported in the Prometheus text format (see {@link MetricsServer}).
+ * Backups and uploads run on different threads, so everything is read and written under the lock.
+ */
+public class BackupMetrics {
+
+    // phases of a backup, per world where there is one
+    static final String WORLD_SAVE = "world_save", WORLD_SNAPSHOT = "world_snapshot", WORLD_ARCHIVE = "world_archive",
+            OTHER_FILES = "other_files", RETENTION = "retention", UPLOAD = "upload";
+
+    static class Phase {
+        final String name, world;
+        final double seconds;
+
+        Phase(String name, String world, double seconds) {
+            this.name = name;
+            this.world = world;
+            this.seconds = seconds;
+        }
+    }
+
+    // last backup
+    private final List<Phase> phases = new ArrayList<>();
+    private long backupStart = 0, backupEnd = 0;
+    private boolean backupRunning = false, backupSuccess = false;
+    private final AtomicLong bytesRead = new AtomicLong(), bytesWritten = new AtomicLong(), files = new AtomicLong(), fileErrors = new AtomicLong();
+    // main thread time spent saving worlds, in total and in the worst tick
+    private long stallNanos = 0, maxStallNanos = 0;
+
+    // last upload
+    private long uploadEnd = 0, uploadBytes = 0, uploadNanos = 0;
+    private boolean uploadSuccess = false;
+
+    // last verification
+    private long verifyEnd = 0, verifyBytes = 0, verifyNanos = 0;
+    private String verifyStatus = null;
+
+    // uploads per target since the server started, succeeded and failed
+    private final Map<String, long[]> targets = new TreeMap<>();
+
+    // totals
+    private long backups = 0, backupFailures = 0, uploads = 0, uploadFailures = 0, verifications = 0, verifyFailures = 0;
+    private long bytesReadTotal = 0, bytesWrittenTotal = 0, filesTotal = 0, fileErrorsTotal = 0;
+
+    public synchronized void backupStarted() {
+        phases.clear();
+        backupStart = System.currentTimeMillis();
+        backupRunning = true;
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        files.set(0);
+        fileErrors.set(0);
+        stallNanos = 0;
+        maxStallNanos = 0;
+    }
+
+    public synchronized void phase(String name, String world, long nanos) {
+        phases.add(new Phase(name, world, nanos / 1e9));
+    }
+
+    // main thread time used by the backup in one tick
+    public synchronized void mainThreadStalled(long nanos) {
+        stallNanos += nanos;
+        maxStallNanos = Math.max(maxStallNanos, nanos);
+    }
+
+    public synchronized void backupFinished(boolean success) {
+        backupEnd = System.currentTimeMillis();
+        backupRunning = false;
+        backupSuccess = success;
+        backups++;
+        if (!success) backupFailures++;
+        bytesReadTotal += bytesRead.get();
+        bytesWrittenTotal += bytesWritten.get();
+        filesTotal += files.get();
+        fileErrorsTotal += fileErrors.get();
+    }
+
+    public synchronized void uploadFinished(long bytes, long nanos, boolean success) {
+        uploadEnd = System.currentTimeMillis();
+        uploadBytes = bytes;
+        uploadNanos = nanos;
+        uploadSuccess = success;
+        uploads++;
+        if (!success) uploadFailures++;
+    }
+
+    public synchronized void targetFinished(String target, boolean success) {
+        targets.computeIfAbsent(target, k -> new long[2])[success ? 0 : 1]++;
+    }
+
+    public synchronized void verifyFinished(String status, long bytes, long nanos) {
+        verifyEnd = System.currentTimeMillis();
+        verifyStatus = status;
+        verifyBytes = bytes;
+        verifyNanos = nanos;
+        verifications++;
+        if (!status.equals(BackupVerifier.OK)) verifyFailures++;
+    }
+
+    // the archive of the running backup, counting the files read
+    ArchiveWriter count(ArchiveWriter archive) {
+        return new ArchiveWriter() {
+            @Override
+            public void putDirectory(String name, long time) throws IOException {
+                archive.putDirectory(name, time);
+            }
+
+            @Override
+            public void putFile(String name, File file) throws IOException {
+                long size = file.length();
+                try {
+                    archive.putFile(name, file);
+                } catch (IOException e) {
+                    fileErrors.incrementAndGet();
+                    throw e;
+                }
+                files.incrementAndGet();
+                bytesRead.addAndGet(size);
+            }
+
+            @Override
+            public void putBytes(String name, byte[] data, long time) throws IOException {
+                archive.putBytes(name, data, time);
+                files.incrementAndGet();
+                bytesRead.addAndGet(data.length);
+            }
+
+            @Override
+            public Map<String, String> getContentHashes() {
+                return archive.getContentHashes();
+            }
+
+            @Override
+            public void close() throws IOException {
+                archive.close();
+            }
+        };
+    }
+
+    // the output of the running backup, counting the bytes written
+    OutputStream count(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten.addAndGet(len);
+            }
+        };
+    }
+
+    long getFileErrors() {
+        return fileErrors.get();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    // for backups not written through count(OutputStream), e.g. the repository format
+    void addBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    private static double perSecond(double amount, double seconds) {
+        return seconds > 0 ? amount / seconds : 0;
+    }
+
+    /**
+     * Lines for /ebackup stats, empty before the first backup.
+     */
+    public synchronized List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        if (backupStart == 0) return lines;
+        if (backupRunning) {
+            lines.add("Backup running for " + (System.currentTimeMillis() - backupStart) / 1000 + "s, " + files.get() + " files read so far");
+        } else {
+            double seconds = (backupEnd - backupStart) / 1000.0;
+            lines.add("Last backup: " + (backupSuccess ? "succeeded" : "failed") + " in " + format(seconds) + "s, "
+                    + (System.currentTimeMillis() - backupEnd) / 60000 + " minutes ago");
+            lines.add("Read " + bytesRead.get() / 1024 / 1024 + "MB in " + files.get() + " files (" + (long) perSecond(files.get(), seconds)
+                    + " files/s), wrote " + bytesWritten.get() / 1024 / 1024 + "MB (ratio " + format(ratio()) + ")");
+        }
+        StringBuilder sb = new StringBuilder("Phases:");
+        for (Phase p : phases) {
+            sb.append(' ').append(p.name).append(p.world == null ? "" : "(" + p.world + ")").append(' ').append(format(p.seconds)).append('s');
+        }
+        if (!phases.isEmpty()) lines.add(sb.toString());
+        if (stallNanos > 0) {
+            lines.add("Main thread stalled " + format(stallNanos / 1e6) + "ms saving worlds, at most " + format(maxStallNanos / 1e6) + "ms in one tick");
+        }
+        if (uploadEnd != 0) {
+            double seconds = uploadNanos / 1e9;
+            lines.add("Last upload: " + (uploadSuccess ? "succeeded" : "failed") + ", " + uploadBytes / 1024 / 1024 + "MB in " + format(seconds)
+                    + "s (" + format(perSecond(uploadBytes / 1024.0 / 1024, seconds)) + "MB/s)");
+        }
+        if (verifyEnd != 0) {
+            double seconds = verifyNanos / 1e9;
+            lines.add("Last verification: " + verifyStatus + ", " + verifyBytes / 1024 / 1024 + "MB in " + format(seconds)
+                    + "s, " + (System.currentTimeMillis() - verifyEnd) / 60000 + " minutes ago");
+        }
+        if (targets.size() > 1) {
+            StringBuilder t = new StringBuilder("Uploads per target:");
+            for (Map.Entry<String, long[]> e : targets.entrySet()) {
+                t.append(' ').append(e.getKey()).append(' ').append(e.getValue()[0]).append(" ok/").append(e.getValue()[1]).append(" failed");
+            }
+            lines.add(t.toString());
+        }
+        lines.add("Failures since start: " + backupFailures + " of " + backups + " backups, " + uploadFailures + " of " + uploads
+                + " uploads, " + verifyFailures + " of " + verifications + " verifications, " + fileErrorsTotal + " unreadable files");
+        return lines;
+    }
+
+    private double ratio() {
+        return bytesWritten.get() > 0 ? (double) bytesRead.get() / bytesWritten.get() : 0;
+    }
+
+    private static String format(double d) {
+        return String.format(Locale.ROOT, "%.2f", d);
+    }
+
+    /**
+     * The metrics in the Prometheus text exposition format.
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        if (!phases.isEmpty()) {
+            header(sb, "ebackup_phase_seconds", "gauge", "Duration of each phase of the last backup.");
+            for (Phase p : phases) {
+                sb.append("ebackup_phase_seconds{phase=\"").append(p.name).append('"');
+                if (p.world != null) sb.append(",world=\"").append(escape(p.world)).append('"');
+                sb.append("} ").append(p.seconds).append('\n');
+            }
+        }
+        double seconds = backupStart == 0 || backupRunning ? 0 : (backupEnd - backupStart) / 1000.0;
+        gauge(sb, "ebackup_backup_running", "1 while a backup is running.", backupRunning ? 1 : 0);
+        gauge(sb, "ebackup_last_backup_timestamp_seconds", "When the last backup finished.", backupEnd / 1000.0);
+        gauge(sb, "ebackup_last_backup_success", "1 if the last backup succeeded.", backupSuccess ? 1 : 0);
+        gauge(sb, "ebackup_last_backup_duration_seconds", "Duration of the last backup.", seconds);
+        gauge(sb, "ebackup_last_backup_read_bytes", "Bytes read by the last backup.", bytesRead.get());
+        gauge(sb, "ebackup_last_backup_written_bytes", "Bytes written by the last backup.", bytesWritten.get());
+        gauge(sb, "ebackup_last_backup_files", "Files read by the last backup.", files.get());
+        gauge(sb, "ebackup_last_backup_files_per_second", "Files read per second by the last backup.", perSecond(files.get(), seconds));
+        gauge(sb, "ebackup_last_backup_compression_ratio", "Bytes read per byte written by the last backup.", ratio());
+        gauge(sb, "ebackup_last_backup_main_thread_seconds", "Main thread time the last backup spent saving worlds.", stallNanos / 1e9);
+        gauge(sb, "ebackup_last_backup_max_tick_seconds", "Most main thread time the last backup used in one tick.", maxStallNanos / 1e9);
+        gauge(sb, "ebackup_last_upload_timestamp_seconds", "When the last upload finished.", uploadEnd / 1000.0);
+        gauge(sb, "ebackup_last_upload_success", "1 if the last upload succeeded.", uploadSuccess ? 1 : 0);
+        gauge(sb, "ebackup_last_upload_bytes", "Size of the last upload.", uploadBytes);
+        gauge(sb, "ebackup_last_upload_duration_seconds", "Duration of the last upload.", uploadNanos / 1e9);
+        gauge(sb, "ebackup_last_upload_bytes_per_second", "Speed of the last upload.", perSecond(uploadBytes, uploadNanos / 1e9));
+        gauge(sb, "ebackup_last_verify_timestamp_seconds", "When the last verification finished.", verifyEnd / 1000.0);
+        gauge(sb, "ebackup_last_verify_success", "1 if the last verified backup was complete and intact.", BackupVerifier.OK.equals(verifyStatus) ? 1 : 0);
+        gauge(sb, "ebackup_last_verify_bytes", "Bytes read by the last verification.", verifyBytes);
+        gauge(sb, "ebackup_last_verify_duration_seconds", "Duration of the last verification.", verifyNanos / 1e9);
+        counter(sb, "ebackup_backups_total", "Backups since the server started.", backups);
+        counter(sb, "ebackup_backup_failures_total", "Failed backups since the server started.", backupFailures);
+        counter(sb, "ebackup_uploads_total", "Uploads since the server started.", uploads);
+        counter(sb, "ebackup_upload_failures_total", "Failed uploads since the server started.", uploadFailures);
+        if (!targets.isEmpty()) {
+            header(sb, "ebackup_target_uploads_total", "counter", "Uploads to each target since the server started, by result.");
+            for (Map.Entry<String, long[]> e : targets.entrySet()) {
+                sb.append("ebackup_target_uploads_total{target=\"").append(escape(e.getKey())).append("\",result=\"success\"} ").append(e.getValue()[0]).append('\n');
+                sb.append("ebackup_target_uploads_total{target=\"").append(escape(e.getKey())).append("\",result=\"failure\"} ").append(e.getValue()[1]).append('\n');
+            }
+        }
+        counter(sb, "ebackup_verifications_total", "Verifications since the server started.", verifications);
+        counter(sb, "ebackup_verify_failures_total", "Verifications that found a broken or incomplete backup since the server started.", verifyFailures);
+        counter(sb, "ebackup_read_bytes_total", "Bytes read by backups since the server started.", bytesReadTotal);
+        counter(sb, "ebackup_written_bytes_total", "Bytes written by backups since the server started.", bytesWrittenTotal);
+        counter(sb, "ebackup_files_total", "Files backed up since the server started.", filesTotal);
+        counter(sb, "ebackup_file_errors_total", "Files that could not be read since the server started.", fileErrorsTotal);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // label values escape backslash, quote and newline
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,361 @@
+package dev.espi.ebackup;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Restores some or all files of a backup into a folder.
+ *
+ * Zip backups are read through their central directory, so only the requested entries are touched, and
+ * extracted on several threads that each have their own handle on the archive. An incremental backup is
+ * restored from its full backup onwards, skipping files a later backup of the chain replaces or deletes,
+ * with region deltas applied on top of the restored region file. Backup sets are restored part by part.
+ * tar.zst and tar.lz4 can only be read front to back; repository snapshots read the chunks of the
+ * requested files in parallel.
+ *
+ * Also runs without the server:
+ * java -cp eBackup.jar dev.espi.ebackup.BackupRestore [--threads n] &lt;backup-path&gt; &lt;backup&gt; &lt;target&gt; [paths...]
+ */
+public class BackupRestore {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final File backupDir, target;
+    private final Path targetPath;
+    private final List<String> paths = new ArrayList<>();
+    private final int threads;
+    private final Logger log;
+    private final AtomicLong files = new AtomicLong(), bytes = new AtomicLong();
+
+    /**
+     * @param paths files and folders to restore relative to the server folder (e.g. "world" or "plugins/X"), empty for everything
+     */
+    public BackupRestore(File backupDir, File target, Collection<String> paths, int threads, Logger log) {
+        this.backupDir = backupDir;
+        this.target = target;
+        this.targetPath = target.toPath().toAbsolutePath().normalize();
+        for (String p : paths) {
+            String normalized = IgnoreMatcher.normalize(p);
+            if (!normalized.isEmpty()) this.paths.add(normalized);
+        }
+        this.threads = Math.max(1, threads);
+        this.log = log;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public void restore(String name) throws IOException {
+        restore(BackupCatalog.load(backupDir), name);
+    }
+
+    public void restore(BackupCatalog catalog, String name) throws IOException {
+        BackupCatalog.Backup backup = catalog.get(name);
+        if (backup == null || !backup.local) throw new FileNotFoundException("No local backup named " + name + " in " + backupDir);
+        Files.createDirectories(targetPath);
+
+        if (backup.type.equals(BackupCatalog.SNAPSHOT)) {
+            restoreSnapshot(catalog.snapshotFile(name));
+            return;
+        }
+
+        List<File> chain = chain(catalog, backup);
+        // what each backup of the chain holds in full or deletes, null where the format can't tell without reading it all
+        List<Set<String>> replaces = new ArrayList<>();
+        for (File f : chain) replaces.add(replacedBy(f));
+
+        for (int i = 0; i < chain.size(); i++) {
+            Set<String> replacedLater = new HashSet<>();
+            for (int j = i + 1; j < chain.size(); j++) {
+                if (replaces.get(j) != null) replacedLater.addAll(replaces.get(j));
+            }
+            File f = chain.get(i);
+            log.info("Restoring from " + f.getName() + (chain.size() > 1 ? " (" + (i + 1) + " of " + chain.size() + ")" : "") + "...");
+            if (f.getName().endsWith(".zip")) {
+                restoreZip(f, replacedLater);
+            } else {
+                restoreTar(f, replacedLater);
+            }
+        }
+    }
+
+    // the full backup, then the incrementals up to the backup
+    private List<File> chain(BackupCatalog catalog, BackupCatalog.Backup backup) throws IOException {
+        List<File> chain = new ArrayList<>();
+        if (backup.isIncremental()) {
+            BackupCatalog.Backup full = backup.base == null ? null : catalog.get(backup.base);
+            if (full == null || !full.local) throw new FileNotFoundException("The full backup " + backup.base + " that " + backup.name + " builds on is missing");
+            chain.addAll(archives(full));
+            for (BackupCatalog.Backup b : catalog.local()) {
+                if (b.isIncremental() && full.name.equals(b.base) && b.created <= backup.created && b != backup) chain.addAll(archives(b));
+            }
+        }
+        chain.addAll(archives(backup));
+        return chain;
+    }
+
+    // the archives of a backup, each part of a backup set (they hold different files, so their order doesn't matter)
+    private List<File> archives(BackupCatalog.Backup backup) {
+        List<File> archives = new ArrayList<>();
+        if (backup.isSet()) {
+            for (String part : backup.parts) archives.add(new File(backupDir, part));
+        } else {
+            archives.add(new File(backupDir, backup.name));
+        }
+        return archives;
+    }
+
+    private boolean wanted(String path) {
+        if (paths.isEmpty()) return true;
+        for (String p : paths) {
+            if (path.equals(p) || path.startsWith(p + "/")) return true;
+        }
+        return false;
+    }
+
+    // path of a region file a delta entry rebuilds, or the entry itself
+    private static String pathOf(String entry) {
+        return entry.endsWith(RegionDelta.EXTENSION) ? entry.substring(0, entry.length() - RegionDelta.EXTENSION.length()) : entry;
+    }
+
+    // zip entries stored in full plus the deleted list, from the central directory
+    private Set<String> replacedBy(File archive) throws IOException {
+        if (!archive.getName().endsWith(".zip")) return null;
+        Set<String> names = new HashSet<>();
+        try (ZipFile zip = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry e = entries.nextElement();
+                if (!e.isDirectory() && !e.getName().endsWith(RegionDelta.EXTENSION)) names.add(e.getName());
+            }
+            ZipEntry deleted = zip.getEntry(BackupCatalog.DELETED_ENTRY);
+            if (deleted != null) {
+                try (InputStream in = zip.getInputStream(deleted)) {
+                    names.addAll(readDeleted(in));
+                }
+            }
+        }
+        names.remove(BackupCatalog.DELETED_ENTRY);
+        return names;
+    }
+
+    private static List<String> readDeleted(InputStream in) throws IOException {
+        List<String> deleted = new ArrayList<>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (!line.isEmpty()) deleted.add(line);
+        }
+        return deleted;
+    }
+
+    private void restoreZip(File archive, Set<String> replacedLater) throws IOException {
+        Queue<String> queue = new ConcurrentLinkedQueue<>();
+        List<String> deleted = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry e = entries.nextElement();
+                String path = pathOf(stripSlash(e.getName()));
+                if (e.getName().equals(BackupCatalog.DELETED_ENTRY)) {
+                    try (InputStream in = zip.getInputStream(e)) {
+                        deleted.addAll(readDeleted(in));
+                    }
+                } else if (wanted(path) && !replacedLater.contains(path)) {
+                    queue.add(e.getName());
+                }
+            }
+        }
+
+        // each worker reads the archive through its own handle
+        runWorkers(() -> {
+            try (ZipFile zip = new ZipFile(archive)) {
+                String name;
+                while ((name = queue.poll()) != null) {
+                    ZipEntry e = zip.getEntry(name);
+                    if (e.isDirectory()) {
+                        Files.createDirectories(resolve(stripSlash(name)));
+                        continue;
+                    }
+                    try (InputStream in = zip.getInputStream(e)) {
+                        extract(name, in, e.getTime());
+                    }
+                }
+            }
+            return null;
+        });
+        delete(deleted);
+    }
+
+    private void restoreTar(File archive, Set<String> replacedLater) throws IOException {
+        List<String> deleted = new ArrayList<>();
+        InputStream raw = new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE);
+        InputStream decompressed = archive.getName().endsWith("." + TarArchiveWriter.ZSTD) ? new ZstdInputStream(raw) : new LZ4FrameInputStream(raw);
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(decompressed, "UTF-8")) {
+            TarArchiveEntry e;
+            while ((e = tar.getNextTarEntry()) != null) {
+                String path = pathOf(stripSlash(e.getName()));
+                if (e.getName().equals(BackupCatalog.DELETED_ENTRY)) {
+                    deleted.addAll(readDeleted(tar));
+                } else if (!wanted(path) || replacedLater.contains(path)) {
+                    continue;
+                } else if (e.isDirectory()) {
+                    Files.createDirectories(resolve(path));
+                } else {
+                    extract(e.getName(), tar, e.getModTime().getTime());
+                }
+            }
+        }
+        delete(deleted);
+    }
+
+    private void restoreSnapshot(File snapshot) throws IOException {
+        ChunkRepository repo = new ChunkRepository(new File(backupDir, BackupCatalog.REPOSITORY_DIR));
+        Queue<Map.Entry<String, ChunkRepository.FileRecord>> queue = new ConcurrentLinkedQueue<>();
+        for (Map.Entry<String, ChunkRepository.FileRecord> e : repo.readSnapshot(snapshot).entrySet()) {
+            if (wanted(e.getKey())) queue.add(e);
+        }
+        runWorkers(() -> {
+            Map.Entry<String, ChunkRepository.FileRecord> e;
+            while ((e = queue.poll()) != null) {
+                Path p = resolve(e.getKey());
+                if (e.getValue().directory) {
+                    Files.createDirectories(p);
+                    continue;
+                }
+                Files.createDirectories(p.getParent());
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(p.toFile()), BUFFER_SIZE)) {
+                    repo.readFile(e.getValue(), out);
+                }
+                p.toFile().setLastModified(e.getValue().modified);
+                files.incrementAndGet();
+                bytes.addAndGet(e.getValue().size);
+            }
+            return null;
+        });
+    }
+
+    // writes one file, or rebuilds a region file from the restored one and a delta
+    private void extract(String name, InputStream in, long time) throws IOException {
+        Path p = resolve(name);
+        Files.createDirectories(p.getParent());
+        if (name.endsWith(RegionDelta.EXTENSION)) {
+            File region = resolve(pathOf(name)).toFile(), temp = new File(region.getPath() + ".restore");
+            if (!region.exists()) {
+                log.warning("Skipping " + name + ", the region file it changes was not restored");
+                return;
+            }
+            RegionDelta.apply(region, in, temp);
+            Files.move(temp.toPath(), region.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            region.setLastModified(time);
+            bytes.addAndGet(region.length());
+        } else {
+            byte[] buf = new byte[64 * 1024];
+            long size = 0;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(p.toFile()), BUFFER_SIZE)) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                    size += n;
+                }
+            }
+            p.toFile().setLastModified(time);
+            bytes.addAndGet(size);
+        }
+        files.incrementAndGet();
+    }
+
+    // files deleted since the previous backup of the chain
+    private void delete(List<String> deleted) throws IOException {
+        for (String path : deleted) {
+            if (wanted(path)) Files.deleteIfExists(resolve(path));
+        }
+    }
+
+    // entry names must stay inside the target folder
+    private Path resolve(String name) throws IOException {
+        Path p = targetPath.resolve(name).normalize();
+        if (!p.startsWith(targetPath)) throw new IOException("Entry " + name + " is outside of the restore folder");
+        return p;
+    }
+
+    private static String stripSlash(String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private void runWorkers(Callable<Void> worker) throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "eBackup-restore-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) futures.add(pool.submit(worker));
+            for (Future<Void> f : futures) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring to " + target);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error while restoring to " + target, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors(), i = 0;
+        if (args.length > 1 && args[0].equals("--threads")) {
+            threads = Integer.parseInt(args[1]);
+            i = 2;
+        }
+        if (args.length - i < 3) {
+            System.err.println("Usage: java -cp eBackup.jar dev.espi.ebackup.BackupRestore [--threads n] <backup-path> <backup> <target> [paths...]");
+            System.exit(1);
+        }
+        Logger log = Logger.getLogger("eBackup");
+        BackupRestore restore = new BackupRestore(new File(args[i]), new File(args[i + 2]), Arrays.asList(args).subList(i + 3, args.length), threads, log);
+        long start = System.currentTimeMillis();
+        restore.restore(args[i + 1]);
+        log.info("Restored " + restore.getFiles() + " files (" + restore.getBytes() / 1024 / 1024 + "MB) in " + (System.currentTimeMillis() - start) / 1000 + "s.");
+    }
+}
@@ -0,0 +1,123 @@
+package dev.espi.ebackup;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Runs the scheduled {@link BackupJob}s.
+ *
+ * A timer thread sleeps until the next job is due instead of polling, and hands due jobs to a runner that
+ * makes one backup at a time. A job that becomes due while a backup is running waits in line; a job that is
+ * already waiting isn't queued a second time, so a slow backup never piles up runs of a frequent job.
+ */
+public class BackupScheduler {
+
+    // longest sleep, so changes of the system clock are picked up
+    private static final long MAX_SLEEP_MILLIS = 60 * 60 * 1000;
+
+    private final Consumer<BackupJob> run;
+    private final Logger log;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService runner;
+    // jobs waiting for the runner
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    public BackupScheduler(Consumer<BackupJob> run, Logger log) {
+        this.run = run;
+        this.log = log;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "eBackup-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "eBackup-backup");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start(Collection<BackupJob> jobs) {
+        for (BackupJob job : jobs) {
+            if (job.executionTime == null) continue;
+            job.nextExecution = next(job, ZonedDateTime.now());
+            sleep(job);
+        }
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+        runner.shutdownNow();
+    }
+
+    /**
+     * Queues a run of a job after the backups already waiting.
+     *
+     * @return false if the job is already waiting
+     */
+    public boolean submit(BackupJob job) {
+        if (!queued.add(job.name)) return false;
+        runner.execute(() -> {
+            queued.remove(job.name);
+            try {
+                run.accept(job);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        });
+        return true;
+    }
+
+    private static ZonedDateTime next(BackupJob job, ZonedDateTime after) {
+        Optional<ZonedDateTime> next = job.executionTime.nextExecution(after);
+        return next.orElse(null);
+    }
+
+    private void sleep(BackupJob job) {
+        if (job.nextExecution == null) return; // never runs again
+        long millis = Duration.between(ZonedDateTime.now(), job.nextExecution).toMillis();
+        timer.schedule(() -> wake(job), Math.max(0, Math.min(millis, MAX_SLEEP_MILLIS)), TimeUnit.MILLISECONDS);
+    }
+
+    private void wake(BackupJob job) {
+        ZonedDateTime now = ZonedDateTime.now();
+        if (now.isBefore(job.nextExecution)) {
+            sleep(job); // woke up early or for a clock check
+            return;
+        }
+        // the next run after this one, never the same one twice
+        job.nextExecution = next(job, now.isAfter(job.nextExecution) ? now : job.nextExecution);
+        sleep(job);
+
+        if (!submit(job)) {
+            log.info("Backup job " + job.name + " is due but still waiting from its last run, skipping this run.");
+        }
+    }
+}
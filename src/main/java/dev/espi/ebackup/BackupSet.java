@@ -0,0 +1,114 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * A backup made of one archive per world plus one for the other files, archived at the same time.
+ *
+ * The parts are stored next to each other as "&lt;backup&gt; [&lt;world&gt;].zip" and listed with their
+ * size and checksum in "&lt;backup&gt;.set", which the catalog, retention and uploads treat as the backup.
+ * The set file is written and uploaded after its parts, so a set whose set file exists is complete.
+ * A backup split by size (see {@link VolumeWriter}) is a set too, with a part per volume.
+ */
+public class BackupSet {
+
+    static final String EXTENSION = ".set";
+    private static final String HEADER = "# eBackup backup set v1";
+
+    // part with the files outside the worlds
+    static final String OTHER = "other";
+
+    static class Part {
+        // world name, OTHER, or the volume (see VolumeWriter#volumeName)
+        final String world;
+        // file name in the backup folder
+        final String name;
+        final long size;
+        // SHA-256 of the archive
+        final String checksum;
+
+        Part(String world, String name, long size, String checksum) {
+            this.world = world;
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    final List<Part> parts = new ArrayList<>();
+
+    // file name of a part of the set "<fileName>.set"
+    static String partName(String fileName, String world, String extension) {
+        return fileName + " [" + world + "]" + extension;
+    }
+
+    public long size() {
+        long size = 0;
+        for (Part p : parts) size += p.size;
+        return size;
+    }
+
+    public List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Part p : parts) names.add(p.name);
+        return names;
+    }
+
+    public static BackupSet load(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            return read(in, f.getPath());
+        }
+    }
+
+    // from a stream, e.g. a set file on the ftp/sftp server; source names it in errors
+    public static BackupSet read(InputStream in, String source) throws IOException {
+        BackupSet set = new BackupSet();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line = r.readLine();
+            if (line == null || !line.equals(HEADER)) throw new IOException("Not an eBackup backup set: " + source);
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("#") || line.isEmpty()) continue;
+
+                // world, size, checksum, name (name last so it may contain tabs)
+                String[] parts = line.split("\t", 4);
+                if (parts.length != 4) throw new IOException("Corrupt backup set line in " + source + ": " + line);
+                set.parts.add(new Part(parts[0], parts[3], Long.parseLong(parts[1]), parts[2]));
+            }
+        }
+        return set;
+    }
+
+    // write to a temporary file first, so a crash never leaves a half written set behind
+    public void save(File f) throws IOException {
+        File temp = new File(f.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            w.write(HEADER + "\n");
+            for (Part p : parts) {
+                w.write(p.world + "\t" + p.size + "\t" + p.checksum + "\t" + p.name + "\n");
+            }
+        }
+        Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
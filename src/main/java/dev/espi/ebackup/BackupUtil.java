@@ -1,20 +1,31 @@
 package dev.espi.ebackup;
 
-import com.jcraft.jsch.*;
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPClient;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
 
 /*
    Copyright 2020 EspiDev
@@ -35,32 +46,227 @@ import java.nio.file.Path;
 
 public class BackupUtil {
 
-    // delete old backups (when limit reached)
-    private static void checkMaxBackups() {
-        if (eBackup.getPlugin().maxBackups <= 0) return;
+    // delete old local backups the retention policy doesn't keep, using only the catalog
+    // takes its settings as arguments so it also runs without the plugin (benchmarks)
+    static void checkMaxBackups(BackupCatalog catalog, RetentionPolicy policy, boolean nextIsIncremental, Logger log) throws IOException {
+        if (!policy.isEnabled()) return;
 
-        int backups = 0;
-        SortedMap<Long, File> m = new TreeMap<>(); // oldest files to newest
+        // (the newest chain is kept if the next backup will build on it)
+        List<BackupCatalog.Backup> local = catalog.local();
+        Set<BackupCatalog.Backup> keep = policy.select(local, nextIsIncremental);
+        if (keep.size() == local.size()) return;
 
-        for (File f : eBackup.getPlugin().backupPath.listFiles()) {
-            if (f.getName().endsWith(".zip")) {
-                backups++;
-                m.put(f.lastModified(), f);
+        List<String> snapshots = new ArrayList<>();
+        for (BackupCatalog.Backup b : local) {
+            if (keep.contains(b)) continue;
+            if (b.type.equals(BackupCatalog.SNAPSHOT)) {
+                snapshots.add(b.name); // snapshots in the repository format
+            } else if (!delete(catalog.files(b), log)) {
+                continue;
             }
+            catalog.setLocation(b, false, b.remote);
         }
+        if (!snapshots.isEmpty()) {
+            new ChunkRepository(new File(catalog.getDir(), BackupCatalog.REPOSITORY_DIR)).delete(snapshots, log);
+        }
+        catalog.save();
+    }
 
-        // delete old backups
-        while (backups-- >= eBackup.getPlugin().maxBackups) {
-            m.get(m.firstKey()).delete();
-            m.remove(m.firstKey());
+    // deletes the files of a backup, the set file of a backup set first so no set is left with missing parts
+    private static boolean delete(List<File> files, Logger log) {
+        boolean deleted = true;
+        for (int i = files.size() - 1; i >= 0; i--) {
+            File f = files.get(i);
+            if (!f.delete() && f.exists()) {
+                log.warning("Unable to delete old backup " + f);
+                deleted = false;
+            }
         }
+        return deleted;
+    }
+
+    // delete uploaded backups the retention policy doesn't keep, without listing the server
+    private static void pruneRemote(BackupJob job) {
+        if (!eBackup.getPlugin().ftpPrune || !job.remoteRetention.isEnabled()) return;
+        BackupCatalog catalog = job.catalog;
+        List<BackupCatalog.Backup> remote = catalog.remote();
+        Set<BackupCatalog.Backup> keep = job.remoteRetention.select(remote, false);
+        // deltas need the backups they are a delta of
+        for (BackupCatalog.Backup b : new ArrayList<>(keep)) {
+            if (b.deltas == null) continue;
+            for (String base : b.deltas.values()) {
+                BackupCatalog.Backup owner = catalog.owner(base);
+                if (owner != null && owner.remote) keep.add(owner);
+            }
+        }
+        if (keep.size() == remote.size()) return;
+
+        List<BackupCatalog.Backup> old = new ArrayList<>();
+        for (BackupCatalog.Backup b : remote) {
+            if (!keep.contains(b)) old.add(b);
+        }
+
+        // deleted from every target, or kept to try again next time
+        Set<BackupCatalog.Backup> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (UploadTarget t : eBackup.getPlugin().uploadTargets) {
+            try {
+                deleteRemote(t, old, failed);
+            } catch (Exception e) {
+                eBackup.getPlugin().getLogger().warning("Unable to delete old backups from " + t + ": " + e.getMessage());
+                failed.addAll(old);
+            }
+        }
+        int deleted = 0;
+        for (BackupCatalog.Backup b : old) {
+            if (failed.contains(b)) continue;
+            catalog.setLocation(b, b.local, false);
+            deleted++;
+        }
+        try {
+            catalog.save();
+        } catch (IOException e) {
+            eBackup.getPlugin().getLogger().warning("Unable to save the backup catalog: " + e.getMessage());
+        }
+        if (deleted > 0) eBackup.getPlugin().getLogger().info("Deleted " + deleted + " old backup(s) from the upload server(s).");
+    }
+
+    // deletes the files of backups from a target, adding the backups it couldn't delete to failed
+    private static void deleteRemote(UploadTarget t, List<BackupCatalog.Backup> backups, Set<BackupCatalog.Backup> failed) throws InterruptedException {
+        // all at once, as many at a time as the target has connections
+        Map<BackupCatalog.Backup, List<CompletableFuture<Boolean>>> deletes = new LinkedHashMap<>();
+        for (BackupCatalog.Backup b : backups) {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (String name : remoteNames(b)) futures.add(t.backend().delete(name));
+            deletes.put(b, futures);
+        }
+        for (Map.Entry<BackupCatalog.Backup, List<CompletableFuture<Boolean>>> e : deletes.entrySet()) {
+            for (CompletableFuture<Boolean> future : e.getValue()) {
+                try {
+                    future.get(); // false: already gone
+                } catch (ExecutionException ex) {
+                    eBackup.getPlugin().getLogger().warning("Unable to delete old backup " + e.getKey().name + " from " + t + ": " + ex.getCause().getMessage());
+                    failed.add(e.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    // files of a backup on the ftp/sftp server, the set file of a backup set first
+    private static List<String> remoteNames(BackupCatalog.Backup b) {
+        List<String> names = new ArrayList<>();
+        names.add(remoteName(b, b.name));
+        if (b.isSet()) {
+            for (String part : b.parts) names.add(remoteName(b, part));
+        }
+        return names;
+    }
+
+    // name of a file of a backup on the ftp/sftp server
+    private static String remoteName(BackupCatalog.Backup b, String file) {
+        String name = b.deltas != null && b.deltas.containsKey(file) ? file + DeltaTransfer.EXTENSION : file;
+        return b.encrypted ? name + BackupCrypto.EXTENSION : name;
+    }
+
+    // records that a backup was uploaded, with the files that were uploaded as a delta
+    private static void uploaded(BackupJob job, File f, Map<String, String> deltas) {
+        BackupCatalog.Backup b = job.catalog.get(f.getName());
+        if (b == null) return;
+        job.catalog.setLocation(b, b.local, true);
+        b.deltas = deltas.isEmpty() ? null : deltas;
+        b.encrypted = eBackup.getPlugin().encryptionKey != null;
+        try {
+            job.catalog.save();
+        } catch (IOException e) {
+            eBackup.getPlugin().getLogger().warning("Unable to save the backup catalog: " + e.getMessage());
+        }
+        verifyRemoteLater(job, b);
+    }
+
+    // the files to upload for a backup, the parts of a backup set before its set file
+    private static List<File> uploadFiles(BackupJob job, File f) {
+        BackupCatalog.Backup b = job.catalog.get(f.getName());
+        return b != null && b.isSet() ? job.catalog.files(b) : Collections.singletonList(f);
+    }
+
+    // queue a check of the local copy of a new backup, the manifest and unreadable files are those of the backup
+    private static void verifyLater(BackupJob job, BackupCatalog.Backup backup, BackupManifest manifest, long unreadable) {
+        BackupVerifier verifier = eBackup.getPlugin().verifier;
+        if (verifier == null) return;
+        BackupCatalog catalog = job.catalog;
+        verifier.later(() -> {
+            if (!backup.local) return; // deleted after upload or by retention in the meantime
+            try {
+                verified(job, backup, false, verifier.verify(catalog, backup, manifest, unreadable));
+            } catch (IOException e) {
+                if (!backup.local || e instanceof FileNotFoundException) {
+                    eBackup.getPlugin().getLogger().info("Backup " + backup.name + " was deleted before it could be verified.");
+                    return;
+                }
+                verified(job, backup, false, new BackupVerifier.Result(BackupVerifier.FAILED, Collections.singletonList(e.getMessage()), 0, 0));
+            }
+        });
+    }
+
+    // queue a check of the uploaded copy of a backup, downloading it again
+    private static void verifyRemoteLater(BackupJob job, BackupCatalog.Backup backup) {
+        BackupVerifier verifier = eBackup.getPlugin().verifier;
+        if (verifier == null || !eBackup.getPlugin().verifyRemote || backup.checksum == null) return;
+        verifier.later(() -> {
+            if (!backup.remote) return;
+            try {
+                if (!backup.isSet()) {
+                    try (InputStream in = openRemote(job.catalog, backup, backup.name)) {
+                        verified(job, backup, true, verifier.verify(in, backup.checksum));
+                    }
+                    return;
+                }
+
+                // the set file on the server lists the checksums of its parts
+                byte[] setFile;
+                try (InputStream in = download(backup, backup.name)) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+                    setFile = out.toByteArray();
+                }
+                List<BackupVerifier.Result> results = new ArrayList<>();
+                results.add(verifier.verify(new ByteArrayInputStream(setFile), backup.checksum));
+                for (BackupSet.Part part : BackupSet.read(new ByteArrayInputStream(setFile), backup.name).parts) {
+                    try (InputStream in = openRemote(job.catalog, backup, part.name)) {
+                        results.add(verifier.verify(in, part.checksum));
+                    }
+                }
+                verified(job, backup, true, BackupVerifier.combine(results));
+            } catch (Exception e) {
+                verified(job, backup, true, new BackupVerifier.Result(BackupVerifier.FAILED, Collections.singletonList(String.valueOf(e.getMessage())), 0, 0));
+            }
+        });
+    }
+
+    private static void verified(BackupJob job, BackupCatalog.Backup backup, boolean remote, BackupVerifier.Result result) {
+        String copy = remote ? "uploaded copy of " : "";
+        if (result.status.equals(BackupVerifier.OK)) {
+            eBackup.getPlugin().getLogger().info("Verified " + copy + backup.name + " (" + result.bytes / 1024 / 1024 + "MB in " + result.nanos / 1000000000 + "s).");
+        } else {
+            eBackup.getPlugin().getLogger().warning("Verification of " + copy + backup.name + " " + (result.status.equals(BackupVerifier.INCOMPLETE) ? "found missing files" : "FAILED") + ":");
+            for (String problem : result.problems) eBackup.getPlugin().getLogger().warning("- " + problem);
+        }
+        job.catalog.setVerified(backup, remote, result.status);
+        try {
+            job.catalog.save();
+        } catch (IOException e) {
+            eBackup.getPlugin().getLogger().warning("Unable to save the backup catalog: " + e.getMessage());
+        }
+        eBackup.getPlugin().metrics.verifyFinished(result.status, result.bytes, result.nanos);
+        exportMetrics();
     }
 
     // actually do the backup
     // run async please
-    public static void doBackup(boolean uploadToServer) {
-        List<File> tempIgnore = new ArrayList<>();
-        eBackup.getPlugin().getLogger().info("Starting backup...");
+    public static void doBackup(BackupJob job, boolean uploadToServer) {
+        eBackup.getPlugin().getLogger().info(job.isDefault() ? "Starting backup..." : "Starting backup job " + job.name + "...");
 
         // do not backup when plugin is disabled
         if (!eBackup.getPlugin().isEnabled()) {
@@ -71,80 +277,239 @@ public class BackupUtil {
         // prevent other processes from backing up at the same time
         eBackup.getPlugin().isInBackup.set(true);
 
+        BackupMetrics metrics = eBackup.getPlugin().metrics;
+        metrics.backupStarted();
+
         File currentWorkingDirectory = new File(Paths.get(".").toAbsolutePath().normalize().toString());
+        boolean streaming = false, success = false;
+        FanOutUpload streamTargets = null;
+        // uploads of the volumes written so far, when split into volumes
+        VolumeUploads volumeUploads = null;
+        long archiveStart = System.nanoTime();
+        // archives of this backup, deleted if it fails
+        List<File> partials = new ArrayList<>();
+        // change tracker marks taken right before each tree is read
+        ChangeTracker tracker = eBackup.getPlugin().changeTracker;
+        ChangeTracker.Marks marks = tracker == null ? null : new ChangeTracker.Marks(tracker);
 
         try {
+            // ignore rules for this backup
+            IgnoreMatcher ignore = eBackup.getPlugin().ignoreMatcher.copy();
+            ignore.add(eBackup.getPlugin().snapshotPath.getPath());
+
             // find plugin data to ignore
             for (File f : new File("plugins").listFiles()) {
                 if ((!eBackup.getPlugin().backupPluginJars && f.getName().endsWith(".jar")) || (!eBackup.getPlugin().backupPluginConfs && f.isDirectory())) {
-                    tempIgnore.add(f);
-                    eBackup.getPlugin().ignoredFiles.add(f);
+                    ignore.add("plugins/" + f.getName());
+                }
+            }
+
+            boolean repository = job.archiveFormat.equals("repository");
+
+            // full or incremental backup (the repository format is always deduplicated instead)
+            File manifestFile = new File(job.backupPath, BackupManifest.FILE_NAME);
+            BackupManifest previous = null, current = null;
+            if (eBackup.getPlugin().incrementalEnable && !repository) {
+                current = new BackupManifest();
+                if (manifestFile.exists()) {
+                    try {
+                        previous = BackupManifest.load(manifestFile);
+                    } catch (IOException e) {
+                        eBackup.getPlugin().getLogger().warning("Unable to read the backup manifest, doing a full backup: " + e.getMessage());
+                    }
+                    if (previous != null && previous.incrementalsSinceFull + 1 >= eBackup.getPlugin().incrementalFullEvery) {
+                        previous = null; // time for a new full backup
+                    }
                 }
+            } else if (manifestFile.exists()) {
+                // stale if incremental backups get turned on again later
+                manifestFile.delete();
+                new File(job.backupPath, BackupManifest.REGIONS_FILE_NAME).delete();
             }
+            boolean incremental = previous != null;
 
             // delete old backups
-            checkMaxBackups();
+            long start = System.nanoTime();
+            checkMaxBackups(job.catalog, job.retention, incremental, eBackup.getPlugin().getLogger());
+            metrics.phase(BackupMetrics.RETENTION, null, System.nanoTime() - start);
 
-            // zip
+            // zip, tar (or snapshot)
             SimpleDateFormat formatter = new SimpleDateFormat(eBackup.getPlugin().backupDateFormat);
-            String fileName = eBackup.getPlugin().backupFormat.replace("{DATE}", formatter.format(new Date()));
-            FileOutputStream fos = new FileOutputStream(eBackup.getPlugin().backupPath + "/" + fileName + ".zip");
-            ZipOutputStream zipOut = new ZipOutputStream(fos);
+            Date created = new Date();
+            String fileName = job.backupFormat.replace("{DATE}", formatter.format(created)) + (incremental ? BackupCatalog.INCREMENTAL_SUFFIX : "");
+            String extension = "." + job.archiveFormat;
+            Map<World, String> worlds = worldPaths(job, currentWorkingDirectory, ignore);
+            if (incremental) {
+                eBackup.getPlugin().getLogger().info("Only backing up files changed since the last backup (incremental " + (previous.incrementalsSinceFull + 1) + " after " + previous.fullBackup + ")...");
+            }
 
-            // set zip compression level
-            zipOut.setLevel(eBackup.getPlugin().compressionLevel);
+            BackupCatalog catalog = job.catalog;
+            BackupCatalog.Backup backup;
+            if (eBackup.getPlugin().perWorldEnable && !repository) {
+                // every world in its own archive, all at once
+                BackupSet set = archiveSet(job, fileName, extension, currentWorkingDirectory, worlds, ignore, previous, current, marks, partials);
+                File setFile = new File(job.backupPath, fileName + BackupSet.EXTENSION);
+                partials.add(setFile);
+                set.save(setFile);
+                backup = new BackupCatalog.Backup(setFile.getName(), created.getTime(), set.size(), incremental ? BackupCatalog.INCREMENTAL : BackupCatalog.FULL,
+                        base(catalog, previous, BackupSet.EXTENSION), BackupManifest.toHex(BackupManifest.newDigest().digest(Files.readAllBytes(setFile.toPath()))), true, false);
+                backup.parts = set.names();
+            } else {
+                ArchiveWriter archive;
+                MessageDigest checksum = null;
+                VolumeWriter volumes = null;
+                if (repository) {
+                    ChunkRepository repo = new ChunkRepository(new File(job.backupPath, BackupCatalog.REPOSITORY_DIR));
+                    ChunkRepository.SnapshotWriter snapshot = repo.newSnapshot(fileName, job.compressionPolicy, eBackup.getPlugin().compressionThreads);
+                    snapshot.setThrottle(eBackup.getPlugin().throttle);
+                    archive = snapshot;
+                } else if (eBackup.getPlugin().volumeSize > 0) {
+                    // in volumes, each uploaded as soon as it is written
+                    if (uploadToServer && eBackup.getPlugin().ftpEnable) {
+                        volumeUploads = new VolumeUploads(job, incremental);
+                        eBackup.getPlugin().getLogger().info("Uploading " + fileName + extension + " to " + eBackup.getPlugin().uploadTargets + " in volumes of "
+                                + eBackup.getPlugin().volumeSize / 1024 / 1024 + "MB while it is written...");
+                    }
+                    boolean hashContent = current != null;
+                    volumes = new VolumeWriter(job.backupPath, fileName, extension, eBackup.getPlugin().volumeSize,
+                            out -> openArchive(job, new BufferedOutputStream(metrics.count(out), 1024 * 1024), eBackup.getPlugin().compressionThreads, hashContent),
+                            volumeUploads == null ? null : volumeUploads::add, partials);
+                    archive = volumes;
+                } else {
+                    String localPath = job.backupPath + "/" + fileName + extension;
+                    OutputStream target = null;
+                    partials.add(new File(localPath));
 
-            // backup worlds first
-            for (World w : Bukkit.getWorlds()) {
-                File worldFolder = w.getWorldFolder();
+                    // upload while compressing
+                    if (uploadToServer && eBackup.getPlugin().ftpEnable && eBackup.getPlugin().ftpStream) {
+                        eBackup.getPlugin().uploadsRunning.incrementAndGet();
+                        try {
+                            // to every target at once, a required one failing fails the backup unless there is a local copy to send again
+                            BackupCrypto.Key key = eBackup.getPlugin().encryptionKey;
+                            FanOutUpload fanOut = new FanOutUpload(eBackup.getPlugin().uploadTargets, fileName + extension + (key != null ? BackupCrypto.EXTENSION : ""),
+                                    eBackup.getPlugin().throttle, !eBackup.getPlugin().ftpStreamKeepLocal);
+                            target = fanOut;
+                            streamTargets = fanOut;
+                            streaming = true;
+                            if (key != null) target = new BackupCrypto.EncryptingOutputStream(fanOut, BackupCrypto.FileKey.create(key), eBackup.getPlugin().encryptionThreads);
+                            eBackup.getPlugin().getLogger().info("Streaming " + fileName + extension + " to " + eBackup.getPlugin().uploadTargets + (key != null ? " encrypted" : "") + "...");
+                            if (eBackup.getPlugin().ftpStreamKeepLocal) target = tee(new FileOutputStream(localPath), target);
+                        } catch (Exception e) {
+                            eBackup.getPlugin().getLogger().warning("Unable to start streaming the backup, saving it locally first: " + e.getMessage());
+                            if (target != null) target.close();
+                            target = null;
+                            streaming = false;
+                            eBackup.getPlugin().uploadsRunning.decrementAndGet();
+                        }
+                    }
+                    if (target == null) target = new FileOutputStream(localPath);
 
-                String worldPath = Paths.get(currentWorkingDirectory.toURI()).relativize(Paths.get(worldFolder.toURI())).toString();
-                if (worldPath.endsWith("/.")) {// 1.16 world folders end with /. for some reason
-                    worldPath = worldPath.substring(0, worldPath.length() - 2);
-                    worldFolder = new File(worldPath);
+                    checksum = BackupManifest.newDigest();
+                    OutputStream fos = new BufferedOutputStream(metrics.count(new DigestOutputStream(target, checksum)), 1024 * 1024);
+                    archive = openArchive(job, fos, eBackup.getPlugin().compressionThreads, current != null);
                 }
 
-                // check if world is in ignored list
-                boolean skip = false;
-                for (File f : eBackup.getPlugin().ignoredFiles) {
-                    if (f.getCanonicalPath().equals(worldFolder.getCanonicalPath())) {
-                        skip = true;
-                        break;
-                    }
-                }
-                if (skip) continue;
+                archiveStart = System.nanoTime();
+                try (ArchiveWriter zipOut = metrics.count(archive)) {
+                    try {
+                        // backup worlds first
+                        for (Map.Entry<World, String> world : worlds.entrySet()) {
+                            backupWorld(job, world.getKey(), world.getValue(), zipOut, ignore, previous, current, marks);
 
-                // manually trigger world save (needs to be run sync)
-                AtomicBoolean saved = new AtomicBoolean(false);
-                Bukkit.getScheduler().runTask(eBackup.getPlugin(), () -> {
-                    w.save();
-                    saved.set(true);
-                });
+                            // ignore in dfs
+                            ignore.add(world.getValue());
+                        }
 
-                // wait until world save is finished
-                while (!saved.get()) Thread.sleep(500);
+                        // dfs all other files
+                        if (job.otherFiles) {
+                            eBackup.getPlugin().getLogger().info("Backing up other files...");
+                            start = System.nanoTime();
+                            Predicate<String> unchanged = trackChanges("", job, marks);
+                            zipFile(currentWorkingDirectory, "", zipOut, ignore, previous, current, unchanged, eBackup.getPlugin().incrementalRegionDeltas, eBackup.getPlugin().getLogger());
+                            metrics.phase(BackupMetrics.OTHER_FILES, null, System.nanoTime() - start);
+                        }
 
-                w.setAutoSave(false); // make sure autosave doesn't screw everything over
+                        // record files deleted since the previous backup
+                        if (incremental) putDeleted(zipOut, previous, Collections.singletonList(current));
+                    } catch (Exception e) {
+                        // closing the archive would finish the upload of what's there so far, or upload its last volume
+                        if (streaming) streamTargets.abort(e);
+                        if (volumes != null) volumes.abort();
+                        throw e;
+                    }
+                }
 
-                eBackup.getPlugin().getLogger().info("Backing up world " + w.getName() + " " + worldPath + "...");
-                zipFile(worldFolder, worldPath, zipOut);
+                if (repository) {
+                    ChunkRepository.SnapshotWriter snapshot = (ChunkRepository.SnapshotWriter) archive;
+                    metrics.addBytesWritten(snapshot.storedBytes.get());
+                    eBackup.getPlugin().getLogger().info("Snapshot " + fileName + " stored " + snapshot.newChunks.get() + " new chunks ("
+                            + (snapshot.newBytes.get() / 1024 / 1024) + "MB, " + (snapshot.storedBytes.get() / 1024 / 1024) + "MB compressed), "
+                            + snapshot.reusedFiles + " unchanged files were reused.");
+                }
 
-                w.setAutoSave(true);
+                // content hashes are known once the archive is closed
+                if (current != null) addContentHashes(current, archive);
 
-                // ignore in dfs
-                tempIgnore.add(worldFolder);
-                eBackup.getPlugin().ignoredFiles.add(worldFolder);
+                if (repository) {
+                    backup = new BackupCatalog.Backup(fileName, created.getTime(), metrics.getBytesWritten(), BackupCatalog.SNAPSHOT, null, null, true, false);
+                } else if (volumes != null) {
+                    // the set file lists the volumes, like the archives of a per-world backup
+                    File setFile = new File(job.backupPath, fileName + BackupSet.EXTENSION);
+                    partials.add(setFile);
+                    volumes.set.save(setFile);
+                    backup = new BackupCatalog.Backup(setFile.getName(), created.getTime(), volumes.set.size(), incremental ? BackupCatalog.INCREMENTAL : BackupCatalog.FULL,
+                            base(catalog, previous, BackupSet.EXTENSION), BackupManifest.toHex(BackupManifest.newDigest().digest(Files.readAllBytes(setFile.toPath()))), true, false);
+                    backup.parts = volumes.set.names();
+                    eBackup.getPlugin().getLogger().info("Split " + backup.name + " into " + backup.parts.size() + " volume(s).");
+                } else {
+                    backup = new BackupCatalog.Backup(fileName + extension, created.getTime(), metrics.getBytesWritten(),
+                            incremental ? BackupCatalog.INCREMENTAL : BackupCatalog.FULL, base(catalog, previous, extension),
+                            BackupManifest.toHex(checksum.digest()), !streaming || eBackup.getPlugin().ftpStreamKeepLocal, streaming && !requiredFailed(streamTargets.getFailures()));
+                    backup.encrypted = streaming && eBackup.getPlugin().encryptionKey != null;
+                }
             }
 
-            // dfs all other files
-            eBackup.getPlugin().getLogger().info("Backing up other files...");
-            zipFile(currentWorkingDirectory, "", zipOut);
-            zipOut.close();
-            fos.close();
+            if (current != null) {
+                current.fullBackup = incremental ? previous.fullBackup : fileName;
+                current.incrementalsSinceFull = incremental ? previous.incrementalsSinceFull + 1 : 0;
+                current.save(manifestFile);
+            }
+
+            // record the backup, retention and remote pruning go by the catalog
+            catalog.add(backup);
+            success = true;
+            job.changeMarks = marks;
+
+            // read it back in the background (not when its volumes are deleted as they are uploaded)
+            if (backup.local && (volumeUploads == null || !eBackup.getPlugin().deleteAfterUpload)) verifyLater(job, backup, current, metrics.getFileErrors());
 
             // upload to ftp/sftp
-            if (uploadToServer && eBackup.getPlugin().ftpEnable) {
-                uploadTask(eBackup.getPlugin().backupPath + "/" + fileName + ".zip", false);
+            if (streaming) {
+                for (UploadTarget t : eBackup.getPlugin().uploadTargets) {
+                    Exception e = streamTargets.getFailures().get(t);
+                    eBackup.getPlugin().metrics.targetFinished(t.name, e == null);
+                    if (e == null) {
+                        eBackup.getPlugin().getLogger().info("Upload of " + backup.name + " to " + t + " has succeeded.");
+                    } else {
+                        eBackup.getPlugin().getLogger().warning("Upload of " + backup.name + " to " + t + " has failed" + (t.required ? "" : " (not required)") + ": " + e.getMessage());
+                    }
+                }
+                // like the catalog, only once every required target has it
+                if (backup.remote) {
+                    eBackup.getPlugin().getLogger().info("Upload of " + backup.name + " has succeeded!");
+                    verifyRemoteLater(job, backup);
+                } else {
+                    eBackup.getPlugin().getLogger().info("Upload of " + backup.name + " has failed" + (backup.local ? ", it is sent again from the local copy." : "."));
+                }
+                if (backup.local && !streamTargets.getFailures().isEmpty()) {
+                    resendTask(job, new File(job.backupPath, backup.name), new ArrayList<>(streamTargets.getFailures().keySet()));
+                }
+                pruneRemote(job);
+            } else if (uploadToServer && eBackup.getPlugin().ftpEnable && repository) {
+                eBackup.getPlugin().getLogger().warning("Uploading is not supported for the repository format, skipping upload...");
+            } else if (uploadToServer && eBackup.getPlugin().ftpEnable) {
+                uploadTask(job, job.backupPath + "/" + backup.name, false, volumeUploads);
+                volumeUploads = null;
             }
 
         } catch (Exception e) {
@@ -153,149 +518,863 @@ public class BackupUtil {
             for (World w : Bukkit.getWorlds()) {
                 w.setAutoSave(true);
             }
-            // restore tempignore
-            for (File f : tempIgnore) {
-                eBackup.getPlugin().ignoredFiles.remove(f);
+
+            // volumes of a failed backup don't need to be uploaded, those that already are are deleted again
+            if (volumeUploads != null) {
+                if (success) {
+                    volumeUploads.cancel();
+                } else {
+                    volumeUploads.abort();
+                }
+            }
+
+            // nor does a streamed one, targets that already got all of it delete it again
+            if (streaming && !success) {
+                for (Map.Entry<UploadTarget, Exception> e : streamTargets.abort(null).entrySet()) {
+                    eBackup.getPlugin().getLogger().warning("Unable to delete the unfinished upload from " + e.getKey() + ": " + e.getValue().getMessage());
+                }
+            }
+
+            // an unfinished archive is of no use
+            for (File partial : success ? Collections.<File>emptyList() : partials) {
+                if (partial.exists() && !partial.delete()) eBackup.getPlugin().getLogger().warning("Unable to delete the unfinished backup " + partial);
+            }
+
+            // the upload took as long as the archive when streaming
+            metrics.backupFinished(success);
+            if (streaming) {
+                metrics.phase(BackupMetrics.UPLOAD, null, System.nanoTime() - archiveStart);
+                metrics.uploadFinished(metrics.getBytesWritten(), System.nanoTime() - archiveStart, success);
             }
+            exportMetrics();
 
             // unlock
+            if (streaming) eBackup.getPlugin().uploadsRunning.decrementAndGet();
             eBackup.getPlugin().isInBackup.set(false);
         }
         eBackup.getPlugin().getLogger().info("Local backup complete!");
     }
 
+    // folders of the worlds a job backs up relative to the server folder, in the order the server lists them
+    private static Map<World, String> worldPaths(BackupJob job, File currentWorkingDirectory, IgnoreMatcher ignore) {
+        Map<World, String> worlds = new LinkedHashMap<>();
+        for (World w : Bukkit.getWorlds()) {
+            if (job.worlds != null && !job.worlds.contains(w.getName())) continue;
+            String worldPath = Paths.get(currentWorkingDirectory.toURI()).relativize(Paths.get(w.getWorldFolder().toURI())).toString();
+            if (worldPath.endsWith("/.")) {// 1.16 world folders end with /. for some reason
+                worldPath = worldPath.substring(0, worldPath.length() - 2);
+            }
+
+            // check if world is in ignored list
+            if (!ignore.isIgnored(worldPath)) worlds.put(w, worldPath);
+        }
+        return worlds;
+    }
+
+    // takes a change tracker mark for a tree that is about to be read, returns the folders in it that didn't change since the last backup
+    private static Predicate<String> trackChanges(String tree, BackupJob job, ChangeTracker.Marks marks) {
+        return marks == null ? null : marks.take(tree, job.changeMarks);
+    }
+
+    // whether nothing the job backs up changed since its last backup, going by the change tracker
+    static boolean isUnchanged(BackupJob job) {
+        ChangeTracker tracker = eBackup.getPlugin().changeTracker;
+        if (tracker == null || job.changeMarks == null || !job.changeMarks.isFrom(tracker) || tracker.mark() < 0) return false;
+
+        Map<World, String> worlds = worldPaths(job, new File(Paths.get(".").toAbsolutePath().normalize().toString()), eBackup.getPlugin().ignoreMatcher);
+        for (String worldPath : worlds.values()) {
+            if (!job.changeMarks.unchanged(worldPath, Collections.emptySet())) return false;
+        }
+        // the worlds were checked on their own
+        return !job.otherFiles || job.changeMarks.unchanged("", worlds.values());
+    }
+
+    // save a world, snapshot it if enabled and archive it
+    // marks: change tracker marks of this backup, null when changes aren't tracked
+    private static void backupWorld(BackupJob job, World w, String worldPath, ArchiveWriter zipOut, IgnoreMatcher ignore, BackupManifest previous, BackupManifest current,
+                                    ChangeTracker.Marks marks) throws Exception {
+        BackupMetrics metrics = eBackup.getPlugin().metrics;
+        File worldFolder = new File(worldPath);
+
+        // save the world on the main thread when a tick has time for it, and wait until it is finished
+        long start = System.nanoTime();
+        long stalled;
+        try {
+            stalled = eBackup.getPlugin().saveCoordinator.save(w).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+        metrics.phase(BackupMetrics.WORLD_SAVE, w.getName(), System.nanoTime() - start);
+        eBackup.getPlugin().getLogger().info("Saved world " + w.getName() + " in " + stalled / 1000000 + "ms on the main thread, after waiting "
+                + ((System.nanoTime() - start - stalled) / 1000000) + "ms for a quiet tick.");
+        // after the save, so the next backup doesn't count it as a change
+        Predicate<String> unchanged = trackChanges(worldPath, job, marks);
+
+        // copy the saved world, so autosave can be turned back on before compressing
+        File source = worldFolder, staging = null;
+        List<String> notCopied = Collections.emptyList();
+        if (eBackup.getPlugin().snapshotEnable) {
+            staging = new File(eBackup.getPlugin().snapshotPath, w.getName());
+            try {
+                start = System.nanoTime();
+                notCopied = WorldSnapshot.create(worldFolder, worldPath, staging, ignore, unchangedSince(previous, current, unchanged), eBackup.getPlugin().snapshotMethod,
+                        eBackup.getPlugin().compressionThreads, eBackup.getPlugin().getLogger());
+                source = staging;
+                metrics.phase(BackupMetrics.WORLD_SNAPSHOT, w.getName(), System.nanoTime() - start);
+                eBackup.getPlugin().getLogger().info("Snapshot of world " + w.getName() + " took " + (System.nanoTime() - start) / 1000000 + "ms, autosave is back on.");
+            } catch (IOException e) {
+                eBackup.getPlugin().getLogger().warning("Unable to snapshot world " + w.getName() + ", backing it up with autosave off: " + e.getMessage());
+                deleteStaging(staging);
+                staging = null;
+            }
+        }
+        if (staging != null) Bukkit.getScheduler().runTask(eBackup.getPlugin(), () -> w.setAutoSave(true));
+
+        eBackup.getPlugin().getLogger().info("Backing up world " + w.getName() + " " + worldPath + "...");
+        start = System.nanoTime();
+        try {
+            zipFile(source, worldPath, zipOut, ignore, previous, current, unchanged, eBackup.getPlugin().incrementalRegionDeltas, eBackup.getPlugin().getLogger());
+        } finally {
+            deleteStaging(staging);
+        }
+        // unchanged files the snapshot left out
+        for (String path : notCopied) {
+            current.put(path, previous.get(path));
+            current.putRegionTimestamps(path, previous.getRegionTimestamps(path));
+        }
+        metrics.phase(BackupMetrics.WORLD_ARCHIVE, w.getName(), System.nanoTime() - start);
+
+        if (staging == null) Bukkit.getScheduler().runTask(eBackup.getPlugin(), () -> w.setAutoSave(true));
+    }
+
+    // what zipFile takes from the previous manifest instead of reading it, so a snapshot doesn't need to copy it
+    private static WorldSnapshot.Unchanged unchangedSince(BackupManifest previous, BackupManifest current, Predicate<String> unchanged) {
+        if (previous == null || current == null) return null;
+        return new WorldSnapshot.Unchanged() {
+            @Override
+            public boolean folder(String path) {
+                return unchanged != null && unchanged.test(path) && allStored(path, previous);
+            }
+
+            @Override
+            public boolean file(String path, long size, long modified) {
+                BackupManifest.FileState old = previous.get(path);
+                return old != null && old.size == size && old.modified == modified;
+            }
+        };
+    }
+
+    // zip or tar writer for the configured format
+    private static ArchiveWriter openArchive(BackupJob job, OutputStream out, int threads, boolean hashContent) throws IOException {
+        if (job.archiveFormat.equals("zip")) {
+            ParallelZipWriter zip = new ParallelZipWriter(out, job.compressionPolicy, threads, hashContent);
+            zip.setThrottle(eBackup.getPlugin().throttle);
+            return zip;
+        }
+        TarArchiveWriter tar = new TarArchiveWriter(out, job.archiveFormat, eBackup.getPlugin().zstdLevel, threads, hashContent);
+        tar.setThrottle(eBackup.getPlugin().throttle);
+        return tar;
+    }
+
+    // the full backup an incremental builds on
+    private static String base(BackupCatalog catalog, BackupManifest previous, String extension) {
+        if (previous == null) return null;
+        BackupCatalog.Backup base = catalog.findFull(previous.fullBackup);
+        return base != null ? base.name : previous.fullBackup + extension;
+    }
+
+    // lists the files of the previous backup that none of the manifests of this one have
+    private static void putDeleted(ArchiveWriter zipOut, BackupManifest previous, Collection<BackupManifest> current) throws IOException {
+        StringBuilder deleted = new StringBuilder();
+        for (String path : previous.paths()) {
+            boolean found = false;
+            for (BackupManifest m : current) {
+                if (m.get(path) != null) found = true;
+            }
+            if (!found) deleted.append(path).append('\n');
+        }
+        zipOut.putBytes(BackupCatalog.DELETED_ENTRY, deleted.toString().getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+    }
+
+    private static void addContentHashes(BackupManifest manifest, ArchiveWriter archive) {
+        for (Map.Entry<String, String> e : archive.getContentHashes().entrySet()) {
+            BackupManifest.FileState state = manifest.get(e.getKey());
+            if (state != null && state.size >= 0) state.hash = e.getValue();
+        }
+    }
+
+    // archives each world and the other files into their own archive at the same time, adding them to partials as they are created
+    private static BackupSet archiveSet(BackupJob job, String fileName, String extension, File currentWorkingDirectory, Map<World, String> worlds, IgnoreMatcher ignore,
+                                        BackupManifest previous, BackupManifest current, ChangeTracker.Marks marks, List<File> partials) throws Exception {
+        int parallel = Math.max(1, Math.min(eBackup.getPlugin().perWorldThreads, worlds.size() + 1));
+        // each archive gets its share of the compression threads as workers, and while the server is busy the throttle
+        // limits how many of them run across all archives together, while a verification has threads of its own
+        int threads = Math.max(1, eBackup.getPlugin().compressionThreads / parallel);
+        eBackup.getPlugin().getLogger().info("Archiving " + worlds.size() + " world(s)" + (job.otherFiles ? " and the other files" : "") + " into separate archives, " + parallel + " at a time...");
+
+        // the other files leave out every world
+        IgnoreMatcher otherIgnore = ignore.copy();
+        for (String worldPath : worlds.values()) otherIgnore.add(worldPath);
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallel, r -> new Thread(r, "eBackup-world-" + count.incrementAndGet()));
+        List<Future<BackupSet.Part>> futures = new ArrayList<>();
+        // the manifest is not thread safe, each archive records into its own and they are merged afterwards
+        List<BackupManifest> manifests = new ArrayList<>();
+        try {
+            for (Map.Entry<World, String> world : worlds.entrySet()) {
+                BackupManifest manifest = current == null ? null : new BackupManifest();
+                manifests.add(manifest);
+                File part = new File(job.backupPath, BackupSet.partName(fileName, world.getKey().getName(), extension));
+                partials.add(part);
+                futures.add(pool.submit(() -> archivePart(job, part, world.getKey().getName(), threads, manifest, zipOut ->
+                        backupWorld(job, world.getKey(), world.getValue(), zipOut, ignore, previous, manifest, marks))));
+            }
+
+            // submitted last, so every world is being archived or done by the time it waits for them
+            // (also without other files when it has to carry the deleted files)
+            if (!job.otherFiles && previous == null) return collect(futures, manifests, current);
+            List<Future<BackupSet.Part>> worldFutures = new ArrayList<>(futures);
+            List<BackupManifest> worldManifests = new ArrayList<>(manifests);
+            BackupManifest manifest = current == null ? null : new BackupManifest();
+            manifests.add(manifest);
+            File part = new File(job.backupPath, BackupSet.partName(fileName, BackupSet.OTHER, extension));
+            partials.add(part);
+            futures.add(pool.submit(() -> archivePart(job, part, BackupSet.OTHER, threads, manifest, zipOut -> {
+                if (job.otherFiles) {
+                    long start = System.nanoTime();
+                    Predicate<String> unchanged = trackChanges("", job, marks);
+                    zipFile(currentWorkingDirectory, "", zipOut, otherIgnore, previous, manifest, unchanged, eBackup.getPlugin().incrementalRegionDeltas, eBackup.getPlugin().getLogger());
+                    eBackup.getPlugin().metrics.phase(BackupMetrics.OTHER_FILES, null, System.nanoTime() - start);
+                }
+
+                // record files deleted since the previous backup, once the worlds know what they have
+                if (previous != null) {
+                    for (Future<BackupSet.Part> f : worldFutures) f.get();
+                    List<BackupManifest> all = new ArrayList<>(worldManifests);
+                    all.add(manifest);
+                    putDeleted(zipOut, previous, all);
+                }
+            })));
+
+            return collect(futures, manifests, current);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // waits for the parts of a set in order and merges their manifests
+    private static BackupSet collect(List<Future<BackupSet.Part>> futures, List<BackupManifest> manifests, BackupManifest current) throws Exception {
+        BackupSet set = new BackupSet();
+        for (Future<BackupSet.Part> f : futures) {
+            try {
+                set.parts.add(f.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        if (current != null) {
+            for (BackupManifest m : manifests) current.putAll(m);
+        }
+        return set;
+    }
+
+    private interface PartWriter {
+        void write(ArchiveWriter zipOut) throws Exception;
+    }
+
+    // one archive of a backup set
+    private static BackupSet.Part archivePart(BackupJob job, File part, String world, int threads, BackupManifest manifest, PartWriter writer) throws Exception {
+        BackupMetrics metrics = eBackup.getPlugin().metrics;
+        MessageDigest checksum = BackupManifest.newDigest();
+        CountingOutputStream counted = new CountingOutputStream(new DigestOutputStream(new FileOutputStream(part), checksum));
+        ArchiveWriter archive = openArchive(job, new BufferedOutputStream(metrics.count(counted), 1024 * 1024), threads, manifest != null);
+        try (ArchiveWriter zipOut = metrics.count(archive)) {
+            writer.write(zipOut);
+        }
+        if (manifest != null) addContentHashes(manifest, archive);
+        return new BackupSet.Part(world, part.getName(), counted.count, BackupManifest.toHex(checksum.digest()));
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
     public static void testUpload() {
         try {
             File temp = new File(eBackup.getPlugin().getDataFolder() + "/uploadtest.txt");
             temp.createNewFile();
-            uploadTask(temp.toString(), true);
+            uploadTask(null, temp.toString(), true);
         } catch (Exception e) {
             e.printStackTrace();
             eBackup.getPlugin().getLogger().warning("Error creating temporary file.");
         }
     }
 
-    private static void uploadTask(String fileName, boolean testing) {
-        if (eBackup.getPlugin().isInUpload.get()) {
-            eBackup.getPlugin().getLogger().warning("A upload was scheduled to happen now, but an upload was detected to be in progress. Skipping...");
-            return;
-        }
+    private static void uploadTask(BackupJob job, String fileName, boolean testing) {
+        uploadTask(job, fileName, testing, null);
+    }
 
-        boolean isSFTP = eBackup.getPlugin().ftpType.equals("sftp"), isFTP = eBackup.getPlugin().ftpType.equals("ftp");
-        if (!isSFTP && !isFTP) {
-            eBackup.getPlugin().getLogger().warning("Invalid upload type specified (only ftp/sftp accepted). Skipping upload...");
-            return;
+    // queues an upload, it waits while max-uploads others are running
+    // volumes: uploads of the volumes of the backup that started while it was written, or null
+    private static void uploadTask(BackupJob job, String fileName, boolean testing, VolumeUploads volumes) {
+        List<UploadTarget> targets = eBackup.getPlugin().uploadTargets;
+        eBackup.getPlugin().uploadsRunning.incrementAndGet();
+        try {
+            eBackup.getPlugin().uploads.execute(() -> {
+                try {
+                    if (testing) {
+                        upload(null, fileName, targets, true, null);
+                        return;
+                    }
+                    if (volumes != null) volumes.await();
+                    // uploads of a job share its delta signatures and resume journals
+                    synchronized (job.uploadLock) {
+                        upload(job, fileName, targets, false, volumes);
+                    }
+                } finally {
+                    eBackup.getPlugin().uploadsRunning.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            eBackup.getPlugin().uploadsRunning.decrementAndGet(); // shutting down
+            if (volumes != null) volumes.cancel();
         }
+    }
 
-        eBackup.getPlugin().getLogger().info(String.format("Starting upload of %s to %s server...", fileName, isSFTP ? "SFTP" : "FTP"));
-        Bukkit.getScheduler().runTaskAsynchronously(eBackup.getPlugin(), () -> {
-            try {
-                eBackup.getPlugin().isInUpload.set(true);
+    // sends the local copy of a streamed backup to the targets the stream failed on, with the usual retries
+    private static void resendTask(BackupJob job, File f, List<UploadTarget> targets) {
+        eBackup.getPlugin().uploadsRunning.incrementAndGet();
+        try {
+            eBackup.getPlugin().uploads.execute(() -> {
+                try {
+                    synchronized (job.uploadLock) {
+                        boolean requiredFailed = false;
+                        for (UploadTarget t : targets) {
+                            boolean ok = retry(f, t);
+                            eBackup.getPlugin().metrics.targetFinished(t.name, ok);
+                            if (!ok) {
+                                eBackup.getPlugin().getLogger().warning("Upload of " + f.getName() + " to " + t + " has failed" + (t.required ? "" : " (not required)") + ", no retries are left.");
+                                requiredFailed |= t.required;
+                            }
+                        }
+                        BackupCatalog.Backup b = job.catalog.get(f.getName());
+                        if (requiredFailed || b == null || b.remote) return;
+                        uploaded(job, f, Collections.<String, String>emptyMap());
+                        eBackup.getPlugin().getLogger().info("Upload of " + f.getName() + " has succeeded!");
+                    }
+                } finally {
+                    eBackup.getPlugin().uploadsRunning.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            eBackup.getPlugin().uploadsRunning.decrementAndGet(); // shutting down
+        }
+    }
 
-                File f = new File(fileName);
-                if (isSFTP) {
-                    uploadSFTP(f, testing);
-                } else {
-                    uploadFTP(f, testing);
+    // volumes: the volumes already uploaded to every target are skipped, null if not split into volumes
+    private static void upload(BackupJob job, String fileName, List<UploadTarget> targets, boolean testing, VolumeUploads volumes) {
+        eBackup.getPlugin().getLogger().info(String.format("Starting upload of %s to %s...", fileName, targets));
+        File f = new File(fileName);
+        List<File> files = testing ? Collections.singletonList(f) : uploadFiles(job, f);
+        long start = volumes != null ? volumes.start : System.nanoTime(), size = 0;
+        for (File file : files) size += file.length();
+        Map<String, String> deltas = new LinkedHashMap<>();
+        if (volumes != null) deltas.putAll(volumes.deltas);
+        try {
+            if (testing) {
+                boolean ok = true;
+                for (UploadTarget t : targets) {
+                    try {
+                        testUpload(t, f);
+                        eBackup.getPlugin().getLogger().info("Test upload to " + t + " successful!");
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        eBackup.getPlugin().getLogger().warning("Test upload to " + t + " has failed: " + e.getMessage());
+                        ok = false;
+                    }
                 }
 
                 // delete testing file
-                if (testing) {
-                    f.delete();
-                    eBackup.getPlugin().getLogger().info("Test upload successful!");
-                } else {
-                    eBackup.getPlugin().getLogger().info("Upload of " + fileName + " has succeeded!");
+                f.delete();
+                if (ok) eBackup.getPlugin().getLogger().info("Test upload successful!");
+                return;
+            }
+
+            // every file to all targets at once, targets that fail try again on their own
+            long sent = volumes != null ? volumes.sent.get() : 0;
+            Set<UploadTarget> failed = new LinkedHashSet<>();
+            BackupCatalog.Backup b = job.catalog.get(f.getName());
+            for (File file : files) {
+                if (volumes != null && volumes.uploaded.contains(file.getName())) continue;
+                sent += uploadFile(job, b == null ? null : deltaRole(file, b.isSet(), b.isIncremental()), file, targets, deltas, failed);
+            }
+
+            boolean requiredFailed = false;
+            for (UploadTarget t : targets) {
+                eBackup.getPlugin().metrics.targetFinished(t.name, !failed.contains(t));
+                if (failed.contains(t)) {
+                    eBackup.getPlugin().getLogger().warning("Upload of " + fileName + " to " + t + " has failed" + (t.required ? "" : " (not required)")
+                            + ", it resumes with the next upload.");
+                    requiredFailed |= t.required;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+            }
+            eBackup.getPlugin().metrics.phase(BackupMetrics.UPLOAD, null, System.nanoTime() - start);
+            eBackup.getPlugin().metrics.uploadFinished(sent, System.nanoTime() - start, !requiredFailed);
+            exportMetrics();
+            if (requiredFailed) {
                 eBackup.getPlugin().getLogger().info("Upload of " + fileName + " has failed.");
-            } finally {
-                eBackup.getPlugin().isInUpload.set(false);
+                return;
             }
-        });
-    }
 
-    private static void uploadSFTP(File f, boolean testing) throws JSchException, SftpException {
-        JSch jsch = new JSch();
+            // only once every required target has it
+            uploaded(job, f, deltas);
+            deleteAfterUpload(job, f);
+            eBackup.getPlugin().getLogger().info("Upload of " + fileName + " has succeeded!");
 
-        // ssh key auth if enabled
-        if (eBackup.getPlugin().useSftpKeyAuth) {
-            if (eBackup.getPlugin().sftpPrivateKeyPassword.equals("")) {
-                jsch.addIdentity(eBackup.getPlugin().sftpPrivateKeyPath);
-            } else {
-                jsch.addIdentity(eBackup.getPlugin().sftpPrivateKeyPath, eBackup.getPlugin().sftpPrivateKeyPassword);
+            // finish uploads that were interrupted before
+            for (SegmentedUpload.Unfinished u : SegmentedUpload.unfinished(job.backupPath, targets)) {
+                File unfinished = u.file;
+                boolean patch = unfinished.getName().endsWith(DeltaTransfer.EXTENSION);
+                File archive = patch ? new File(unfinished.getPath().substring(0, unfinished.getPath().length() - DeltaTransfer.EXTENSION.length())) : unfinished;
+                if (files.contains(archive)) continue;
+                eBackup.getPlugin().getLogger().info("Resuming upload of " + unfinished.getName() + " to " + u.target + "...");
+                try {
+                    new SegmentedUpload(unfinished, u.target, eBackup.getPlugin().encryptionKey).run();
+                    eBackup.getPlugin().getLogger().info("Upload of " + unfinished.getName() + " to " + u.target + " has succeeded!");
+
+                    // uploaded once no target is left with a piece missing
+                    boolean done = true;
+                    for (UploadTarget t : targets) done &= !SegmentedUpload.journalFor(unfinished, t).exists();
+                    if (!done) continue;
+                    Map<String, String> resumed = new LinkedHashMap<>();
+                    if (patch) {
+                        // a delta of a single archive, the archive itself is next to it
+                        resumed.put(archive.getName(), DeltaTransfer.baseOf(unfinished));
+                        unfinished.delete();
+                    }
+                    uploaded(job, archive, resumed);
+                    deleteAfterUpload(job, archive);
+                } catch (IOException e) {
+                    eBackup.getPlugin().getLogger().warning("Upload of " + unfinished.getName() + " to " + u.target + " has failed: " + e.getMessage());
+                }
+            }
+            pruneRemote(job);
+        } catch (Exception e) {
+            e.printStackTrace();
+            eBackup.getPlugin().getLogger().info("Upload of " + fileName + " has failed.");
+            if (!testing) {
+                eBackup.getPlugin().metrics.uploadFinished(size, System.nanoTime() - start, false);
+                exportMetrics();
             }
         }
+    }
 
-        Session session = jsch.getSession(eBackup.getPlugin().ftpUser, eBackup.getPlugin().ftpHost, eBackup.getPlugin().ftpPort);
-        // password auth if using password
-        if (!eBackup.getPlugin().useSftpKeyAuth) {
-            session.setPassword(eBackup.getPlugin().ftpPass);
+    /**
+     * Uploads a file of a backup, as a delta against the last one uploaded whole when that is enabled and
+     * saves enough; otherwise whole, which makes it the base of the next deltas.
+     *
+     * @param role which earlier uploads the file is a delta of (see deltaRole), null to always upload it whole
+     * @param deltas gets the file and its base if it was uploaded as a delta
+     * @param failed gets the targets that don't have the file
+     * @return bytes read and sent to the targets
+     */
+    private static long uploadFile(BackupJob job, String role, File file, List<UploadTarget> targets, Map<String, String> deltas,
+                                   Set<UploadTarget> failed) throws IOException {
+        eBackup plugin = eBackup.getPlugin();
+        if (!plugin.deltaEnable || role == null || !file.getName().endsWith(".zip")) {
+            failed.addAll(send(file, targets));
+            return file.length();
         }
-        session.setConfig("StrictHostKeyChecking", "no");
-        session.connect();
 
-        Channel channel = session.openChannel("sftp");
-        channel.connect();
-        ChannelSftp sftpChannel = (ChannelSftp) channel;
-        sftpChannel.put(f.getAbsolutePath(), eBackup.getPlugin().ftpPath);
+        File signatureFile = new File(new File(job.backupPath, DeltaTransfer.SIGNATURE_DIR), role + ".sig");
 
-        if (testing) {
-            // delete testing file
-            sftpChannel.rm(eBackup.getPlugin().ftpPath + "/" + f.getName());
+        DeltaTransfer.Signature signature = null;
+        if (signatureFile.exists()) {
+            try {
+                signature = DeltaTransfer.Signature.load(signatureFile);
+            } catch (IOException e) {
+                plugin.getLogger().warning("Unable to read the delta signature " + signatureFile + ", uploading " + file.getName() + " whole: " + e.getMessage());
+            }
+        }
+        BackupCatalog.Backup base = signature == null ? null : job.catalog.owner(signature.base);
+        if (signature != null && base != null && base.remote && (base.deltas == null || !base.deltas.containsKey(signature.base))
+                && signature.deltas + 1 < plugin.deltaFullEvery) {
+            File patch = new File(file.getPath() + DeltaTransfer.EXTENSION);
+            long literal;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(patch), 1024 * 1024)) {
+                literal = DeltaTransfer.diff(signature, file, out);
+            }
+            // not worth it when most of the archive changed, that makes a better base too
+            if (literal <= file.length() / 2) {
+                long sent = patch.length();
+                Set<UploadTarget> missing = send(patch, targets);
+                failed.addAll(missing);
+                // kept until every target has it, see the resumed uploads
+                if (missing.isEmpty()) patch.delete();
+                signature.deltas++;
+                signature.save(signatureFile);
+                deltas.put(file.getName(), signature.base);
+                plugin.getLogger().info("Uploaded " + file.getName() + " as a delta of " + signature.base + ", " + sent / 1024 / 1024 + "MB instead of " + file.length() / 1024 / 1024 + "MB.");
+                return sent;
+            }
+            patch.delete();
         }
 
-        sftpChannel.exit();
-        session.disconnect();
+        Set<UploadTarget> missing = send(file, targets);
+        failed.addAll(missing);
+        // only a base once every target has it
+        if (missing.isEmpty()) DeltaTransfer.Signature.of(file, file.getName(), plugin.deltaBlockSize).save(signatureFile);
+        return file.length();
+    }
 
-        if (!testing) {
-            deleteAfterUpload(f);
-        }
+    // incrementals and each world or volume of a backup set have their own delta base, they have the most in common
+    private static String deltaRole(File file, boolean set, boolean incremental) {
+        String name = file.getName();
+        String role = set && name.endsWith("].zip") ? name.substring(name.lastIndexOf(" [") + 2, name.length() - "].zip".length()) : "archive";
+        return incremental ? role + BackupCatalog.INCREMENTAL_SUFFIX : role;
     }
 
-    private static void uploadFTP(File f, boolean testing) throws IOException {
-        FTPClient ftpClient = new FTPClient();
-        try (FileInputStream fio = new FileInputStream(f)) {
-            ftpClient.setDataTimeout(180 * 1000);
-            ftpClient.setConnectTimeout(180 * 1000);
-            ftpClient.setDefaultTimeout(180 * 1000);
-            ftpClient.setControlKeepAliveTimeout(60);
+    /**
+     * Uploads the volumes of a backup while the next ones are written, on their own threads. A volume that
+     * fails is tried again with the rest of the backup once it is written.
+     */
+    private static class VolumeUploads {
+        final BackupJob job;
+        final boolean incremental;
+        final long start = System.nanoTime();
+        // volumes every target has, the files uploaded as deltas and bytes sent
+        final Set<String> uploaded = ConcurrentHashMap.newKeySet();
+        final Map<String, String> deltas = new ConcurrentHashMap<>();
+        final AtomicLong sent = new AtomicLong();
+
+        private final ExecutorService pool;
+        private final List<Future<?>> futures = new ArrayList<>();
+        // every volume handed over, to delete them from the targets again if the backup fails
+        private final List<File> volumes = new ArrayList<>();
+        // volumes waiting on disk, the backup waits while there are too many (only when they are deleted after upload)
+        private final Semaphore pending;
 
-            ftpClient.connect(eBackup.getPlugin().ftpHost, eBackup.getPlugin().ftpPort);
-            ftpClient.enterLocalPassiveMode();
+        VolumeUploads(BackupJob job, boolean incremental) {
+            this.job = job;
+            this.incremental = incremental;
+            AtomicInteger threads = new AtomicInteger();
+            this.pool = Executors.newFixedThreadPool(eBackup.getPlugin().maxUploads, r -> {
+                Thread t = new Thread(r, "eBackup-volume-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            this.pending = eBackup.getPlugin().deleteAfterUpload ? new Semaphore(eBackup.getPlugin().volumeMaxPending) : null;
+            eBackup.getPlugin().uploadsRunning.incrementAndGet();
+        }
+
+        void add(File volume) throws IOException {
+            if (pending != null) {
+                try {
+                    pending.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for volumes to upload");
+                }
+            }
+            List<UploadTarget> targets = eBackup.getPlugin().uploadTargets;
+            volumes.add(volume);
+            futures.add(pool.submit(() -> {
+                try {
+                    Set<UploadTarget> failed = new LinkedHashSet<>();
+                    sent.addAndGet(uploadFile(job, deltaRole(volume, true, incremental), volume, targets, deltas, failed));
+                    if (!failed.isEmpty()) {
+                        eBackup.getPlugin().getLogger().warning("Upload of " + volume.getName() + " to " + failed + " has failed, it is tried again with the rest of the backup.");
+                        return;
+                    }
+                    uploaded.add(volume.getName());
+                    // not needed on disk anymore, the backup counts as local until it is deleted after upload as a whole
+                    if (pending != null && !volume.delete()) eBackup.getPlugin().getLogger().warning("Unable to delete " + volume.getName() + " after upload.");
+                } catch (Exception e) {
+                    eBackup.getPlugin().getLogger().warning("Upload of " + volume.getName() + " has failed, it is tried again with the rest of the backup: " + e.getMessage());
+                } finally {
+                    if (pending != null) pending.release();
+                }
+            }));
+        }
 
-            ftpClient.login(eBackup.getPlugin().ftpUser, eBackup.getPlugin().ftpPass);
-            ftpClient.setUseEPSVwithIPv4(true);
+        // waits for the volumes that are uploading
+        void await() {
+            try {
+                for (Future<?> f : futures) f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                // logged by the upload
+            } finally {
+                cancel();
+            }
+        }
 
-            ftpClient.changeWorkingDirectory(eBackup.getPlugin().ftpPath);
-            ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-            ftpClient.setBufferSize(1024 * 1024 * 16);
+        synchronized void cancel() {
+            if (pool.isShutdown()) return;
+            pool.shutdownNow();
+            eBackup.getPlugin().uploadsRunning.decrementAndGet();
+        }
 
-            if (ftpClient.storeFile(f.getName(), fio)) {
-                if (testing) {
-                    // delete testing file
-                    ftpClient.deleteFile(f.getName());
-                } else {
-                    deleteAfterUpload(f);
+        // the backup failed: stops the uploads and deletes what they uploaded, a set without all its volumes is of no use
+        void abort() {
+            cancel();
+            try {
+                // an upload that was already sending finishes first, so it can't put its volume back after the delete
+                if (!pool.awaitTermination(1, TimeUnit.MINUTES)) eBackup.getPlugin().getLogger().warning("Volume uploads are still running, they may leave volumes of the failed backup behind.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (UploadTarget t : eBackup.getPlugin().uploadTargets) {
+                for (File volume : volumes) {
+                    // whole or as a delta
+                    for (File f : new File[]{volume, new File(volume.getPath() + DeltaTransfer.EXTENSION)}) {
+                        try {
+                            t.backend().delete(uploadName(f)).get();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        } catch (ExecutionException e) {
+                            eBackup.getPlugin().getLogger().warning("Unable to delete " + uploadName(f) + " of the failed backup from " + t + ": " + e.getCause().getMessage());
+                        }
+                    }
                 }
-            } else {
-                // ensure that an error message is printed if the file cannot be stored
-                throw new IOException();
             }
-        } finally {
+        }
+    }
+
+    /**
+     * Uploads a file to the targets, reading it once for all of them. A single server gets it in pieces over
+     * several connections instead. Targets that fail try again on their own, waiting longer every time.
+     *
+     * @return the targets that don't have the file, the upload resumes with the next one
+     */
+    private static Set<UploadTarget> send(File file, List<UploadTarget> targets) {
+        Map<UploadTarget, Exception> failures;
+        if (targets.size() == 1) {
+            failures = new LinkedHashMap<>();
+            try {
+                put(file, targets.get(0));
+            } catch (IOException e) {
+                failures.put(targets.get(0), e);
+            }
+        } else {
+            try {
+                failures = FanOutUpload.send(file, uploadName(file), targets, eBackup.getPlugin().throttle, eBackup.getPlugin().encryptionKey,
+                        eBackup.getPlugin().encryptionThreads);
+            } catch (IOException e) {
+                // the file itself couldn't be read
+                failures = new LinkedHashMap<>();
+                for (UploadTarget t : targets) failures.put(t, e);
+            }
+        }
+        if (failures.isEmpty()) return Collections.emptySet();
+
+        Set<UploadTarget> missing = ConcurrentHashMap.newKeySet();
+        List<Thread> retries = new ArrayList<>();
+        for (Map.Entry<UploadTarget, Exception> e : failures.entrySet()) {
+            UploadTarget t = e.getKey();
+            eBackup.getPlugin().getLogger().warning("Upload of " + file.getName() + " to " + t + " has failed: " + e.getValue().getMessage());
+            Thread thread = new Thread(() -> {
+                if (!retry(file, t)) missing.add(t);
+            }, "eBackup-retry-" + t.name);
+            thread.setDaemon(true);
+            thread.start();
+            retries.add(thread);
+        }
+        try {
+            for (Thread thread : retries) thread.join();
+        } catch (InterruptedException e) {
+            for (Thread thread : retries) thread.interrupt();
+            Thread.currentThread().interrupt();
+            missing.addAll(failures.keySet());
+        }
+        return missing;
+    }
+
+    // upload retries of one target with exponential backoff, true once it has the file
+    private static boolean retry(File file, UploadTarget t) {
+        long delay = eBackup.getPlugin().uploadRetryDelay * 1000L;
+        for (int attempt = 1; attempt <= eBackup.getPlugin().uploadRetries; attempt++, delay *= 2) {
             try {
-                ftpClient.disconnect();
+                Thread.sleep(delay);
+                put(file, t);
+                eBackup.getPlugin().getLogger().info("Upload of " + file.getName() + " to " + t + " has succeeded on retry " + attempt + ".");
+                return true;
             } catch (IOException e) {
-                e.printStackTrace();
+                eBackup.getPlugin().getLogger().warning("Retry " + attempt + " of " + eBackup.getPlugin().uploadRetries + " uploading " + file.getName() + " to " + t + " has failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // uploads a whole file to one target, in pieces to a server
+    private static void put(File file, UploadTarget t) throws IOException {
+        if (!t.isLocal()) {
+            new SegmentedUpload(file, t, eBackup.getPlugin().encryptionKey).run();
+            return;
+        }
+        Exception e = FanOutUpload.send(file, uploadName(file), Collections.singletonList(t), eBackup.getPlugin().throttle,
+                eBackup.getPlugin().encryptionKey, eBackup.getPlugin().encryptionThreads).get(t);
+        if (e != null) throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+
+    // name of a file on the targets, encrypted uploads have the .enc extension
+    private static String uploadName(File file) {
+        return eBackup.getPlugin().encryptionKey != null ? file.getName() + BackupCrypto.EXTENSION : file.getName();
+    }
+
+    // whether a required target is among the failed ones
+    private static boolean requiredFailed(Map<UploadTarget, Exception> failures) {
+        for (UploadTarget t : failures.keySet()) {
+            if (t.required) return true;
+        }
+        return false;
+    }
+
+    // uploads are read back from the first required target, which every uploaded backup is on
+    private static UploadTarget verifyTarget() {
+        for (UploadTarget t : eBackup.getPlugin().uploadTargets) {
+            if (t.required) return t;
+        }
+        return eBackup.getPlugin().uploadTargets.get(0);
+    }
+
+    // a file of an uploaded backup as it was uploaded, rebuilt from its base if it was uploaded as a delta
+    private static InputStream openRemote(BackupCatalog catalog, BackupCatalog.Backup b, String name) throws IOException {
+        String base = b.deltas == null ? null : b.deltas.get(name);
+        if (base == null) return download(b, name);
+        BackupCatalog.Backup owner = catalog.owner(base);
+
+        File baseFile = File.createTempFile("ebackup-base", ".zip"), rebuilt = File.createTempFile("ebackup-rebuilt", ".zip");
+        try {
+            try (InputStream in = download(owner != null ? owner : b, base)) {
+                Files.copy(in, baseFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (InputStream in = download(b, name + DeltaTransfer.EXTENSION); OutputStream out = new BufferedOutputStream(new FileOutputStream(rebuilt))) {
+                DeltaTransfer.apply(baseFile, in, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            rebuilt.delete();
+            throw e;
+        } finally {
+            baseFile.delete();
+        }
+        return new FilterInputStream(new FileInputStream(rebuilt)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                rebuilt.delete();
+            }
+        };
+    }
+
+    // a file of an uploaded backup from the target uploads are read back from, decrypted if it was uploaded encrypted
+    private static InputStream download(BackupCatalog.Backup b, String name) throws IOException {
+        InputStream in = verifyTarget().backend().openDownload(b.encrypted ? name + BackupCrypto.EXTENSION : name);
+        if (!b.encrypted) return in;
+        try {
+            BackupCrypto.Key key = eBackup.getPlugin().encryptionKey;
+            if (key == null) throw new IOException(b.name + " was uploaded encrypted, enable encryption with the same key to read it");
+            return BackupCrypto.decrypt(key, new BufferedInputStream(in, 1024 * 1024));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // uploads the test file, checks that it is listed and deletes it again
+    private static void testUpload(UploadTarget t, File f) throws Exception {
+        StorageBackend backend = t.backend();
+        try {
+            backend.put(f.getName(), f).get();
+            if (!backend.list().get().contains(f.getName())) throw new IOException(f.getName() + " was uploaded but isn't listed");
+            backend.delete(f.getName()).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    // writes to both streams, used to keep a local copy of streamed backups
+    private static OutputStream tee(OutputStream a, OutputStream b) {
+        return new OutputStream() {
+            @Override
+            public void write(int v) throws IOException {
+                a.write(v);
+                b.write(v);
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                a.write(buf, off, len);
+                b.write(buf, off, len);
             }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    a.close();
+                } finally {
+                    b.close();
+                }
+            }
+        };
+    }
+
+    private static void deleteStaging(File staging) {
+        if (staging == null) return;
+        try {
+            WorldSnapshot.delete(staging);
+        } catch (IOException e) {
+            eBackup.getPlugin().getLogger().warning("Unable to delete the world snapshot in " + staging + ": " + e.getMessage());
+        }
+    }
+
+    private static void exportMetrics() {
+        File file = eBackup.getPlugin().metricsFile;
+        if (file == null) return;
+        try {
+            MetricsServer.writeFile(eBackup.getPlugin().metrics, file);
+        } catch (IOException e) {
+            eBackup.getPlugin().getLogger().warning("Unable to write the metrics to " + file + ": " + e.getMessage());
         }
     }
 
-    private static void deleteAfterUpload(File f) {
+    private static void deleteAfterUpload(BackupJob job, File f) {
         if (eBackup.getPlugin().deleteAfterUpload) {
+            BackupCatalog.Backup b = job.catalog.get(f.getName());
+            // parts of a backup set go with their set file, once all of them are uploaded
+            if (b == null && job.catalog.setOf(f.getName()) != null) return;
             Bukkit.getScheduler().runTaskAsynchronously(eBackup.getPlugin(), () -> {
-                if (f.delete()) {
+                if (b != null ? delete(job.catalog.files(b), eBackup.getPlugin().getLogger()) : f.delete()) {
                     eBackup.getPlugin().getLogger().info("Successfully deleted " + f.getName() + " after upload.");
+                    if (b != null) {
+                        job.catalog.setLocation(b, false, b.remote);
+                        try {
+                            job.catalog.save();
+                        } catch (IOException e) {
+                            eBackup.getPlugin().getLogger().warning("Unable to save the backup catalog: " + e.getMessage());
+                        }
+                    }
                 } else {
                     eBackup.getPlugin().getLogger().warning("Unable to delete " + f.getName() + " after upload.");
                 }
@@ -304,14 +1383,14 @@ public class BackupUtil {
     }
 
     // recursively compress files and directories
-    private static void zipFile(File fileToZip, String fileName, ZipOutputStream zipOut) throws IOException {
+    // previous/current are the manifests of the last and this backup (null when not incremental)
+    // unchanged: folders the change tracker knows are the same as in the previous backup (null if it doesn't know)
+    // regionDeltas: store changed chunks of region files only, see RegionDelta
+    static void zipFile(File fileToZip, String fileName, ArchiveWriter zipOut, IgnoreMatcher ignore, BackupManifest previous, BackupManifest current,
+                        Predicate<String> unchanged, boolean regionDeltas, Logger log) throws IOException {
         // don't ignore hidden folders
         // if (fileToZip.isHidden() && !fileToZip.getPath().equals(".")) return;
 
-        for (File f : eBackup.getPlugin().ignoredFiles) { // return if it is ignored file
-            if (f.getCanonicalPath().equals(fileToZip.getCanonicalPath())) return;
-        }
-
         // fix windows archivers not being able to see files because they don't support / (root) for zip files
         if (fileName.startsWith("/") || fileName.startsWith("\\")) {
             fileName = fileName.substring(1);
@@ -325,31 +1404,79 @@ public class BackupUtil {
             fileName = fileName.substring(0, fileName.length()-2);
         }
 
+        // return if it is ignored file (checked before touching the disk, so ignored folders are never listed)
+        if (!fileName.isEmpty() && ignore.isIgnored(fileName)) return;
+
         if (fileToZip.isDirectory()) { // if it's a directory, recursively search
-            if (fileName.endsWith("/")) {
-                zipOut.putNextEntry(new ZipEntry(fileName));
-            } else {
-                zipOut.putNextEntry(new ZipEntry(fileName + "/"));
-            }
-            zipOut.closeEntry();
+            // nothing in it changed, its files are taken from the previous manifest without listing it
+            if (unchanged != null && previous != null && !fileName.isEmpty() && unchanged.test(fileName) && keepUnchanged(fileName, ignore, previous, current)) return;
+
+            zipOut.putDirectory(fileName, fileToZip.lastModified());
+            // in name order, so unchanged files end up in the same place in every archive (see DeltaTransfer)
             File[] children = fileToZip.listFiles();
+            Arrays.sort(children, Comparator.comparing(File::getName));
             for (File childFile : children) {
-                zipFile(childFile, fileName + "/" + childFile.getName(), zipOut);
+                zipFile(childFile, fileName + "/" + childFile.getName(), zipOut, ignore, previous, current, unchanged, regionDeltas, log);
             }
         } else { // if it's a file, store
+            long size = fileToZip.length(), modified = fileToZip.lastModified();
+            boolean region = current != null && regionDeltas && RegionDelta.isRegionFile(fileName);
+            BackupManifest.FileState old = previous == null ? null : previous.get(fileName);
+            if (old != null && old.size == size && old.modified == modified) { // unchanged since the last backup
+                current.put(fileName, old);
+                if (region) current.putRegionTimestamps(fileName, previous.getRegionTimestamps(fileName));
+                return;
+            }
+
             try {
-                FileInputStream fis = new FileInputStream(fileToZip);
-                ZipEntry zipEntry = new ZipEntry(fileName);
-                zipOut.putNextEntry(zipEntry);
-                byte[] bytes = new byte[1024];
-                int length;
-                while ((length = fis.read(bytes)) >= 0) {
-                    zipOut.write(bytes, 0, length);
+                int[] timestamps = region ? RegionDelta.readTimestamps(fileToZip) : null;
+                int[] oldTimestamps = region && old != null ? previous.getRegionTimestamps(fileName) : null;
+                byte[] delta = timestamps != null && oldTimestamps != null ? RegionDelta.create(fileToZip, oldTimestamps) : null;
+                if (delta != null) {
+                    // only the chunks saved since the last backup
+                    zipOut.putBytes(fileName + RegionDelta.EXTENSION, delta, modified);
+                } else {
+                    zipOut.putFile(fileName, fileToZip);
                 }
-                fis.close();
+                if (current != null) {
+                    current.put(fileName, new BackupManifest.FileState(size, modified, null));
+                    current.putRegionTimestamps(fileName, timestamps);
+                }
+            } catch (ArchiveWriter.TruncatedEntryException e) {
+                log.warning("Error while backing up file " + fileName + ", backup has it cut short: " + e.getMessage());
+                if (current != null) current.put(fileName, new BackupManifest.FileState(-1, modified, null));
             } catch (IOException e) {
-                eBackup.getPlugin().getLogger().warning("Error while backing up file " + fileName + ", backup will ignore this file: " + e.getMessage());
+                log.warning("Error while backing up file " + fileName + ", backup will ignore this file: " + e.getMessage());
+                // make sure the next incremental backup tries again
+                if (current != null) current.put(fileName, new BackupManifest.FileState(-1, modified, null));
             }
         }
     }
+
+    // copies the files of an unchanged folder from the previous manifest, false if one of them has to be read again
+    private static boolean keepUnchanged(String folder, IgnoreMatcher ignore, BackupManifest previous, BackupManifest current) {
+        if (!allStored(folder, previous)) return false;
+        for (String path : previous.pathsUnder(folder)) {
+            if (isIgnoredBelow(folder, path, ignore)) continue;
+            current.put(path, previous.get(path));
+            current.putRegionTimestamps(path, previous.getRegionTimestamps(path));
+        }
+        return true;
+    }
+
+    // whether the previous backup has all files of a folder, none of them failed
+    private static boolean allStored(String folder, BackupManifest previous) {
+        for (String path : previous.pathsUnder(folder)) {
+            if (previous.get(path).size < 0) return false;
+        }
+        return true;
+    }
+
+    // whether a path or one of its folders below folder is ignored (e.g. by rules added since the last backup)
+    private static boolean isIgnoredBelow(String folder, String path, IgnoreMatcher ignore) {
+        for (int i = path.indexOf('/', folder.length() + 1); i >= 0; i = path.indexOf('/', i + 1)) {
+            if (ignore.isIgnored(path.substring(0, i))) return true;
+        }
+        return ignore.isIgnored(path);
+    }
 }
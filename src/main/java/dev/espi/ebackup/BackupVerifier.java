@@ -0,0 +1,384 @@
+package dev.espi.ebackup;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Reads finished backups back and checks them: the SHA-256 of the archive against the catalog, the CRC of
+ * every zip entry, and the content hash of every file against the manifest the backup was made with.
+ *
+ * Zip entries are checked on several threads that each have their own handle on the archive, tar.zst and
+ * tar.lz4 are read front to back next to the archive checksum, repository snapshots check each chunk they
+ * use once. Checks run one after another on a low priority background thread and go through the
+ * {@link Throttle}, so they neither hold up the next backup nor the server.
+ */
+public class BackupVerifier {
+
+    static final String OK = "ok", INCOMPLETE = "incomplete", FAILED = "failed";
+
+    // problems listed per check, the rest are only counted
+    private static final int MAX_PROBLEMS = 10;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    static class Result {
+        final String status;
+        final List<String> problems;
+        final long bytes, nanos;
+
+        Result(String status, List<String> problems, long bytes, long nanos) {
+            this.status = status;
+            this.problems = problems;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+    }
+
+    private final int threads;
+    private final Throttle throttle;
+    private final ExecutorService queue;
+
+    public BackupVerifier(int threads, Throttle throttle) {
+        this.threads = Math.max(1, threads);
+        this.throttle = throttle;
+        this.queue = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "eBackup-verify");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    // runs a check after the ones already queued
+    public void later(Runnable check) {
+        queue.execute(check);
+    }
+
+    // stops the running check, queued ones are dropped
+    public void stop() {
+        queue.shutdownNow();
+    }
+
+    /**
+     * Checks a local backup.
+     *
+     * @param manifest state of the files when the backup was made, null to only check checksums and CRCs
+     * @param unreadable files that could not be read while the backup was made, they make it incomplete
+     */
+    public Result verify(BackupCatalog catalog, BackupCatalog.Backup backup, BackupManifest manifest, long unreadable) throws IOException {
+        long start = System.nanoTime();
+        Check check = new Check();
+        if (backup.type.equals(BackupCatalog.SNAPSHOT)) {
+            verifySnapshot(new ChunkRepository(new File(catalog.getDir(), BackupCatalog.REPOSITORY_DIR)), catalog.snapshotFile(backup.name), check);
+        } else {
+            File f = new File(catalog.getDir(), backup.name);
+            if (!f.exists()) throw new FileNotFoundException(f.getPath());
+            if (backup.isSet()) {
+                // the set file, then each archive against the checksum in it
+                check.checksum(paced(new FileInputStream(f)), backup.checksum);
+                for (BackupSet.Part part : BackupSet.load(f).parts) {
+                    File archive = new File(catalog.getDir(), part.name);
+                    if (!archive.exists()) throw new FileNotFoundException(archive.getPath());
+                    verifyArchive(archive, part.checksum, manifest, check);
+                }
+            } else {
+                verifyArchive(f, backup.checksum, manifest, check);
+            }
+        }
+        if (unreadable > 0 && check.failures.get() == 0) {
+            check.problems.add(unreadable + " file(s) could not be read while backing up and are missing");
+            return new Result(INCOMPLETE, check.problems, check.bytes.get(), System.nanoTime() - start);
+        }
+        return check.result(start);
+    }
+
+    /**
+     * Checks a copy of a backup, e.g. downloaded from the FTP/SFTP server, against its SHA-256.
+     */
+    public Result verify(InputStream in, String checksum) throws IOException {
+        long start = System.nanoTime();
+        Check check = new Check();
+        check.checksum(paced(in), checksum);
+        return check.result(start);
+    }
+
+    // one result for the checks of the parts of a backup set
+    static Result combine(List<Result> results) {
+        String status = OK;
+        List<String> problems = new ArrayList<>();
+        long bytes = 0, nanos = 0;
+        for (Result r : results) {
+            if (r.status.equals(FAILED) || (r.status.equals(INCOMPLETE) && status.equals(OK))) status = r.status;
+            problems.addAll(r.problems);
+            bytes += r.bytes;
+            nanos += r.nanos;
+        }
+        return new Result(status, problems, bytes, nanos);
+    }
+
+    // problems found by one check, from several threads
+    private static class Check {
+        final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+
+        void fail(String problem) {
+            if (failures.incrementAndGet() <= MAX_PROBLEMS) problems.add(problem);
+        }
+
+        Result result(long start) {
+            if (failures.get() > MAX_PROBLEMS) problems.add("and " + (failures.get() - MAX_PROBLEMS) + " more");
+            return new Result(failures.get() == 0 ? OK : FAILED, problems, bytes.get(), System.nanoTime() - start);
+        }
+
+        void checksum(InputStream in, String checksum) throws IOException {
+            if (checksum == null) return;
+            MessageDigest md = BackupManifest.newDigest();
+            try (InputStream digest = new DigestInputStream(in, md)) {
+                bytes.addAndGet(drain(digest));
+            }
+            String actual = BackupManifest.toHex(md.digest());
+            if (!actual.equals(checksum)) fail("archive checksum is " + actual + ", expected " + checksum);
+        }
+
+        // compares a file in the archive with the manifest, data is read to the end either way
+        void content(String name, InputStream data, BackupManifest manifest) throws IOException {
+            BackupManifest.FileState state = manifest == null || name.endsWith(RegionDelta.EXTENSION) ? null : manifest.get(name);
+            if (state == null || state.hash == null) {
+                bytes.addAndGet(drain(data));
+                return;
+            }
+            CountingInputStream counted = new CountingInputStream(data);
+            String hash = BackupManifest.contentHash(counted);
+            drain(counted);
+            bytes.addAndGet(counted.count);
+            if (counted.count != state.size) {
+                fail(name + " is " + counted.count + " bytes, expected " + state.size);
+            } else if (!hash.equals(state.hash)) {
+                fail(name + " has content hash " + hash + ", expected " + state.hash);
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buf)) > 0) total += n;
+        return total;
+    }
+
+    private void verifyArchive(File archive, String checksum, BackupManifest manifest, Check check) throws IOException {
+        if (archive.getName().endsWith(".zip")) {
+            verifyZip(archive, checksum, manifest, check);
+        } else {
+            verifyTar(archive, checksum, manifest, check);
+        }
+    }
+
+    private void verifyZip(File archive, String checksum, BackupManifest manifest, Check check) throws IOException {
+        Queue<String> entries = new ConcurrentLinkedQueue<>();
+        try (ZipFile zip = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) entries.add(entry.getName());
+            }
+        }
+
+        // one worker checks the archive as a whole while the others go through the entries
+        AtomicBoolean checksummed = new AtomicBoolean(checksum == null);
+        runWorkers(Math.min(threads, entries.size() + 1), () -> {
+            if (checksummed.compareAndSet(false, true)) {
+                check.checksum(paced(new FileInputStream(archive)), checksum);
+            }
+            try (ZipFile zip = new ZipFile(archive)) {
+                String name;
+                while ((name = entries.poll()) != null) {
+                    ZipEntry entry = zip.getEntry(name);
+                    String entryName = name;
+                    paced(() -> {
+                        // ZipFile doesn't check CRCs itself
+                        CheckedInputStream in = new CheckedInputStream(zip.getInputStream(entry), new CRC32());
+                        try {
+                            check.content(entryName, in, manifest);
+                        } catch (IOException ex) {
+                            check.fail(entryName + " can't be read: " + ex.getMessage());
+                            return;
+                        } finally {
+                            in.close();
+                        }
+                        if (in.getChecksum().getValue() != entry.getCrc()) check.fail(entryName + " has a wrong CRC");
+                    });
+                }
+            }
+            return null;
+        });
+    }
+
+    private void verifyTar(File archive, String checksum, BackupManifest manifest, Check check) throws IOException {
+        // compressed tar can only be read front to back, the archive checksum is read next to it
+        runWorkers(checksum == null ? 1 : 2, new Callable<Void>() {
+            final AtomicBoolean checksummed = new AtomicBoolean(checksum == null);
+
+            @Override
+            public Void call() throws IOException {
+                if (checksummed.compareAndSet(false, true)) {
+                    check.checksum(paced(new FileInputStream(archive)), checksum);
+                    return null;
+                }
+                InputStream raw = paced(new FileInputStream(archive));
+                InputStream decompressed = archive.getName().endsWith("." + TarArchiveWriter.ZSTD) ? new ZstdInputStream(raw) : new LZ4FrameInputStream(raw);
+                try (TarArchiveInputStream tar = new TarArchiveInputStream(decompressed, "UTF-8")) {
+                    TarArchiveEntry e;
+                    while ((e = tar.getNextTarEntry()) != null) {
+                        if (!e.isDirectory()) check.content(e.getName(), tar, manifest);
+                    }
+                } catch (IOException e) {
+                    check.fail("archive can't be read: " + e.getMessage());
+                }
+                return null;
+            }
+        });
+    }
+
+    // every chunk the snapshot uses must be there and hash to its name
+    private void verifySnapshot(ChunkRepository repo, File snapshot, Check check) throws IOException {
+        Queue<String> chunks = new ConcurrentLinkedQueue<>();
+        Set<String> seen = new HashSet<>();
+        for (ChunkRepository.FileRecord record : repo.readSnapshot(snapshot).values()) {
+            for (String hash : record.chunks) {
+                if (seen.add(hash)) chunks.add(hash);
+            }
+        }
+        runWorkers(threads, () -> {
+            MessageDigest md = BackupManifest.newDigest();
+            String hash;
+            while ((hash = chunks.poll()) != null) {
+                String chunk = hash;
+                paced(() -> {
+                    byte[] data;
+                    try {
+                        data = repo.readChunk(chunk);
+                    } catch (IOException e) {
+                        check.fail("chunk " + chunk + " can't be read: " + e.getMessage());
+                        return;
+                    }
+                    check.bytes.addAndGet(data.length);
+                    if (!BackupManifest.toHex(md.digest(data)).equals(chunk)) check.fail("chunk " + chunk + " is corrupt");
+                });
+            }
+            return null;
+        });
+    }
+
+    // a whole file read front to back, slowed down while the server is busy
+    private InputStream paced(InputStream in) {
+        return new BufferedInputStream(new FilterInputStream(in) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                int n = in.read(b, off, len);
+                throttle.pace(System.nanoTime() - start);
+                return n;
+            }
+        }, BUFFER_SIZE);
+    }
+
+    private interface IOTask {
+        void run() throws IOException;
+    }
+
+    // one unit of work, only as many run at once as the server allows
+    private void paced(IOTask task) throws IOException {
+        try {
+            throttle.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying");
+        }
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            throttle.release();
+        }
+        throttle.pace(System.nanoTime() - start);
+    }
+
+    private static void runWorkers(int count, Callable<Void> worker) throws IOException {
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, count), r -> {
+            Thread t = new Thread(r, "eBackup-verify-" + n.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < Math.max(1, count); i++) futures.add(pool.submit(worker));
+            for (Future<Void> f : futures) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error while verifying", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
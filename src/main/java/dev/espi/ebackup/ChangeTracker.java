@@ -0,0 +1,408 @@
+package dev.espi.ebackup;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Keeps track of which folders of the server changed between backups, so unchanged ones don't have to be
+ * listed again.
+ *
+ * Every folder that isn't ignored is watched with a {@link WatchService}. Each change gets the next number
+ * of a counter, which is recorded for its folder and all folders above it; a backup takes a mark (the
+ * current number) before it reads a tree, and the next one skips every folder whose number is still at or
+ * below that mark. Events can get lost (the queue overflows, a folder can't be watched), so those make all
+ * older marks useless, and every few minutes the tree is walked in the background to catch anything the
+ * events missed, going by last modified times.
+ *
+ * Paths are relative to the server folder with / between folders, the server folder itself is "".
+ */
+public class ChangeTracker {
+
+    // how long a backup waits for the events of changes made before it
+    private static final long SYNC_TIMEOUT_MILLIS = 5000;
+    // last modified times can be this far behind the clock
+    private static final long MODIFIED_SLACK_MILLIS = 2000;
+
+    private final Path root;
+    private final IgnoreMatcher ignore;
+    private final long reconcileMillis;
+    private final Logger log;
+
+    private WatchService watcher;
+    private Thread thread;
+    private ScheduledExecutorService reconciler;
+
+    private final Map<WatchKey, String> keys = new ConcurrentHashMap<>();
+    private final Map<String, WatchKey> watched = new ConcurrentHashMap<>();
+    // number of the last change in a folder or below it, and directly in it
+    private final Map<String, Long> changedTree = new ConcurrentHashMap<>(), changedHere = new ConcurrentHashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    // marks before this are useless, since events got lost after them
+    private volatile long lost = Long.MAX_VALUE;
+    private volatile boolean registrationFailed = false;
+    private long lastReconcile;
+
+    // a temporary folder written to by sync(), its events come after those of everything written before
+    private Path syncDir;
+    private WatchKey syncKey;
+    private final AtomicLong syncs = new AtomicLong();
+    private long synced = 0;
+
+    /**
+     * @param root the server folder
+     * @param ignore folders and files whose changes don't count, ignored folders aren't watched
+     */
+    public ChangeTracker(Path root, IgnoreMatcher ignore, int reconcileMinutes, Logger log) {
+        this.root = root;
+        this.ignore = ignore;
+        this.reconcileMillis = reconcileMinutes * 60000L;
+        this.log = log;
+    }
+
+    // watches the server folder in the background, marks are -1 until every folder is watched
+    public void start() throws IOException {
+        watcher = root.getFileSystem().newWatchService();
+        syncDir = Files.createTempDirectory("eBackup-watch");
+        syncKey = syncDir.register(watcher, ENTRY_CREATE);
+
+        thread = new Thread(this::run, "eBackup-watch");
+        thread.setDaemon(true);
+        thread.start();
+
+        reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "eBackup-reconcile");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        reconciler.execute(() -> {
+            long started = System.currentTimeMillis();
+            if (!register(root, false)) {
+                log.warning("Unable to watch every folder of the server, change tracking is off until the next check.");
+            } else if (!sync()) {
+                log.warning("File system events are not delivered in time here, change tracking is off.");
+                stop();
+                return;
+            } else {
+                lost = seq.incrementAndGet();
+                log.info("Watching " + watched.size() + " folders for changes.");
+            }
+            lastReconcile = started;
+        });
+        if (reconcileMillis > 0) reconciler.scheduleWithFixedDelay(this::reconcile, reconcileMillis, reconcileMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        lost = Long.MAX_VALUE;
+        if (reconciler != null) reconciler.shutdownNow();
+        if (thread != null) thread.interrupt();
+        try {
+            if (watcher != null) watcher.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            if (syncDir != null) Files.deleteIfExists(syncDir);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Waits until the changes made so far are counted and returns the current mark, to be taken right before
+     * a tree is read.
+     *
+     * @return the mark, or -1 if changes can't be tracked right now
+     */
+    public long mark() {
+        if (lost == Long.MAX_VALUE || !sync()) return -1;
+        long mark = seq.get();
+        return lost <= mark ? mark : -1;
+    }
+
+    /**
+     * Folders with nothing changed in them or below them since a mark. The answers change as new events
+     * come in, so it is asked right before a folder would be listed.
+     */
+    public Predicate<String> unchangedSince(long mark) {
+        return folder -> unchanged(folder, mark, Collections.emptySet());
+    }
+
+    /**
+     * Whether nothing changed in a folder or below it since a mark, apart from in the excluded folders
+     * (which are checked on their own, e.g. the worlds below the server folder).
+     */
+    public boolean unchanged(String folder, long mark, Collection<String> except) {
+        if (except.contains(folder)) return true;
+        if (mark < 0 || lost > mark || !watched.containsKey(folder)) return false;
+        if (changedTree.getOrDefault(folder, 0L) <= mark) return true;
+        if (except.isEmpty() || changedHere.getOrDefault(folder, 0L) > mark) return false;
+
+        // maybe only the excluded folders changed, look further down
+        for (String f : watched.keySet()) {
+            if (isChild(folder, f) && !unchanged(f, mark, except)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The marks one backup took, by the tree they were taken for (a world folder, or "" for the other files).
+     */
+    public static class Marks {
+        private final ChangeTracker tracker;
+        private final Map<String, Long> marks = new ConcurrentHashMap<>();
+
+        public Marks(ChangeTracker tracker) {
+            this.tracker = tracker;
+        }
+
+        /**
+         * Takes a mark for a tree that is about to be read.
+         *
+         * @param last marks of the last backup, or null
+         * @return the folders of the tree that didn't change since the last backup, or null if that isn't known
+         */
+        public Predicate<String> take(String tree, Marks last) {
+            long mark = tracker.mark();
+            if (mark < 0) return null;
+            marks.put(tree, mark);
+            Long since = last != null && last.tracker == tracker ? last.marks.get(tree) : null;
+            return since == null ? null : tracker.unchangedSince(since);
+        }
+
+        // whether nothing changed in a tree since its mark, see ChangeTracker#unchanged
+        public boolean unchanged(String tree, Collection<String> except) {
+            Long since = marks.get(tree);
+            return since != null && tracker.unchanged(tree, since, except);
+        }
+
+        public boolean isFrom(ChangeTracker tracker) {
+            return this.tracker == tracker;
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                if (key == syncKey) {
+                    synced(key);
+                    continue;
+                }
+
+                String folder = keys.get(key);
+                for (WatchEvent<?> e : key.pollEvents()) {
+                    if (e.kind() == OVERFLOW) {
+                        lost = seq.incrementAndGet();
+                        continue;
+                    }
+                    if (folder == null) continue;
+                    String child = child(folder, e.context().toString());
+                    if (ignore.isIgnored(child)) continue;
+                    changed(folder);
+
+                    if (e.kind() == ENTRY_DELETE) {
+                        unwatch(child); // deleted or moved away, a folder moved back in is new
+                    } else if (e.kind() == ENTRY_CREATE) {
+                        Path p = root.resolve(child);
+                        if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) register(p, true);
+                    }
+                }
+                if (!key.reset() && folder != null) unwatch(folder);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void synced(WatchKey key) {
+        long last = 0;
+        for (WatchEvent<?> e : key.pollEvents()) {
+            try {
+                last = Math.max(last, Long.parseLong(e.context().toString()));
+            } catch (NumberFormatException | NullPointerException ignored) {
+            }
+        }
+        key.reset();
+        synchronized (this) {
+            if (last > synced) synced = last;
+            notifyAll();
+        }
+    }
+
+    // the file system queues events of every watched folder in order, so once a file created now is seen the
+    // events of all earlier changes are counted
+    private boolean sync() {
+        long token = syncs.incrementAndGet();
+        try {
+            Path p = syncDir.resolve(Long.toString(token));
+            Files.createFile(p);
+            Files.delete(p);
+        } catch (IOException e) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+        synchronized (this) {
+            try {
+                while (synced < token) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) return false;
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // walks the tree in case events got lost: folders not watched yet and recently modified files count as changed
+    private void reconcile() {
+        long started = System.currentTimeMillis(), since = lastReconcile - MODIFIED_SLACK_MILLIS;
+        boolean complete = walk(root, (folder, attrs, isNew) -> {
+            if (isNew || attrs.lastModifiedTime().toMillis() >= since) changed(folder);
+        }, (folder, attrs) -> {
+            if (attrs.lastModifiedTime().toMillis() >= since) changed(folder);
+        });
+        if (complete && lost == Long.MAX_VALUE && registrationFailed) {
+            registrationFailed = false;
+            lost = seq.incrementAndGet();
+            log.info("Every folder of the server is watched again, change tracking is back on.");
+        }
+        lastReconcile = started;
+    }
+
+    // watches a folder and the folders in it, counting them as changed if they are new
+    private boolean register(Path start, boolean isNew) {
+        return walk(start, (folder, attrs, registered) -> {
+            if (isNew && registered) changed(folder);
+        }, null);
+    }
+
+    private interface FolderVisitor {
+        void visit(String folder, BasicFileAttributes attrs, boolean registered);
+    }
+
+    private interface FileVisitor {
+        void visit(String folder, BasicFileAttributes attrs);
+    }
+
+    // watches every folder below start that isn't watched yet, false if one of them can't be
+    private boolean walk(Path start, FolderVisitor folders, FileVisitor files) {
+        boolean[] complete = {true};
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String folder = relative(dir);
+                    if (!folder.isEmpty() && ignore.isIgnored(folder)) return FileVisitResult.SKIP_SUBTREE;
+                    boolean registered = false;
+                    if (!watched.containsKey(folder)) {
+                        try {
+                            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                            keys.put(key, folder);
+                            watched.put(folder, key);
+                            registered = true;
+                        } catch (IOException e) {
+                            failed(folder, e);
+                            complete[0] = false;
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                    }
+                    folders.visit(folder, attrs, registered);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (files != null && !ignore.isIgnored(relative(file))) files.visit(relative(file.getParent()), attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE; // e.g. deleted while walking, its folder has the event
+                }
+            });
+        } catch (IOException e) {
+            failed(relative(start), e);
+            return false;
+        } catch (ClosedWatchServiceException e) {
+            return false; // stopped
+        }
+        return complete[0];
+    }
+
+    // e.g. over the inotify watch limit, nothing can be skipped until every folder is watched
+    private void failed(String folder, IOException e) {
+        if (!registrationFailed) log.warning("Unable to watch " + (folder.isEmpty() ? "the server folder" : folder) + " for changes: " + e);
+        registrationFailed = true;
+        lost = Long.MAX_VALUE;
+    }
+
+    private void changed(String folder) {
+        long s = seq.incrementAndGet();
+        changedHere.merge(folder, s, Math::max);
+        for (String f = folder; ; f = parent(f)) {
+            changedTree.merge(f, s, Math::max);
+            if (f.isEmpty()) break;
+        }
+    }
+
+    private void unwatch(String folder) {
+        for (Map.Entry<String, WatchKey> e : watched.entrySet()) {
+            String f = e.getKey();
+            if (f.equals(folder) || f.startsWith(folder.isEmpty() ? "" : folder + "/")) {
+                e.getValue().cancel();
+                keys.remove(e.getValue());
+                watched.remove(f);
+            }
+        }
+    }
+
+    private String relative(Path p) {
+        return IgnoreMatcher.normalize(root.relativize(p).toString());
+    }
+
+    private static String child(String folder, String name) {
+        return folder.isEmpty() ? name : folder + "/" + name;
+    }
+
+    private static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "" : path.substring(0, slash);
+    }
+
+    private static boolean isChild(String folder, String path) {
+        return !path.isEmpty() && !path.equals(folder) && parent(path).equals(folder);
+    }
+}
@@ -0,0 +1,459 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.*;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Deduplicating backup repository.
+ *
+ * Files are cut into content-defined chunks (gear rolling hash, so an insert only changes the chunks around it),
+ * and every chunk is compressed once and stored under its SHA-256 in chunks/. A backup is a snapshot in
+ * snapshots/ listing the chunks of each file, so unchanged data costs nothing in later backups.
+ */
+public class ChunkRepository {
+
+    static final String SNAPSHOT_EXTENSION = ".snapshot";
+    private static final String HEADER = "# eBackup snapshot v1";
+
+    // chunk sizes: cut points are searched between MIN and MAX, about every 256 KB past MIN
+    private static final int MIN_CHUNK = 64 * 1024, MAX_CHUNK = 1024 * 1024;
+    private static final long CUT_MASK = ((1L << 18) - 1) << 46;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random r = new Random(0x65426b7570L); // fixed seed, cut points must be stable between runs
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = r.nextLong();
+    }
+
+    // first byte of a chunk file
+    private static final int CHUNK_STORED = 0, CHUNK_DEFLATED = 1;
+
+    static class FileRecord {
+        final boolean directory;
+        final long size, modified;
+        final List<String> chunks;
+
+        FileRecord(boolean directory, long size, long modified, List<String> chunks) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.chunks = chunks;
+        }
+    }
+
+    private final File root, chunkDir, snapshotDir;
+
+    public ChunkRepository(File root) {
+        this.root = root;
+        this.chunkDir = new File(root, "chunks");
+        this.snapshotDir = new File(root, "snapshots");
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    // snapshots, oldest to newest
+    public List<File> listSnapshots() {
+        List<File> snapshots = new ArrayList<>();
+        File[] files = snapshotDir.listFiles();
+        if (files == null) return snapshots;
+        for (File f : files) {
+            if (f.getName().endsWith(SNAPSHOT_EXTENSION)) snapshots.add(f);
+        }
+        snapshots.sort(Comparator.comparingLong(File::lastModified));
+        return snapshots;
+    }
+
+    public SnapshotWriter newSnapshot(String name, CompressionPolicy policy, int threads) throws IOException {
+        if (!chunkDir.exists() && !chunkDir.mkdirs() || !snapshotDir.exists() && !snapshotDir.mkdirs()) {
+            throw new IOException("Unable to create repository at " + root);
+        }
+        List<File> snapshots = listSnapshots();
+        Map<String, FileRecord> previous = snapshots.isEmpty() ? Collections.emptyMap() : readSnapshot(snapshots.get(snapshots.size() - 1));
+        return new SnapshotWriter(new File(snapshotDir, name + SNAPSHOT_EXTENSION), previous, policy, threads);
+    }
+
+    // delete the named snapshots, then remove chunks no snapshot uses anymore
+    public void delete(Collection<String> names, Logger log) throws IOException {
+        int deleted = 0;
+        for (String name : names) {
+            if (new File(snapshotDir, name + SNAPSHOT_EXTENSION).delete()) deleted++;
+        }
+        if (deleted == 0) return;
+        List<File> snapshots = listSnapshots();
+
+        Set<String> used = new HashSet<>();
+        for (File s : snapshots) {
+            for (FileRecord r : readSnapshot(s).values()) used.addAll(r.chunks);
+        }
+
+        long freed = 0;
+        int removed = 0;
+        File[] buckets = chunkDir.listFiles();
+        if (buckets == null) return;
+        for (File bucket : buckets) {
+            File[] chunks = bucket.listFiles();
+            if (chunks == null) continue;
+            for (File c : chunks) {
+                if (!used.contains(c.getName())) {
+                    long size = c.length();
+                    if (c.delete()) {
+                        freed += size;
+                        removed++;
+                    }
+                }
+            }
+        }
+        log.info("Removed " + deleted + " old snapshot(s) and " + removed + " unused chunks (" + (freed / 1024 / 1024) + "MB).");
+    }
+
+    public Map<String, FileRecord> readSnapshot(File snapshot) throws IOException {
+        Map<String, FileRecord> files = new LinkedHashMap<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(snapshot), 64 * 1024), StandardCharsets.UTF_8))) {
+            String line = r.readLine();
+            if (line == null || !line.equals(HEADER)) throw new IOException("Not an eBackup snapshot: " + snapshot);
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+
+                // type, size, modified, chunks, path (path last so it may contain tabs)
+                String[] parts = line.split("\t", 5);
+                if (parts.length != 5) throw new IOException("Corrupt snapshot line in " + snapshot + ": " + line);
+                List<String> chunks = parts[3].isEmpty() ? Collections.emptyList() : Arrays.asList(parts[3].split(","));
+                files.put(parts[4], new FileRecord(parts[0].equals("d"), Long.parseLong(parts[1]), Long.parseLong(parts[2]), chunks));
+            }
+        }
+        return files;
+    }
+
+    // write the contents of a file in a snapshot to out
+    public void readFile(FileRecord record, OutputStream out) throws IOException {
+        for (String hash : record.chunks) {
+            out.write(readChunk(hash));
+        }
+    }
+
+    byte[] readChunk(String hash) throws IOException {
+        byte[] raw = Files.readAllBytes(chunkFile(hash).toPath());
+        if (raw.length == 0) throw new IOException("Corrupt chunk " + hash);
+        if (raw[0] == CHUNK_STORED) return Arrays.copyOfRange(raw, 1, raw.length);
+
+        Inflater inf = new Inflater(true);
+        try {
+            inf.setInput(raw, 1, raw.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length * 2);
+            byte[] buf = new byte[64 * 1024];
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary())) throw new IOException("Corrupt chunk " + hash);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt chunk " + hash, e);
+        } finally {
+            inf.end();
+        }
+    }
+
+    private File chunkFile(String hash) {
+        return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Writes one snapshot. Chunk boundaries are found on the calling thread, hashing, compressing and
+     * storing chunks happens on the worker pool. The snapshot only becomes visible once closed.
+     */
+    public class SnapshotWriter implements ArchiveWriter {
+
+        private final File target, temp;
+        private final Map<String, FileRecord> previous;
+        private final Writer index;
+        private final ExecutorService pool;
+        private final int maxInFlight;
+        private final ArrayDeque<PendingFile> pending = new ArrayDeque<>();
+        private final CompressionPolicy policy;
+        private final int threads;
+        private Throttle throttle = Throttle.NONE;
+        private final ThreadLocal<Deflater[]> deflater = ThreadLocal.withInitial(() -> new Deflater[10]);
+        private final List<Deflater> deflaters = new CopyOnWriteArrayList<>();
+        private int inFlight = 0;
+        private boolean closed = false;
+
+        // statistics
+        final AtomicLong newChunks = new AtomicLong(), newBytes = new AtomicLong(), storedBytes = new AtomicLong();
+        long reusedFiles = 0;
+
+        // index line waiting for its chunks, lines are written in the order entries were added
+        private class PendingFile {
+            final String type, name;
+            final long modified;
+            long size;
+            final List<Future<String>> futures = new ArrayList<>();
+            final List<String> hashes = new ArrayList<>();
+            int resolved = 0;
+            boolean complete = false;
+
+            PendingFile(String type, String name, long size, long modified) {
+                this.type = type;
+                this.name = name;
+                this.size = size;
+                this.modified = modified;
+            }
+        }
+
+        SnapshotWriter(File target, Map<String, FileRecord> previous, CompressionPolicy policy, int threads) throws IOException {
+            this.target = target;
+            this.temp = new File(target.getPath() + ".tmp");
+            this.previous = previous;
+            this.policy = policy;
+            this.threads = threads;
+            this.maxInFlight = threads * 4;
+            this.index = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(temp), 64 * 1024), StandardCharsets.UTF_8));
+            this.index.write(HEADER + "\n# created=" + System.currentTimeMillis() + "\n");
+
+            AtomicInteger count = new AtomicInteger();
+            this.pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "eBackup-chunk-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        // slows reading and compressing down while the server is busy
+        public void setThrottle(Throttle throttle) {
+            this.throttle = throttle;
+        }
+
+        @Override
+        public void putDirectory(String name, long time) throws IOException {
+            PendingFile p = new PendingFile("d", name, 0, time);
+            p.complete = true;
+            pending.add(p);
+            drain(maxInFlight);
+        }
+
+        @Override
+        public void putFile(String name, File file) throws IOException {
+            long size = file.length(), modified = file.lastModified();
+            PendingFile p = new PendingFile("f", name, size, modified);
+
+            // unchanged since the last snapshot, reuse its chunks without reading the file
+            FileRecord old = previous.get(name);
+            if (old != null && !old.directory && old.size == size && old.modified == modified) {
+                reusedFiles++;
+                p.hashes.addAll(old.chunks);
+                p.complete = true;
+                pending.add(p);
+                drain(maxInFlight);
+                return;
+            }
+
+            long read = 0;
+            boolean opened = false;
+            try (InputStream in = new FileInputStream(file)) {
+                opened = true;
+                pending.add(p);
+                byte[] buf = new byte[MAX_CHUNK * 2];
+                int start = 0, end = 0, level = 0;
+                boolean eof = false, first = true;
+                while (true) {
+                    // keep at least MAX_CHUNK bytes buffered so a cut point can be searched
+                    if (!eof && end - start < MAX_CHUNK) {
+                        System.arraycopy(buf, start, buf, 0, end - start);
+                        end -= start;
+                        start = 0;
+                        int r;
+                        long readStart = System.nanoTime();
+                        while (end < buf.length && (r = in.read(buf, end, buf.length - end)) >= 0) {
+                            end += r;
+                            read += r;
+                        }
+                        eof = end < buf.length;
+                        throttle.pace(System.nanoTime() - readStart);
+                    }
+                    if (start == end) break;
+                    if (first) {
+                        level = policy.levelFor(name, buf, end);
+                        first = false;
+                    }
+
+                    int cut = findCut(buf, start, Math.min(end - start, MAX_CHUNK));
+                    byte[] chunk = Arrays.copyOfRange(buf, start, start + cut);
+                    start += cut;
+                    int chunkLevel = level;
+                    p.futures.add(pool.submit(() -> throttled(() -> storeChunk(chunk, chunkLevel))));
+                    inFlight++;
+                    drain(maxInFlight);
+                }
+                if (read < size) p.size = -1;
+            } catch (IOException e) {
+                // keep what was read so far like a truncated file, but never reuse it in the next snapshot
+                p.size = -1;
+                if (!opened) throw e;
+                throw new TruncatedEntryException("only " + read + " of " + size + " bytes could be read: " + e.getMessage(), e);
+            } finally {
+                p.complete = true;
+            }
+            drain(maxInFlight);
+            if (read < size) throw new TruncatedEntryException("it shrank from " + size + " to " + read + " bytes while it was being archived", null);
+        }
+
+        @Override
+        public void putBytes(String name, byte[] data, long time) throws IOException {
+            PendingFile p = new PendingFile("f", name, data.length, time);
+            if (data.length > 0) {
+                int level = policy.levelFor(name, data, data.length);
+                p.futures.add(pool.submit(() -> throttled(() -> storeChunk(data, level))));
+                inFlight++;
+            }
+            p.complete = true;
+            pending.add(p);
+            drain(maxInFlight);
+        }
+
+        private int findCut(byte[] buf, int offset, int length) {
+            if (length <= MIN_CHUNK) return length;
+            long h = 0;
+            for (int i = MIN_CHUNK; i < length; i++) {
+                h = (h << 1) + GEAR[buf[offset + i] & 0xFF];
+                if ((h & CUT_MASK) == 0) return i + 1;
+            }
+            return length;
+        }
+
+        private String throttled(Callable<String> task) throws Exception {
+            throttle.acquire();
+            try {
+                return task.call();
+            } finally {
+                throttle.release();
+            }
+        }
+
+        private String storeChunk(byte[] data, int level) throws IOException {
+            MessageDigest md = BackupManifest.newDigest();
+            String hash = BackupManifest.toHex(md.digest(data));
+            File f = chunkFile(hash);
+            if (f.exists()) return hash; // already stored by an earlier backup
+
+            byte[] out = new byte[data.length + 1];
+            int n = 1;
+            Deflater def = null;
+            if (level != CompressionPolicy.STORED) {
+                Deflater[] perLevel = deflater.get();
+                def = perLevel[level];
+                if (def == null) {
+                    def = perLevel[level] = new Deflater(level, true);
+                    deflaters.add(def);
+                }
+                def.reset();
+                def.setInput(data);
+                def.finish();
+                while (!def.finished() && n < out.length) {
+                    n += def.deflate(out, n, out.length - n);
+                }
+            }
+            if (def != null && def.finished()) {
+                out[0] = CHUNK_DEFLATED;
+            } else { // doesn't compress (or the policy stores it), store as is
+                out[0] = CHUNK_STORED;
+                System.arraycopy(data, 0, out, 1, data.length);
+                n = out.length;
+            }
+
+            File dir = f.getParentFile();
+            if (!dir.exists()) dir.mkdirs();
+            File temp = new File(dir, hash + "." + Thread.currentThread().getId() + ".tmp");
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+                fos.write(out, 0, n);
+            }
+            Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            newChunks.incrementAndGet();
+            newBytes.addAndGet(data.length);
+            storedBytes.addAndGet(n);
+            return hash;
+        }
+
+        // write out finished index lines in order, waiting for chunks while more than limit are in flight
+        private void drain(int limit) throws IOException {
+            while (!pending.isEmpty()) {
+                PendingFile p = pending.peek();
+                if (p.resolved < p.futures.size()) {
+                    Future<String> f = p.futures.get(p.resolved);
+                    if (inFlight <= limit && !f.isDone()) break;
+                    try {
+                        p.hashes.add(f.get());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while storing " + p.name);
+                    } catch (ExecutionException e) {
+                        throw new UncheckedIOException(new IOException("Error while storing " + p.name, e.getCause()));
+                    }
+                    p.futures.set(p.resolved++, null);
+                    inFlight--;
+                } else if (p.complete) {
+                    pending.poll();
+                    writeLine(p.type, p.size, p.modified, String.join(",", p.hashes), p.name);
+                } else {
+                    break; // still being read
+                }
+            }
+        }
+
+        private void writeLine(String type, long size, long modified, String chunks, String name) {
+            try {
+                index.write(type + "\t" + size + "\t" + modified + "\t" + chunks + "\t" + name + "\n");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                drain(-1);
+                index.close();
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdownNow();
+                for (Deflater d : deflaters) d.end();
+                if (temp.exists()) {
+                    index.close();
+                    temp.delete();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package dev.espi.ebackup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Decides per file whether to store it as is or deflate it, and with which level.
+ *
+ * File type rules are checked first (globs without a "/" match the file name, others the whole path).
+ * Other files are sampled: a slice of their first block is trial compressed at the fastest level, and
+ * if that doesn't save at least min-savings the file is stored, since it is most likely compressed already.
+ */
+public class CompressionPolicy {
+
+    // level returned for files that should not be compressed at all
+    static final int STORED = -1;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // not worth sampling, compressing these is cheap anyway
+    private static final int MIN_SAMPLE_SIZE = 4 * 1024;
+
+    private static class Rule {
+        final Pattern pattern;
+        final boolean nameOnly;
+        final int level;
+
+        Rule(String glob, int level) {
+            String g = IgnoreMatcher.normalize(glob);
+            this.pattern = IgnoreMatcher.compileGlob(g);
+            this.nameOnly = g.indexOf('/') < 0;
+            this.level = level;
+        }
+
+        boolean matches(String path, String name) {
+            return pattern.matcher(nameOnly ? name : path).matches();
+        }
+    }
+
+    private final int level;
+    private final double minSavings;
+    private final List<Rule> rules = new ArrayList<>();
+
+    public CompressionPolicy(int level) {
+        this(level, Collections.emptyList(), Collections.emptyMap(), 0);
+    }
+
+    /**
+     * @param level      default deflate level
+     * @param store      globs of files that are stored without compression
+     * @param levels     globs of files compressed with another level than the default
+     * @param minSavings fraction a sample has to shrink by to be compressed, 0 to never sample
+     */
+    public CompressionPolicy(int level, Collection<String> store, Map<String, Integer> levels, double minSavings) {
+        this.level = level;
+        this.minSavings = minSavings;
+        for (String glob : store) rules.add(new Rule(glob, STORED));
+        for (Map.Entry<String, Integer> e : levels.entrySet()) rules.add(new Rule(e.getKey(), e.getValue()));
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    // level from the file type rules only, null if no rule matches
+    Integer levelFor(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        for (Rule r : rules) {
+            if (r.matches(path, name)) return r.level;
+        }
+        return null;
+    }
+
+    /**
+     * Level for a file, given the start of its content.
+     *
+     * @return a deflate level, or {@link #STORED}
+     */
+    public int levelFor(String path, byte[] data, int length) {
+        Integer ruleLevel = levelFor(path);
+        if (ruleLevel != null) return ruleLevel;
+        if (level == 0 || minSavings <= 0 || length < MIN_SAMPLE_SIZE) return level;
+        return compressible(data, length) ? level : STORED;
+    }
+
+    // trial compress a slice from the middle of the data (the start of many formats is an uncompressed header)
+    private boolean compressible(byte[] data, int length) {
+        int sampleLength = Math.min(length, SAMPLE_SIZE);
+        int offset = (length - sampleLength) / 2;
+
+        Deflater def = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            def.setInput(data, offset, sampleLength);
+            def.finish();
+            byte[] out = new byte[sampleLength];
+            int n = 0;
+            long limit = (long) (sampleLength * (1 - minSavings));
+            while (!def.finished() && n < limit) {
+                n += def.deflate(out, n, out.length - n);
+            }
+            return def.finished() && n < limit;
+        } finally {
+            def.end();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package dev.espi.ebackup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Keeps connections to a server open between transfers, so each one doesn't pay for a new handshake.
+ *
+ * At most size connections are borrowed at once, further borrowers wait for one to come back. That is also
+ * the limit on concurrent transfers to the server. Idle connections are checked before they are handed out
+ * again and closed once they were idle longer than the keep-alive.
+ */
+public class ConnectionPool<C> {
+
+    interface Factory<C> {
+        C open() throws Exception;
+
+        // a cheap round trip, false if the connection was dropped
+        boolean isAlive(C c);
+
+        void close(C c);
+    }
+
+    private static class Idle<C> {
+        final C connection;
+        final long since = System.nanoTime();
+
+        Idle(C connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final Factory<C> factory;
+    private final Semaphore permits;
+    private final long keepAliveNanos;
+    // most recently used last, so the connections that are used keep being used
+    private final Deque<Idle<C>> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    public ConnectionPool(Factory<C> factory, int size, long keepAliveMillis) {
+        this.factory = factory;
+        this.permits = new Semaphore(Math.max(1, size), true);
+        this.keepAliveNanos = keepAliveMillis * 1_000_000;
+    }
+
+    /**
+     * An idle connection, or a new one if there is none, waiting while all of them are in use. It must be
+     * given back with {@link #release} or {@link #discard}.
+     */
+    public C borrow() throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+        try {
+            Idle<C> i;
+            while ((i = take()) != null) {
+                if (System.nanoTime() - i.since <= keepAliveNanos && factory.isAlive(i.connection)) return i.connection;
+                factory.close(i.connection);
+            }
+            return factory.open();
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        } catch (Exception e) {
+            permits.release();
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // gives back a connection that can be used again
+    public void release(C c) {
+        boolean keep;
+        Deque<Idle<C>> expired = new ArrayDeque<>();
+        synchronized (idle) {
+            keep = !closed;
+            if (keep) idle.addLast(new Idle<>(c));
+            // the least recently used ones first, those that weren't needed for a while aren't kept
+            while (!idle.isEmpty() && System.nanoTime() - idle.peekFirst().since > keepAliveNanos) expired.add(idle.pollFirst());
+        }
+        if (!keep) factory.close(c);
+        for (Idle<C> i : expired) factory.close(i.connection);
+        permits.release();
+    }
+
+    // gives back a connection that failed, it is closed
+    public void discard(C c) {
+        factory.close(c);
+        permits.release();
+    }
+
+    // closes the idle connections, borrowed ones are closed when they come back
+    public void close() {
+        synchronized (idle) {
+            closed = true;
+        }
+        Idle<C> i;
+        while ((i = take()) != null) factory.close(i.connection);
+    }
+
+    private Idle<C> take() {
+        synchronized (idle) {
+            return idle.pollLast();
+        }
+    }
+}
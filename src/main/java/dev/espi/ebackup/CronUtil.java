@@ -6,7 +6,6 @@ import com.cronutils.model.definition.CronDefinitionBuilder;
 import com.cronutils.model.time.ExecutionTime;
 import com.cronutils.parser.CronParser;
 
-import java.time.ZonedDateTime;
 import java.util.Locale;
 
 /*
@@ -27,11 +26,9 @@ import java.util.Locale;
 
 public class CronUtil {
 
-    static com.cronutils.model.Cron cron;
-    static ExecutionTime executionTime;
-    static ZonedDateTime nextExecution;
+    private static final CronParser parser;
 
-    public static void checkCron() {
+    static {
         CronDefinition cronDefinition = CronDefinitionBuilder.defineCron()
                 .withSeconds().and()
                 .withMinutes().and()
@@ -44,23 +41,16 @@ public class CronUtil {
                     .supportsHash().supportsL().supportsW().and()
                 .instance();
 
-        CronParser parser = new CronParser(cronDefinition);
-        cron = parser.parse(eBackup.getPlugin().crontask);
-        cron.validate();
+        parser = new CronParser(cronDefinition);
+    }
 
-        eBackup.getPlugin().getLogger().info("Configured the cron task to be: " + CronDescriptor.instance(Locale.UK).describe(cron));
+    // parses and validates a cron task of a job, logging what it does
+    public static ExecutionTime checkCron(BackupJob job) {
+        com.cronutils.model.Cron cron = parser.parse(job.crontask);
+        cron.validate();
 
-        executionTime = ExecutionTime.forCron(cron);
-        nextExecution = executionTime.nextExecution(ZonedDateTime.now()).get();
-    }
+        eBackup.getPlugin().getLogger().info("Configured the cron task" + (job.isDefault() ? "" : " of job " + job.name) + " to be: " + CronDescriptor.instance(Locale.UK).describe(cron));
 
-    public static boolean run() {
-        ZonedDateTime time = ZonedDateTime.now();
-        if (nextExecution.isBefore(time)) {
-            nextExecution = executionTime.nextExecution(time).get();
-            return true;
-        } else {
-            return false;
-        }
+        return ExecutionTime.forCron(cron);
     }
 }
@@ -0,0 +1,368 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * rsync style deltas of an archive against an earlier one that was uploaded whole (the base).
+ *
+ * A {@link Signature} of the base holds a rolling checksum and a SHA-256 hash of every block and is kept
+ * locally, so the base never has to be downloaded again. A new archive is scanned with the rolling checksum
+ * at every offset; blocks found in the base become a copy instruction, everything else is sent as is. The
+ * patch ({@value #EXTENSION}) is uploaded next to the base, and base plus patch give back the archive.
+ *
+ * This only pays off when unchanged files come out as the same bytes in every archive, which holds for the
+ * zip format: entries are written in a fixed order and compressed in independent blocks (see
+ * {@link ParallelZipWriter}). Whole-stream compression (tar.zst, tar.lz4) changes everything after the
+ * first difference.
+ */
+public class DeltaTransfer {
+
+    static final String EXTENSION = ".delta";
+    // folder in the backup path with the signatures of the bases
+    static final String SIGNATURE_DIR = "signatures";
+
+    private static final String SIGNATURE_HEADER = "eBackup signature v1", PATCH_HEADER = "eBackup delta v1";
+    private static final int OP_END = 0, OP_COPY = 1, OP_DATA = 2;
+    // literal data is sent in pieces of at most this size
+    private static final int MAX_DATA = 1024 * 1024;
+
+    static class Signature {
+        // remote file name of the base
+        final String base;
+        final int blockSize;
+        final long length;
+        final int[] weak;
+        final byte[][] strong;
+        // patches made against this base so far
+        int deltas = 0;
+
+        private Signature(String base, int blockSize, long length, int[] weak, byte[][] strong) {
+            this.base = base;
+            this.blockSize = blockSize;
+            this.length = length;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        int blocks() {
+            return weak.length;
+        }
+
+        // length of a block, the last one may be short
+        int blockLength(int block) {
+            return (int) Math.min(blockSize, length - (long) block * blockSize);
+        }
+
+        static Signature of(File f, String base, int blockSize) throws IOException {
+            long length = f.length();
+            int blocks = (int) ((length + blockSize - 1) / blockSize);
+            int[] weak = new int[blocks];
+            byte[][] strong = new byte[blocks][];
+            MessageDigest digest = BackupManifest.newDigest();
+            byte[] buf = new byte[blockSize];
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f), 1024 * 1024)) {
+                for (int i = 0; i < blocks; i++) {
+                    int n = (int) Math.min(blockSize, length - (long) i * blockSize);
+                    readFully(in, buf, n);
+                    weak[i] = weak(buf, 0, n);
+                    digest.update(buf, 0, n);
+                    strong[i] = digest.digest();
+                }
+            }
+            return new Signature(base, blockSize, length, weak, strong);
+        }
+
+        static Signature load(File f) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                if (!in.readUTF().equals(SIGNATURE_HEADER)) throw new IOException("Not an eBackup signature: " + f);
+                String base = in.readUTF();
+                int blockSize = in.readInt();
+                long length = in.readLong();
+                int deltas = in.readInt();
+                int blocks = in.readInt();
+                int[] weak = new int[blocks];
+                byte[][] strong = new byte[blocks][];
+                for (int i = 0; i < blocks; i++) {
+                    weak[i] = in.readInt();
+                    strong[i] = new byte[32];
+                    in.readFully(strong[i]);
+                }
+                Signature s = new Signature(base, blockSize, length, weak, strong);
+                s.deltas = deltas;
+                return s;
+            }
+        }
+
+        // write to a temporary file first, so a crash never leaves a half written signature behind
+        void save(File f) throws IOException {
+            Files.createDirectories(f.getParentFile().toPath());
+            File temp = new File(f.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeUTF(SIGNATURE_HEADER);
+                out.writeUTF(base);
+                out.writeInt(blockSize);
+                out.writeLong(length);
+                out.writeInt(deltas);
+                out.writeInt(blocks());
+                for (int i = 0; i < blocks(); i++) {
+                    out.writeInt(weak[i]);
+                    out.write(strong[i]);
+                }
+            }
+            Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // rsync's rolling checksum, both halves mod 2^16
+    static int weak(byte[] b, int off, int len) {
+        int a = 0, s = 0;
+        for (int i = 0; i < len; i++) {
+            int x = b[off + i] & 0xff;
+            a += x;
+            s += (len - i) * x;
+        }
+        return (a & 0xffff) | (s << 16);
+    }
+
+    /**
+     * Writes a patch that turns the base of the signature into the target.
+     *
+     * @return bytes of the target that were not found in the base and are in the patch as is
+     */
+    public static long diff(Signature base, File target, OutputStream patch) throws IOException {
+        int bs = base.blockSize;
+        // blocks by weak checksum, only full blocks can match at any offset
+        Map<Integer, List<Integer>> blocks = new HashMap<>();
+        for (int i = 0; i < base.blocks(); i++) {
+            if (base.blockLength(i) == bs) blocks.computeIfAbsent(base.weak[i], k -> new ArrayList<>(1)).add(i);
+        }
+
+        DataOutputStream out = new DataOutputStream(patch);
+        out.writeUTF(PATCH_HEADER);
+        out.writeUTF(base.base);
+        out.writeInt(bs);
+        out.writeLong(base.length);
+
+        MessageDigest whole = BackupManifest.newDigest(), block = BackupManifest.newDigest();
+        PatchWriter ops = new PatchWriter(out);
+        byte[] buf = new byte[Math.max(4 * bs, 4 * 1024 * 1024)];
+        // the window is buf[pos, pos + bs), bytes from lit to pos matched nothing
+        int pos = 0, lit = 0, len = 0;
+        boolean eof = false, rolling = false;
+        int a = 0, s = 0;
+
+        try (InputStream in = new FileInputStream(target)) {
+            while (true) {
+                // keep a block and the byte after it in the buffer
+                if (len - pos <= bs && !eof) {
+                    ops.data(buf, lit, pos - lit);
+                    System.arraycopy(buf, pos, buf, 0, len - pos);
+                    len -= pos;
+                    pos = lit = 0;
+                    while (len < buf.length) {
+                        int n = in.read(buf, len, buf.length - len);
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        whole.update(buf, len, n);
+                        len += n;
+                    }
+                }
+                if (len - pos < bs) break;
+
+                if (!rolling) {
+                    int w = weak(buf, pos, bs);
+                    a = w & 0xffff;
+                    s = w >>> 16;
+                    rolling = true;
+                }
+
+                int match = -1;
+                List<Integer> candidates = blocks.get(a | (s << 16));
+                if (candidates != null) {
+                    block.update(buf, pos, bs);
+                    byte[] hash = block.digest();
+                    int next = ops.nextBlock();
+                    for (int i : candidates) {
+                        if (Arrays.equals(hash, base.strong[i]) && (match < 0 || i == next)) match = i;
+                    }
+                }
+
+                if (match >= 0) {
+                    ops.data(buf, lit, pos - lit);
+                    ops.copy(match);
+                    pos += bs;
+                    lit = pos;
+                    rolling = false;
+                } else {
+                    if (len - pos == bs) break; // end of the file, the window can't roll on
+                    int out1 = buf[pos] & 0xff, in1 = buf[pos + bs] & 0xff;
+                    a = (a - out1 + in1) & 0xffff;
+                    s = (s - bs * out1 + a) & 0xffff;
+                    pos++;
+                }
+            }
+
+            // the rest is shorter than a block, it may still be the short last block of the base
+            int rest = len - pos;
+            int last = base.blocks() - 1;
+            if (rest > 0 && last >= 0 && base.blockLength(last) == rest) {
+                block.update(buf, pos, rest);
+                if (Arrays.equals(block.digest(), base.strong[last])) {
+                    ops.data(buf, lit, pos - lit);
+                    ops.copy(last);
+                    lit = pos = len;
+                }
+            }
+            ops.data(buf, lit, len - lit);
+        }
+
+        ops.flush();
+        out.writeByte(OP_END);
+        out.writeUTF(BackupManifest.toHex(whole.digest()));
+        out.flush();
+        return ops.literal;
+    }
+
+    // the base named in the header of a patch
+    public static String baseOf(File patch) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(patch))) {
+            if (!in.readUTF().equals(PATCH_HEADER)) throw new IOException("Not an eBackup delta: " + patch);
+            return in.readUTF();
+        }
+    }
+
+    /**
+     * Rebuilds an archive from its base and a patch.
+     *
+     * @throws IOException if the base doesn't fit the patch or the result doesn't match the checksum in the patch
+     */
+    public static void apply(File base, InputStream patch, OutputStream target) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(patch));
+        if (!in.readUTF().equals(PATCH_HEADER)) throw new IOException("Not an eBackup delta");
+        String baseName = in.readUTF();
+        int bs = in.readInt();
+        long length = in.readLong();
+        if (base.length() != length) throw new IOException("The base " + baseName + " has " + base.length() + " bytes, the delta expects " + length);
+
+        MessageDigest digest = BackupManifest.newDigest();
+        byte[] buf = new byte[Math.max(bs, 64 * 1024)];
+        try (RandomAccessFile raf = new RandomAccessFile(base, "r")) {
+            int op;
+            while ((op = in.readByte()) != OP_END) {
+                if (op == OP_COPY) {
+                    long first = in.readInt() & 0xffffffffL;
+                    int count = in.readInt();
+                    long offset = first * bs, end = Math.min(length, (first + count) * bs);
+                    raf.seek(offset);
+                    while (offset < end) {
+                        int n = (int) Math.min(buf.length, end - offset);
+                        raf.readFully(buf, 0, n);
+                        digest.update(buf, 0, n);
+                        target.write(buf, 0, n);
+                        offset += n;
+                    }
+                } else if (op == OP_DATA) {
+                    int n = in.readInt();
+                    byte[] data = n <= buf.length ? buf : new byte[n];
+                    in.readFully(data, 0, n);
+                    digest.update(data, 0, n);
+                    target.write(data, 0, n);
+                } else {
+                    throw new IOException("Corrupt delta, unknown instruction " + op);
+                }
+            }
+        }
+        String checksum = in.readUTF();
+        if (!checksum.equals(BackupManifest.toHex(digest.digest()))) throw new IOException("The rebuilt archive doesn't match the checksum of the delta");
+    }
+
+    // coalesces runs of blocks and buffers literal data
+    private static class PatchWriter {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private int first = -1, count = 0;
+        long literal = 0;
+
+        PatchWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        // the block that would extend the current run
+        int nextBlock() {
+            return count > 0 ? first + count : -1;
+        }
+
+        void copy(int block) throws IOException {
+            flushData();
+            if (count > 0 && block == first + count) {
+                count++;
+                return;
+            }
+            flushCopy();
+            first = block;
+            count = 1;
+        }
+
+        void data(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            flushCopy();
+            data.write(b, off, len);
+            literal += len;
+            if (data.size() >= MAX_DATA) flushData();
+        }
+
+        void flush() throws IOException {
+            flushCopy();
+            flushData();
+        }
+
+        private void flushCopy() throws IOException {
+            if (count == 0) return;
+            out.writeByte(OP_COPY);
+            out.writeInt(first);
+            out.writeInt(count);
+            count = 0;
+        }
+
+        private void flushData() throws IOException {
+            if (data.size() == 0) return;
+            out.writeByte(OP_DATA);
+            out.writeInt(data.size());
+            data.writeTo(out);
+            data.reset();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        int off = 0, n;
+        while (off < len && (n = in.read(b, off, len - off)) > 0) off += n;
+        if (off < len) throw new EOFException();
+    }
+}
@@ -0,0 +1,163 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Output stream that uploads the same data to several {@link UploadTarget}s at once.
+ *
+ * Every target gets its own connection and {@link UploadPipe}, so the data is produced (or read) once and
+ * a slow target only holds the others back once its buffers are full. A target that fails is dropped and
+ * the others carry on; its failure is reported by {@link #getFailures()}. With failFast (used when
+ * streaming a backup that can't be read again) a failing required target fails the whole stream instead.
+ * A stream that can't be finished is given up on with {@link #abort(Throwable)}, which leaves no file on
+ * any target.
+ */
+public class FanOutUpload extends OutputStream {
+
+    private static final int BUFFER_SIZE = 1024 * 1024, BUFFERS = 16;
+
+    private final String remoteName;
+    private final boolean failFast;
+    private final Map<UploadTarget, UploadPipe> pipes = new LinkedHashMap<>();
+    private final Map<UploadTarget, Exception> failures = new LinkedHashMap<>();
+    // targets that got the whole file
+    private final List<UploadTarget> uploaded = new ArrayList<>();
+    private boolean closed = false;
+
+    public FanOutUpload(List<UploadTarget> targets, String remoteName, Throttle throttle, boolean failFast) throws IOException {
+        this.remoteName = remoteName;
+        this.failFast = failFast;
+        for (UploadTarget t : targets) {
+            try {
+                UploadPipe pipe = new UploadPipe(t.backend().openUpload(remoteName), BUFFER_SIZE, BUFFERS, "eBackup-upload-" + t.name);
+                pipe.setThrottle(throttle);
+                pipes.put(t, pipe);
+            } catch (IOException e) {
+                fail(t, e);
+            }
+        }
+    }
+
+    /**
+     * Reads a file once and uploads it to every target, encrypted on the way if there is a key.
+     *
+     * @param key null to upload the file as it is
+     * @return the targets that failed, with their error
+     */
+    public static Map<UploadTarget, Exception> send(File f, String remoteName, List<UploadTarget> targets, Throttle throttle,
+                                                    BackupCrypto.Key key, int threads) throws IOException {
+        FanOutUpload out = new FanOutUpload(targets, remoteName, throttle, false);
+        OutputStream sink = out;
+        try (InputStream in = new FileInputStream(f)) {
+            if (key != null) sink = new BackupCrypto.EncryptingOutputStream(out, BackupCrypto.FileKey.create(key), threads);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while (!out.pipes.isEmpty() && (n = in.read(buf)) > 0) sink.write(buf, 0, n);
+        } catch (IOException | RuntimeException e) {
+            // the file couldn't be read to the end, no target gets part of it
+            out.abort(e);
+            try {
+                sink.close(); // frees the encryption threads
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        sink.close();
+        return out.getFailures();
+    }
+
+    // targets that didn't get the whole file, with their error
+    public Map<UploadTarget, Exception> getFailures() {
+        return failures;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        for (Iterator<Map.Entry<UploadTarget, UploadPipe>> it = pipes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<UploadTarget, UploadPipe> e = it.next();
+            try {
+                e.getValue().write(b, off, len);
+            } catch (IOException ex) {
+                it.remove();
+                e.getValue().abort(ex);
+                fail(e.getKey(), ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        IOException required = null;
+        for (Map.Entry<UploadTarget, UploadPipe> e : pipes.entrySet()) {
+            try {
+                e.getValue().close();
+                uploaded.add(e.getKey());
+            } catch (IOException ex) {
+                failures.put(e.getKey(), ex);
+                if (failFast && e.getKey().required && required == null) required = ex;
+            }
+        }
+        pipes.clear();
+        if (required != null) throw required;
+    }
+
+    /**
+     * Gives up on the stream: the uploads still running are aborted and the files already uploaded are
+     * deleted again, so no target keeps an incomplete backup under its name.
+     *
+     * @return the targets the file couldn't be deleted from, with their error
+     */
+    public Map<UploadTarget, Exception> abort(Throwable cause) {
+        closed = true;
+        for (UploadPipe pipe : pipes.values()) pipe.abort(cause);
+        pipes.clear();
+        Map<UploadTarget, Exception> left = new LinkedHashMap<>();
+        for (UploadTarget t : uploaded) {
+            try {
+                t.backend().delete(remoteName).get();
+            } catch (Exception e) {
+                left.put(t, e instanceof ExecutionException && e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+            }
+        }
+        uploaded.clear();
+        return left;
+    }
+
+    private void fail(UploadTarget t, Exception e) throws IOException {
+        failures.put(t, e);
+        if (failFast && t.required) {
+            IOException failure = new IOException("Upload of " + remoteName + " to " + t + " failed: " + e.getMessage(), e);
+            for (UploadPipe pipe : pipes.values()) pipe.abort(failure);
+            pipes.clear();
+            closed = true;
+            throw failure;
+        }
+    }
+}
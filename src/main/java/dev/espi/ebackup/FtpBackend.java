@@ -0,0 +1,147 @@
+package dev.espi.ebackup;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Stores backups on an FTP server, over control connections that are kept logged in between transfers.
+ */
+class FtpBackend extends RemoteBackend<FTPClient> {
+
+    FtpBackend(UploadTarget target) {
+        super(target, new ConnectionPool.Factory<FTPClient>() {
+            @Override
+            public FTPClient open() throws Exception {
+                FTPClient ftpClient = new FTPClient();
+                try {
+                    target.connectFTP(ftpClient);
+                } catch (IOException e) {
+                    close(ftpClient);
+                    throw e;
+                }
+                return ftpClient;
+            }
+
+            @Override
+            public boolean isAlive(FTPClient c) {
+                try {
+                    return c.isConnected() && c.sendNoOp();
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void close(FTPClient c) {
+                try {
+                    c.disconnect();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String name, File f) {
+        return submit(c -> {
+            OutputStream out = store(c, partial(name));
+            try {
+                copy(f, out, target.throttle);
+            } finally {
+                out.close();
+            }
+            complete(c, name);
+            rename(c, partial(name), name);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> list() {
+        return submit(c -> {
+            String[] names = c.listNames();
+            if (names == null) throw new IOException("FTP server failed to list " + target.path + ": " + c.getReplyString());
+            List<String> complete = new ArrayList<>();
+            for (String n : names) {
+                if (!n.endsWith(PARTIAL_EXTENSION)) complete.add(n);
+            }
+            return complete;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String name) {
+        return submit(c -> {
+            if (c.deleteFile(name)) return true;
+            // 550: already gone
+            if (c.getReplyCode() == 550) return false;
+            throw new IOException("FTP server failed to delete " + name + ": " + c.getReplyString());
+        });
+    }
+
+    @Override
+    public Upload openUpload(String name) throws IOException {
+        FTPClient c = pool.borrow();
+        OutputStream out;
+        try {
+            out = store(c, partial(name));
+        } catch (IOException e) {
+            pool.discard(c);
+            throw e;
+        }
+        // ensure that an error is thrown if the file cannot be stored
+        return uploading(c, out, name, done -> complete(done, name));
+    }
+
+    @Override
+    public InputStream openDownload(String name) throws IOException {
+        FTPClient c = pool.borrow();
+        InputStream in;
+        try {
+            in = c.retrieveFileStream(name);
+            if (in == null) throw new IOException("FTP server refused to send " + name + ": " + c.getReplyString());
+        } catch (IOException e) {
+            pool.discard(c);
+            throw e;
+        }
+        return returning(c, in, done -> {
+            if (!done.completePendingCommand()) throw new IOException("FTP server failed to send " + name + ": " + done.getReplyString());
+        });
+    }
+
+    @Override
+    void rename(FTPClient c, String from, String to) throws IOException {
+        if (!c.rename(from, to)) throw new IOException("FTP server failed to rename " + from + " to " + to + ": " + c.getReplyString());
+    }
+
+    private static OutputStream store(FTPClient c, String name) throws IOException {
+        OutputStream out = c.storeFileStream(name);
+        if (out == null) throw new IOException("FTP server refused to store " + name + ": " + c.getReplyString());
+        return out;
+    }
+
+    private static void complete(FTPClient c, String name) throws IOException {
+        if (!c.completePendingCommand()) throw new IOException("FTP server failed to store " + name + ": " + c.getReplyString());
+    }
+}
@@ -0,0 +1,142 @@
+package dev.espi.ebackup;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Ignore rules compiled once per backup, matched against paths relative to the server folder.
+ *
+ * Plain paths go into a hash set, rules with glob characters are compiled to regular expressions:
+ * * and ? match within one folder name, a ** segment matches any number of folders, [abc] and {a,b}
+ * work as usual. Matching is plain string work, no file system calls.
+ */
+public class IgnoreMatcher {
+
+    private final List<String> rules = new ArrayList<>();
+    private final Set<String> paths = new HashSet<>();
+    private final List<Pattern> globs = new ArrayList<>();
+
+    public IgnoreMatcher(Collection<String> rules) {
+        for (String rule : rules) add(rule);
+    }
+
+    public IgnoreMatcher copy() {
+        return new IgnoreMatcher(rules);
+    }
+
+    // false if the rule can never match, an absolute path outside the server folder
+    public boolean add(String rule) {
+        String r = rule;
+        if (new File(r).isAbsolute()) { // absolute paths in the server folder still work
+            Path root = Paths.get("").toAbsolutePath().normalize(), p = Paths.get(r).normalize();
+            if (!p.startsWith(root)) return false;
+            r = root.relativize(p).toString();
+        }
+        r = normalize(r);
+        if (r.isEmpty()) return true;
+
+        rules.add(r);
+        if (r.indexOf('*') >= 0 || r.indexOf('?') >= 0 || r.indexOf('[') >= 0 || r.indexOf('{') >= 0) {
+            globs.add(compileGlob(r));
+        } else {
+            paths.add(r);
+        }
+        return true;
+    }
+
+    public boolean isIgnored(String path) {
+        String p = normalize(path);
+        if (paths.contains(p)) return true;
+        for (Pattern glob : globs) {
+            if (glob.matcher(p).matches()) return true;
+        }
+        return false;
+    }
+
+    // forward slashes, no leading "./" or "/" and no trailing "/" or "/."
+    static String normalize(String path) {
+        String p = path.indexOf('\\') >= 0 ? path.replace('\\', '/') : path;
+        while (p.startsWith("./")) p = p.substring(2);
+        while (p.startsWith("/")) p = p.substring(1);
+        while (p.endsWith("/.")) p = p.substring(0, p.length() - 2);
+        while (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+        return p.equals(".") ? "" : p;
+    }
+
+    static Pattern compileGlob(String glob) {
+        StringBuilder re = new StringBuilder();
+        boolean inBraces = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            i++;
+                            re.append("(?:.*/)?"); // any number of folders, including none
+                        } else {
+                            re.append(".*");
+                        }
+                    } else {
+                        re.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    re.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        re.append("\\[");
+                        break;
+                    }
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) set = "^" + set.substring(1);
+                    re.append('[').append(set.replace("\\", "\\\\")).append(']');
+                    i = end;
+                    break;
+                case '{':
+                    inBraces = true;
+                    re.append("(?:");
+                    break;
+                case '}':
+                    if (inBraces) {
+                        inBraces = false;
+                        re.append(')');
+                    } else {
+                        re.append("\\}");
+                    }
+                    break;
+                case ',':
+                    re.append(inBraces ? "|" : ",");
+                    break;
+                default:
+                    if ("\\.^$|()+".indexOf(c) >= 0) re.append('\\');
+                    re.append(c);
+            }
+        }
+        if (inBraces) re.append(')');
+        return Pattern.compile(re.toString());
+    }
+}
@@ -0,0 +1,152 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Stores backups in a folder, e.g. a mounted network drive or a second disk. Also handy to try out
+ * uploads without a server.
+ */
+class LocalBackend implements StorageBackend {
+
+    private final UploadTarget target;
+    private final File dir;
+    private final ExecutorService executor;
+
+    LocalBackend(UploadTarget target) {
+        this.target = target;
+        this.dir = new File(target.path);
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(target.connections, r -> {
+            Thread t = new Thread(r, "eBackup-" + target.name + "-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private interface Operation<T> {
+        T run() throws IOException;
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> op) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(op.run());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException(target + " is closed"));
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String name, File f) {
+        return submit(() -> {
+            try (OutputStream out = openUpload(name)) {
+                RemoteBackend.copy(f, out, target.throttle);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> list() {
+        return submit(() -> {
+            List<String> names = new ArrayList<>();
+            File[] files = dir.listFiles(f -> f.isFile() && !f.getName().endsWith(PARTIAL_EXTENSION));
+            if (files == null) throw new IOException("Unable to list " + dir);
+            for (File f : files) names.add(f.getName());
+            return names;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String name) {
+        return submit(() -> Files.deleteIfExists(new File(dir, name).toPath()));
+    }
+
+    @Override
+    public Upload openUpload(String name) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+        File partial = new File(dir, name + PARTIAL_EXTENSION), file = new File(dir, name);
+        return new Upload(new BufferedOutputStream(new FileOutputStream(partial), 1024 * 1024)) {
+            private boolean failed = false, closed = false;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                try {
+                    super.close();
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                } finally {
+                    if (failed) partial.delete();
+                }
+                Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            @Override
+            public void abort() {
+                if (closed) return;
+                closed = true;
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                partial.delete();
+            }
+        };
+    }
+
+    @Override
+    public InputStream openDownload(String name) throws IOException {
+        return new FileInputStream(new File(dir, name));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
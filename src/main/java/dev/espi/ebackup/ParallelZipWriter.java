@@ -0,0 +1,549 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Zip writer that deflates on a pool of worker threads (pigz style).
+ *
+ * Files are read in fixed-size blocks on the calling thread; each block is deflated independently
+ * (primed with the previous 32 KB as dictionary and ended with a sync flush) so the compressed blocks
+ * can simply be concatenated into one deflate stream. Blocks are written in submission order, and the
+ * number of blocks in flight is bounded so memory use stays constant.
+ *
+ * Each entry is stored or deflated with the level chosen by a {@link CompressionPolicy}; stored entries
+ * skip the deflater but are still checksummed on the workers. Entries larger than one block need a data
+ * descriptor, which streaming readers only accept for deflated entries, so those are deflated at level 0
+ * (raw stored blocks) instead.
+ *
+ * When content hashing is enabled each entry also gets a SHA-256 hash list over its blocks,
+ * see {@link BackupManifest#contentHash(InputStream)}.
+ *
+ * Output failures are fatal for the archive and are thrown as {@link UncheckedIOException};
+ * a plain {@link IOException} from {@link #putFile(String, File)} only means that file could not be read, a
+ * {@link ArchiveWriter.TruncatedEntryException} that its entry is stored with what could be read.
+ */
+public class ParallelZipWriter implements ArchiveWriter {
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICT_SIZE = 32 * 1024;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    // leave room for deflate expansion when deciding if a streamed entry needs zip64 sizes
+    private static final long ZIP64_THRESHOLD = ZIP64_MAGIC - 16 * 1024 * 1024;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3, FLAG_UTF8 = 1 << 11;
+    private static final int METHOD_STORED = 0, METHOD_DEFLATED = 8;
+
+    static class Entry {
+        final String name;
+        final long time;
+        final boolean directory;
+        int level = CompressionPolicy.STORED;
+        boolean zip64, streamed;
+        long offset, crc, size, compressedSize;
+        String hash;
+        private MessageDigest contentDigest;
+
+        Entry(String name, long time, boolean directory) {
+            this.name = name;
+            this.time = time;
+            this.directory = directory;
+        }
+
+        int method() {
+            return level == CompressionPolicy.STORED ? METHOD_STORED : METHOD_DEFLATED;
+        }
+    }
+
+    private static class Block {
+        final byte[] data;
+        final int length;
+        final long crc, inputLength;
+        final byte[] digest;
+
+        Block(byte[] data, int length, long crc, long inputLength, byte[] digest) {
+            this.data = data;
+            this.length = length;
+            this.crc = crc;
+            this.inputLength = inputLength;
+            this.digest = digest;
+        }
+    }
+
+    private static class Pending {
+        final Entry entry;
+        final Future<Block> block; // null for directories
+        final boolean first, last;
+
+        Pending(Entry entry, Future<Block> block, boolean first, boolean last) {
+            this.entry = entry;
+            this.block = block;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private final OutputStream out;
+    private final ExecutorService pool;
+    private final int threads, maxInFlight;
+    private final ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Deflater> deflaters = new CopyOnWriteArrayList<>();
+    // one deflater per level and thread, changing the level of a primed deflater would flush it
+    private final ThreadLocal<Deflater[]> deflater = ThreadLocal.withInitial(() -> new Deflater[10]);
+    private final CompressionPolicy policy;
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(BackupManifest::newDigest);
+    private final boolean hashContent;
+    private Throttle throttle = Throttle.NONE;
+    private final byte[] scratch = new byte[8];
+    private long written = 0;
+    private boolean closed = false;
+
+    public ParallelZipWriter(OutputStream out, CompressionPolicy policy, int threads, boolean hashContent) {
+        this.out = out;
+        this.policy = policy;
+        this.hashContent = hashContent;
+        this.threads = threads;
+        this.maxInFlight = threads * 2;
+
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "eBackup-deflate-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // slows reading and compressing down while the server is busy
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void putDirectory(String name, long time) {
+        Entry e = new Entry(name.endsWith("/") ? name : name + "/", time, true);
+        enqueue(new Pending(e, null, true, true));
+    }
+
+    @Override
+    public void putFile(String name, File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            Entry e = new Entry(name, file.lastModified(), false);
+            long length = file.length(), read;
+            e.zip64 = length >= ZIP64_THRESHOLD;
+
+            byte[] prev = null, cur = new byte[BLOCK_SIZE];
+            long start = System.nanoTime();
+            int curLen = readFully(in, cur);
+            read = curLen;
+            throttle.pace(System.nanoTime() - start);
+            e.level = policy.levelFor(name, cur, curLen);
+            boolean first = true;
+            while (true) {
+                byte[] next = null;
+                int nextLen = 0;
+                IOException readError = null;
+                if (curLen == BLOCK_SIZE) {
+                    next = new byte[BLOCK_SIZE];
+                    start = System.nanoTime();
+                    try {
+                        nextLen = readFully(in, next);
+                    } catch (IOException ex) {
+                        // end the entry with what was read so far, like a truncated file
+                        readError = ex;
+                        nextLen = 0;
+                    }
+                    if (readError == null) throttle.pace(System.nanoTime() - start);
+                    read += nextLen;
+                    if (nextLen > 0 && !e.streamed) {
+                        e.streamed = true;
+                        if (e.level == CompressionPolicy.STORED) e.level = Deflater.NO_COMPRESSION;
+                    }
+                }
+
+                boolean last = nextLen <= 0;
+                enqueue(new Pending(e, submit(cur, curLen, prev, last, e.level), first, last));
+                if (readError != null) {
+                    throw new TruncatedEntryException("only " + read + " of " + length + " bytes could be read: " + readError.getMessage(), readError);
+                }
+                if (last) break;
+
+                first = false;
+                prev = cur;
+                cur = next;
+                curLen = nextLen;
+            }
+            if (read < length) throw new TruncatedEntryException("it shrank from " + length + " to " + read + " bytes while it was being archived", null);
+        }
+    }
+
+    @Override
+    public void putBytes(String name, byte[] data, long time) {
+        Entry e = new Entry(name, time, false);
+        e.level = policy.levelFor(name, data, data.length);
+        enqueue(new Pending(e, submit(data, data.length, null, true, e.level), true, true));
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public Map<String, String> getContentHashes() {
+        Map<String, String> hashes = new HashMap<>();
+        for (Entry e : entries) {
+            if (e.hash != null) hashes.put(e.name, e.hash);
+        }
+        return hashes;
+    }
+
+    static int readFully(InputStream in, byte[] buf) throws IOException {
+        int n = 0, r;
+        while (n < buf.length && (r = in.read(buf, n, buf.length - n)) >= 0) {
+            n += r;
+        }
+        return n;
+    }
+
+    private Future<Block> submit(byte[] buf, int len, byte[] dict, boolean last, int level) {
+        return pool.submit(() -> {
+            throttle.acquire();
+            try {
+                return deflate(buf, len, dict, last, level);
+            } finally {
+                throttle.release();
+            }
+        });
+    }
+
+    private Block deflate(byte[] buf, int len, byte[] dict, boolean last, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, len);
+
+        byte[] hash = null;
+        if (hashContent) {
+            MessageDigest md = digest.get();
+            md.update(buf, 0, len);
+            hash = md.digest();
+        }
+        if (level == CompressionPolicy.STORED) return new Block(buf, len, crc.getValue(), len, hash);
+
+        Deflater[] perLevel = deflater.get();
+        Deflater def = perLevel[level];
+        if (def == null) {
+            def = perLevel[level] = new Deflater(level, true);
+            deflaters.add(def);
+        }
+        def.reset();
+        if (dict != null) def.setDictionary(dict, dict.length - DICT_SIZE, DICT_SIZE);
+        def.setInput(buf, 0, len);
+        if (last) def.finish();
+
+        byte[] out = new byte[len + (len >> 8) + 64];
+        int n = 0;
+        while (true) {
+            if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+            n += def.deflate(out, n, out.length - n, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            if (last ? def.finished() : n < out.length) break;
+        }
+        return new Block(out, n, crc.getValue(), len, hash);
+    }
+
+    private void enqueue(Pending p) {
+        inFlight.add(p);
+        while (inFlight.size() > maxInFlight) {
+            writePending(inFlight.poll());
+        }
+    }
+
+    private void writePending(Pending p) {
+        try {
+            Entry e = p.entry;
+            Block b = p.block == null ? null : p.block.get();
+
+            if (p.first) {
+                e.offset = written;
+                if (!e.streamed) {
+                    // whole entry fits in one block, so sizes go straight into the local header
+                    e.zip64 = false;
+                    if (b != null) {
+                        e.crc = b.crc;
+                        e.size = b.inputLength;
+                        e.compressedSize = b.length;
+                    }
+                }
+                entries.add(e);
+                writeLocalHeader(e);
+            }
+
+            if (b != null) {
+                if (e.streamed) {
+                    e.crc = crc32Combine(e.crc, b.crc, b.inputLength);
+                    e.size += b.inputLength;
+                    e.compressedSize += b.length;
+                }
+                if (hashContent) {
+                    if (p.first) e.contentDigest = BackupManifest.newDigest();
+                    e.contentDigest.update(b.digest);
+                    if (p.last) {
+                        e.hash = BackupManifest.toHex(e.contentDigest.digest());
+                        e.contentDigest = null;
+                    }
+                }
+                out.write(b.data, 0, b.length);
+                written += b.length;
+            }
+
+            if (p.last && e.streamed) writeDataDescriptor(e);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while compressing " + p.entry.name));
+        } catch (ExecutionException ex) {
+            throw new UncheckedIOException(new IOException("Error while compressing " + p.entry.name, ex.getCause()));
+        }
+    }
+
+    private void writeLocalHeader(Entry e) throws IOException {
+        byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+        writeInt(0x04034b50L);
+        writeShort(e.zip64 ? 45 : 20);
+        writeShort(FLAG_UTF8 | (e.streamed ? FLAG_DATA_DESCRIPTOR : 0));
+        writeShort(e.method());
+        writeInt(dosTime(e.time));
+        if (e.streamed) {
+            writeInt(0);
+            writeInt(e.zip64 ? ZIP64_MAGIC : 0);
+            writeInt(e.zip64 ? ZIP64_MAGIC : 0);
+        } else {
+            writeInt(e.crc);
+            writeInt(e.compressedSize);
+            writeInt(e.size);
+        }
+        writeShort(name.length);
+        writeShort(e.zip64 ? 20 : 0);
+        writeBytes(name);
+        if (e.zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    private void writeDataDescriptor(Entry e) throws IOException {
+        writeInt(0x08074b50L);
+        writeInt(e.crc);
+        if (e.zip64) {
+            writeLong(e.compressedSize);
+            writeLong(e.size);
+        } else {
+            if (e.compressedSize >= ZIP64_MAGIC || e.size >= ZIP64_MAGIC) {
+                throw new ZipException("File " + e.name + " grew past 4 GB while it was being archived");
+            }
+            writeInt(e.compressedSize);
+            writeInt(e.size);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long cdStart = written;
+        for (Entry e : entries) {
+            boolean sizes64 = e.size >= ZIP64_MAGIC || e.compressedSize >= ZIP64_MAGIC;
+            boolean offset64 = e.offset >= ZIP64_MAGIC;
+            int extraLen = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+            int version = extraLen > 0 || e.zip64 ? 45 : 20;
+
+            byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+            writeInt(0x02014b50L);
+            writeShort(version);
+            writeShort(version);
+            writeShort(FLAG_UTF8 | (e.streamed ? FLAG_DATA_DESCRIPTOR : 0));
+            writeShort(e.method());
+            writeInt(dosTime(e.time));
+            writeInt(e.crc);
+            writeInt(sizes64 ? ZIP64_MAGIC : e.compressedSize);
+            writeInt(sizes64 ? ZIP64_MAGIC : e.size);
+            writeShort(name.length);
+            writeShort(extraLen > 0 ? extraLen + 4 : 0);
+            writeShort(0); // comment
+            writeShort(0); // disk
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(offset64 ? ZIP64_MAGIC : e.offset);
+            writeBytes(name);
+            if (extraLen > 0) {
+                writeShort(0x0001);
+                writeShort(extraLen);
+                if (sizes64) {
+                    writeLong(e.size);
+                    writeLong(e.compressedSize);
+                }
+                if (offset64) writeLong(e.offset);
+            }
+        }
+        long cdSize = written - cdStart;
+
+        boolean zip64 = entries.size() >= 0xFFFF || cdStart >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long eocd64 = written;
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(cdSize);
+            writeLong(cdStart);
+
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(eocd64);
+            writeInt(1);
+        }
+
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), 0xFFFF));
+        writeShort(Math.min(entries.size(), 0xFFFF));
+        writeInt(Math.min(cdSize, ZIP64_MAGIC));
+        writeInt(Math.min(cdStart, ZIP64_MAGIC));
+        writeShort(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        boolean finished = false;
+        try {
+            while (!inFlight.isEmpty()) {
+                writePending(inFlight.poll());
+            }
+            writeCentralDirectory();
+            finished = true;
+            out.close();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
+            for (Deflater d : deflaters) d.end();
+            // release the file or upload even if the archive is incomplete, a streamed backup is aborted before
+            // this so the upload isn't completed
+            if (!finished) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        out.write(scratch, 0, 2);
+        written += 2;
+    }
+
+    private void writeInt(long v) throws IOException {
+        for (int i = 0; i < 4; i++) scratch[i] = (byte) (v >>> (8 * i));
+        out.write(scratch, 0, 4);
+        written += 4;
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) scratch[i] = (byte) (v >>> (8 * i));
+        out.write(scratch, 0, 8);
+        written += 8;
+    }
+
+    private void writeBytes(byte[] b) throws IOException {
+        out.write(b);
+        written += b.length;
+    }
+
+    private static long dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return ((long) (t.getYear() - 1980) << 25) | (t.getMonthValue() << 21) | (t.getDayOfMonth() << 16)
+                | (t.getHour() << 11) | (t.getMinute() << 5) | (t.getSecond() >> 1);
+    }
+
+    // crc32_combine from zlib, so blocks can be checksummed independently on the workers
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) return crc1;
+
+        long[] even = new long[32], odd = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0) break;
+
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+}
@@ -0,0 +1,182 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Chunk level deltas of Minecraft region (.mca) files.
+ *
+ * A region file starts with two 4 KB tables: the location (sector offset and count) and the last save
+ * timestamp of each of its 1024 chunks. A delta holds the new header plus only the chunks whose timestamp
+ * changed; {@link #apply(File, InputStream, File)} rebuilds the full region file from the previous version.
+ */
+public class RegionDelta {
+
+    static final String EXTENSION = ".mcadelta";
+
+    private static final int MAGIC = 0x45425244; // "EBRD"
+    private static final int VERSION = 1;
+    private static final int SECTOR = 4096, CHUNKS = 1024, HEADER = SECTOR * 2;
+
+    static boolean isRegionFile(String name) {
+        return name.endsWith(".mca");
+    }
+
+    // chunk timestamps from the region header, null if the file has no complete header
+    static int[] readTimestamps(File region) throws IOException {
+        byte[] header = readHeader(region);
+        return header == null ? null : timestamps(header);
+    }
+
+    /**
+     * Creates a delta holding the chunks that changed since the given timestamps.
+     *
+     * @return the delta, or null if it would not be much smaller than the region file itself
+     */
+    static byte[] create(File region, int[] oldTimestamps) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(region, "r")) {
+            if (raf.length() < HEADER) return null;
+            byte[] header = new byte[HEADER];
+            raf.readFully(header);
+            int[] timestamps = timestamps(header);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(header);
+
+            Map<Integer, byte[]> changed = new HashMap<>();
+            for (int i = 0; i < CHUNKS; i++) {
+                // chunks without a timestamp can't be compared, always keep those
+                if (location(header, i) != 0 && (timestamps[i] != oldTimestamps[i] || timestamps[i] == 0)) {
+                    changed.put(i, readChunk(raf, header, i));
+                }
+            }
+
+            out.writeInt(changed.size());
+            for (Map.Entry<Integer, byte[]> e : changed.entrySet()) {
+                out.writeShort(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+            out.flush();
+
+            if (bytes.size() > raf.length() / 2) return null;
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Rebuilds a region file from the previous version (base) and a delta, writing it to out.
+     * Chunks are laid out again from the start, so out must not be the base file.
+     */
+    public static void apply(File base, InputStream delta, File out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(delta));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a region delta");
+        byte[] header = new byte[HEADER];
+        in.readFully(header);
+        Map<Integer, byte[]> changed = new HashMap<>();
+        int count = in.readInt();
+        for (int n = 0; n < count; n++) {
+            int index = in.readUnsignedShort();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            changed.put(index, data);
+        }
+
+        try (RandomAccessFile b = base.exists() ? new RandomAccessFile(base, "r") : null;
+             RandomAccessFile o = new RandomAccessFile(out, "rw")) {
+            byte[] baseHeader = null;
+            if (b != null && b.length() >= HEADER) {
+                baseHeader = new byte[HEADER];
+                b.readFully(baseHeader);
+            }
+
+            o.setLength(0);
+            byte[] locations = new byte[SECTOR];
+            int sector = 2;
+            for (int i = 0; i < CHUNKS; i++) {
+                if (location(header, i) == 0) continue;
+
+                byte[] data = changed.get(i);
+                if (data == null) {
+                    if (baseHeader == null || location(baseHeader, i) == 0) {
+                        throw new IOException("Chunk " + i + " is missing from " + base + ", restore the previous backups first");
+                    }
+                    data = readChunk(b, baseHeader, i);
+                }
+
+                int sectors = (data.length + SECTOR - 1) / SECTOR;
+                o.seek((long) sector * SECTOR);
+                o.write(data);
+                o.write(new byte[sectors * SECTOR - data.length]); // pad to whole sectors
+                locations[i * 4] = (byte) (sector >> 16);
+                locations[i * 4 + 1] = (byte) (sector >> 8);
+                locations[i * 4 + 2] = (byte) sector;
+                locations[i * 4 + 3] = (byte) sectors;
+                sector += sectors;
+            }
+            o.seek(0);
+            o.write(locations);
+            o.write(header, SECTOR, SECTOR); // timestamps
+        }
+    }
+
+    private static byte[] readHeader(File region) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(region, "r")) {
+            if (raf.length() < HEADER) return null;
+            byte[] header = new byte[HEADER];
+            raf.readFully(header);
+            return header;
+        }
+    }
+
+    private static int[] timestamps(byte[] header) {
+        int[] t = new int[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            int p = SECTOR + i * 4;
+            t[i] = (header[p] & 0xFF) << 24 | (header[p + 1] & 0xFF) << 16 | (header[p + 2] & 0xFF) << 8 | header[p + 3] & 0xFF;
+        }
+        return t;
+    }
+
+    // sector offset and count packed as in the header, 0 if the chunk doesn't exist
+    private static int location(byte[] header, int i) {
+        int p = i * 4;
+        return (header[p] & 0xFF) << 24 | (header[p + 1] & 0xFF) << 16 | (header[p + 2] & 0xFF) << 8 | header[p + 3] & 0xFF;
+    }
+
+    // the chunk as stored: 4 byte length, compression type and data
+    private static byte[] readChunk(RandomAccessFile raf, byte[] header, int i) throws IOException {
+        int location = location(header, i);
+        long offset = (long) (location >>> 8) * SECTOR;
+        int sectors = location & 0xFF;
+
+        raf.seek(offset);
+        int length = raf.readInt() + 4;
+        if (length < 5 || length > sectors * SECTOR) length = sectors * SECTOR; // odd length, keep the whole sectors
+        byte[] data = new byte[length];
+        raf.seek(offset);
+        raf.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,193 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * A {@link StorageBackend} on a server, running its operations on pooled connections of type C.
+ *
+ * The pool and the worker threads are both the size of the connections setting of the target, so
+ * operations that can't get a connection queue up instead of opening more.
+ */
+abstract class RemoteBackend<C> implements StorageBackend {
+
+    interface Operation<C, T> {
+        T run(C c) throws Exception;
+    }
+
+    final UploadTarget target;
+    final ConnectionPool<C> pool;
+    private final ExecutorService executor;
+
+    RemoteBackend(UploadTarget target, ConnectionPool.Factory<C> factory) {
+        this.target = target;
+        this.pool = new ConnectionPool<>(factory, target.connections, target.keepAlive * 1000L);
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(target.connections, r -> {
+            Thread t = new Thread(r, "eBackup-" + target.name + "-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // runs an operation in the background
+    <T> CompletableFuture<T> submit(Operation<C, T> op) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call(op));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("Connections to " + target + " are closed"));
+        }
+        return future;
+    }
+
+    // runs an operation on this thread, a connection that fails isn't used again
+    <T> T call(Operation<C, T> op) throws Exception {
+        C c = pool.borrow();
+        T result;
+        try {
+            result = op.run(c);
+        } catch (Exception e) {
+            pool.discard(c);
+            throw e;
+        }
+        pool.release(c);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        pool.close();
+    }
+
+    // copies a local file into an upload, slowed down by the throttle
+    static void copy(File f, OutputStream out, Throttle throttle) throws IOException {
+        byte[] buf = new byte[1024 * 1024];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                long start = System.nanoTime();
+                out.write(buf, 0, n);
+                throttle.pace(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // the temporary name of an upload
+    static String partial(String name) {
+        return name + PARTIAL_EXTENSION;
+    }
+
+    // moves a complete upload to its real name, replacing a file with that name
+    abstract void rename(C c, String from, String to) throws IOException;
+
+    /**
+     * Upload of name into out, which writes to {@link #partial(String)} on connection c. Closing it completes
+     * the transfer and renames the file, the connection is given back or discarded if the transfer failed.
+     */
+    Upload uploading(C c, OutputStream out, String name, Finisher<C> finish) {
+        return new Upload(out) {
+            private boolean failed = false, closed = false;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                if (failed) {
+                    abort();
+                    throw new IOException("Upload of " + name + " to " + target + " is incomplete");
+                }
+                closed = true;
+                try {
+                    super.close();
+                    finish.finish(c);
+                    rename(c, partial(name), name);
+                } catch (IOException e) {
+                    pool.discard(c);
+                    delete(partial(name));
+                    throw e;
+                }
+                pool.release(c);
+            }
+
+            @Override
+            public void abort() {
+                if (closed) return;
+                closed = true;
+                // the transfer is never completed, the connection is dropped with it
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                pool.discard(c);
+                delete(partial(name));
+            }
+        };
+    }
+
+    InputStream returning(C c, InputStream in, Finisher<C> finish) {
+        return new FilterInputStream(in) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                boolean failed = true;
+                try {
+                    super.close();
+                    finish.finish(c);
+                    failed = false;
+                } finally {
+                    if (failed) {
+                        pool.discard(c);
+                    } else {
+                        pool.release(c);
+                    }
+                }
+            }
+        };
+    }
+
+    // completes a transfer after its stream is closed
+    interface Finisher<C> {
+        void finish(C c) throws IOException;
+    }
+}
@@ -0,0 +1,122 @@
+package dev.espi.ebackup;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.IsoFields;
+import java.util.*;
+import java.util.function.Function;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Which backups to keep: the newest "last" backups, plus the newest backup of each of the last
+ * hourly/daily/weekly/monthly hours, days, weeks and months that have one. Periods use the server time zone.
+ *
+ * Incremental backups keep their full backup and the incrementals between them, so a kept backup can
+ * always be restored. Decisions only use the catalog, nothing is read from disk.
+ */
+public class RetentionPolicy {
+
+    final int last, hourly, daily, weekly, monthly;
+    private final ZoneId zone;
+
+    public RetentionPolicy(int last, int hourly, int daily, int weekly, int monthly) {
+        this(last, hourly, daily, weekly, monthly, ZoneId.systemDefault());
+    }
+
+    RetentionPolicy(int last, int hourly, int daily, int weekly, int monthly, ZoneId zone) {
+        this.last = last;
+        this.hourly = Math.max(0, hourly);
+        this.daily = Math.max(0, daily);
+        this.weekly = Math.max(0, weekly);
+        this.monthly = Math.max(0, monthly);
+        this.zone = zone;
+    }
+
+    // false keeps everything, last < 0 keeps only what the periods keep
+    public boolean isEnabled() {
+        return last >= 0 || hourly + daily + weekly + monthly > 0;
+    }
+
+    /**
+     * The backups to keep.
+     *
+     * @param backups oldest to newest
+     * @param keepNewestChain also keep the newest full backup and its incrementals, when the next backup builds on it
+     */
+    public Set<BackupCatalog.Backup> select(List<BackupCatalog.Backup> backups, boolean keepNewestChain) {
+        Set<BackupCatalog.Backup> keep = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (!isEnabled()) {
+            keep.addAll(backups);
+            return keep;
+        }
+        List<BackupCatalog.Backup> newest = new ArrayList<>(backups);
+        Collections.reverse(newest);
+
+        for (int i = 0; i < last && i < newest.size(); i++) keep.add(newest.get(i));
+        keepPerPeriod(newest, hourly, t -> t.getYear() + "-" + t.getDayOfYear() + "-" + t.getHour(), keep);
+        keepPerPeriod(newest, daily, t -> t.getYear() + "-" + t.getDayOfYear(), keep);
+        keepPerPeriod(newest, weekly, t -> t.get(IsoFields.WEEK_BASED_YEAR) + "-" + t.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR), keep);
+        keepPerPeriod(newest, monthly, t -> t.getYear() + "-" + t.getMonthValue(), keep);
+
+        if (keepNewestChain) {
+            for (BackupCatalog.Backup b : newest) {
+                if (!b.isIncremental()) {
+                    keep.add(b);
+                    break;
+                }
+            }
+        }
+
+        // an incremental needs its full backup and everything in between
+        Set<String> keptChains = new HashSet<>();
+        Map<String, Long> keptUntil = new HashMap<>();
+        for (BackupCatalog.Backup b : keep) {
+            String chain = b.isIncremental() ? b.base : b.name;
+            if (chain == null) continue;
+            keptChains.add(chain);
+            keptUntil.merge(chain, b.created, Math::max);
+        }
+        if (keepNewestChain) {
+            for (BackupCatalog.Backup b : newest) {
+                if (!b.isIncremental()) {
+                    keptUntil.put(b.name, Long.MAX_VALUE); // the next backup continues this chain
+                    break;
+                }
+            }
+        }
+        for (BackupCatalog.Backup b : backups) {
+            if (b.isIncremental() && b.base != null && keptChains.contains(b.base) && b.created <= keptUntil.get(b.base)) keep.add(b);
+            if (!b.isIncremental() && keptChains.contains(b.name)) keep.add(b);
+        }
+        return keep;
+    }
+
+    // the newest backup of each of the newest count periods
+    private void keepPerPeriod(List<BackupCatalog.Backup> newest, int count, Function<ZonedDateTime, String> period, Set<BackupCatalog.Backup> keep) {
+        if (count <= 0) return;
+        Set<String> periods = new HashSet<>();
+        for (BackupCatalog.Backup b : newest) {
+            if (periods.add(period.apply(Instant.ofEpochMilli(b.created).atZone(zone)))) {
+                keep.add(b);
+                if (periods.size() >= count) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package dev.espi.ebackup;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Saves worlds for backups on the main thread, spread over ticks so a backup doesn't cause a lag spike.
+ *
+ * Bukkit can only save a whole world at once, so the coordinator decides in which tick each save runs: it
+ * remembers how long saving each world took, runs as many saves in a tick as fit in the tick budget and
+ * prefers ticks after which the server had time to spare. A world that never fits or a server that never
+ * idles is saved anyway after waiting a while, alone in its tick.
+ */
+public class SaveCoordinator {
+
+    // a tick that started this soon after the last one means the server kept up and slept in between
+    private static final long IDLE_INTERVAL_NANOS = 52_000_000;
+
+    private static class Request {
+        final World world;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+        int waited = 0;
+
+        Request(World world) {
+            this.world = world;
+        }
+    }
+
+    private final Plugin plugin;
+    private final double budgetMillis;
+    private final int maxWaitTicks;
+    private final TickMonitor monitor;
+    private final BackupMetrics metrics;
+
+    private final Queue<Request> pending = new ConcurrentLinkedQueue<>();
+    // smoothed milliseconds each world took to save
+    private final Map<String, Double> cost = new ConcurrentHashMap<>();
+    private BukkitTask task;
+    private long lastTick = 0;
+
+    /**
+     * @param monitor tick health on paper, or null to only go by the time between ticks
+     */
+    public SaveCoordinator(Plugin plugin, double budgetMillis, int maxWaitTicks, TickMonitor monitor, BackupMetrics metrics) {
+        this.plugin = plugin;
+        this.budgetMillis = budgetMillis;
+        this.maxWaitTicks = maxWaitTicks;
+        this.monitor = monitor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Saves a world and turns its autosave off in the same tick, so it isn't written while it is backed up.
+     *
+     * @return completes with the nanoseconds the main thread spent saving
+     */
+    public CompletableFuture<Long> save(World w) {
+        Request r = new Request(w);
+        pending.add(r);
+        Bukkit.getScheduler().runTask(plugin, this::start);
+        return r.done;
+    }
+
+    public void stop() {
+        if (task != null) task.cancel();
+        task = null;
+        for (Request r; (r = pending.poll()) != null; ) r.done.cancel(false);
+    }
+
+    // estimated milliseconds to save a world, a world that wasn't saved before gets a tick to itself
+    public double cost(World w) {
+        return cost.getOrDefault(w.getName(), budgetMillis);
+    }
+
+    private void start() {
+        if (task != null || pending.isEmpty()) return;
+        lastTick = 0;
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 0, 1);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        boolean idle = lastTick != 0 && now - lastTick <= IDLE_INTERVAL_NANOS && (monitor == null || monitor.getMspt() + budgetMillis <= 50);
+        lastTick = now;
+
+        long used = 0;
+        Request r;
+        while ((r = pending.peek()) != null) {
+            double expected = cost(r.world);
+            if (used == 0) {
+                // the first save of a tick waits for an idle tick, or until it waited long enough
+                if (!(idle || r.waited >= maxWaitTicks)) break;
+            } else if (!idle || used / 1e6 + expected > budgetMillis) {
+                break;
+            }
+            pending.poll();
+            used += run(r);
+        }
+        for (Request q : pending) q.waited++;
+        if (used > 0) metrics.mainThreadStalled(used);
+
+        if (pending.isEmpty()) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private long run(Request r) {
+        long start = System.nanoTime();
+        try {
+            r.world.save();
+            r.world.setAutoSave(false); // make sure autosave doesn't screw everything over
+        } catch (RuntimeException e) {
+            r.done.completeExceptionally(e);
+            return System.nanoTime() - start;
+        }
+        long nanos = System.nanoTime() - start;
+        cost.merge(r.world.getName(), nanos / 1e6, (old, now) -> old * 0.5 + now * 0.5);
+        r.done.complete(nanos);
+        return nanos;
+    }
+}
@@ -0,0 +1,504 @@
+package dev.espi.ebackup;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Uploads a file in fixed-size pieces over several connections at once, each writing at its own offset.
+ *
+ * Finished pieces are recorded in a journal next to the file ({@value #JOURNAL_EXTENSION}, one per
+ * {@link UploadTarget}), so an interrupted upload continues with the missing pieces instead of starting
+ * over. The pieces are written to the temporary name of the file on the server
+ * ({@link StorageBackend#PARTIAL_EXTENSION}), which is renamed once every piece is uploaded and the journal
+ * is deleted, so an upload that is never finished doesn't look like a backup.
+ *
+ * SFTP: the remote file is created and resized to its final size first, pieces are then written with
+ * positional writes. FTP: each piece is a REST + STOR, the server must not truncate the file on a
+ * restarted STOR (vsftpd and ProFTPD with AllowStoreRestart don't). The piece at offset 0 is always
+ * uploaded on its own first, since a STOR at offset 0 does truncate. A server that refuses REST, or whose
+ * file ends up the wrong size, gets the file again as one plain STOR, as do targets with a single
+ * connection, which gain nothing from pieces. Such an upload starts over if it is interrupted.
+ *
+ * With a key the file is uploaded encrypted ({@link BackupCrypto}), each piece is encrypted while it is read.
+ * The journal keeps the header of the encrypted file, so a resumed upload continues the same encrypted file,
+ * and a check value of its key: if the key changed since, the upload starts over instead of mixing pieces
+ * encrypted with two keys.
+ */
+public class SegmentedUpload {
+
+    static final String JOURNAL_EXTENSION = ".upload";
+
+    private static final long PIECE_SIZE = 16 * 1024 * 1024;
+    private static final int ATTEMPTS = 3;
+
+    private final File file, journal;
+    private final UploadTarget target;
+    private final boolean sftp;
+    // connections of the target's backend, so pieces reuse the sessions other transfers opened
+    private final ConnectionPool<ChannelSftp> sftpPool;
+    private final ConnectionPool<FTPClient> ftpPool;
+    private final int connections;
+    // remote is the path of partialName, the name the pieces are written to until the upload is complete
+    private final String remote, remoteName, partialName;
+    // size is that of the uploaded (encrypted) file
+    private final long size, modified;
+    private final BackupCrypto.Key key;
+    private BackupCrypto.FileKey fileKey;
+    private final int pieces;
+    private final BitSet done = new BitSet();
+    // the ftp server doesn't write at an offset
+    private volatile boolean restRefused = false;
+
+    // only for ftp and sftp targets, key is null to upload the file as it is
+    SegmentedUpload(File file, UploadTarget target, BackupCrypto.Key key) {
+        this.file = file;
+        this.journal = journalFor(file, target);
+        this.target = target;
+        this.sftp = target.isSftp();
+        StorageBackend backend = target.backend();
+        this.sftpPool = sftp ? ((SftpBackend) backend).pool : null;
+        this.ftpPool = sftp ? null : ((FtpBackend) backend).pool;
+        this.connections = Math.max(1, target.connections);
+        this.key = key;
+        this.remoteName = file.getName() + (key != null ? BackupCrypto.EXTENSION : "");
+        this.partialName = RemoteBackend.partial(remoteName);
+        this.remote = target.path + "/" + partialName;
+        this.size = key != null ? BackupCrypto.encryptedSize(file.length()) : file.length();
+        this.modified = file.lastModified();
+        this.pieces = (int) ((size + PIECE_SIZE - 1) / PIECE_SIZE);
+    }
+
+    // "<file>.upload" for the main target, "<file>.<target>.upload" for the others
+    static File journalFor(File f, UploadTarget target) {
+        return new File(f.getPath() + (target.isMain() ? "" : "." + target.name) + JOURNAL_EXTENSION);
+    }
+
+    static class Unfinished {
+        final File file;
+        final UploadTarget target;
+
+        Unfinished(File file, UploadTarget target) {
+            this.file = file;
+            this.target = target;
+        }
+    }
+
+    // files with an unfinished upload in the folder, deleting journals of files and targets that are gone
+    static List<Unfinished> unfinished(File dir, Collection<UploadTarget> targets) {
+        List<Unfinished> files = new ArrayList<>();
+        File[] journals = dir.listFiles((d, name) -> name.endsWith(JOURNAL_EXTENSION));
+        if (journals == null) return files;
+        journals:
+        for (File j : journals) {
+            String path = j.getPath().substring(0, j.getPath().length() - JOURNAL_EXTENSION.length());
+            for (UploadTarget t : targets) {
+                if (t.isLocal()) continue; // not uploaded in pieces
+                String suffix = t.isMain() ? "" : "." + t.name;
+                File f = new File(path.substring(0, path.length() - suffix.length()));
+                if (path.endsWith(suffix) && f.exists() && journalFor(f, t).equals(j)) {
+                    files.add(new Unfinished(f, t));
+                    continue journals;
+                }
+            }
+            j.delete();
+        }
+        files.sort(Comparator.comparingLong(u -> u.file.lastModified()));
+        return files;
+    }
+
+    /**
+     * Uploads the pieces that aren't in the journal yet.
+     *
+     * @throws IOException if some pieces could not be uploaded, they are retried by the next run
+     */
+    public void run() throws IOException {
+        boolean resuming = loadJournal();
+        if (key != null && fileKey == null) fileKey = BackupCrypto.FileKey.create(key);
+        try {
+            prepare(resuming);
+        } catch (SftpException e) {
+            throw new IOException("Unable to create " + remote + " on the SFTP server", e);
+        }
+        saveJournal();
+
+        if (!sftp && connections == 1) {
+            storeWhole();
+        } else {
+            if (resuming && done.cardinality() > 0) {
+                eBackup.getPlugin().getLogger().info("Resuming upload of " + remoteName + ", " + done.cardinality() + " of " + pieces + " pieces were uploaded already.");
+            }
+
+            // the first piece on its own, see above
+            Queue<Integer> queue = new ConcurrentLinkedQueue<>();
+            if (!sftp && pieces > 0 && !done.get(0)) {
+                queue.add(0);
+                runWorkers(queue, 1);
+            }
+            for (int i = done.nextClearBit(0); i < pieces; i = done.nextClearBit(i + 1)) queue.add(i);
+            runWorkers(queue, Math.min(connections, queue.size()));
+
+            if (restRefused) {
+                eBackup.getPlugin().getLogger().warning("The FTP server of " + target + " refuses to write at an offset (REST), uploading " + remoteName
+                        + " whole instead. Set its connections to 1 to skip trying.");
+                storeWhole();
+            } else {
+                synchronized (done) {
+                    if (done.cardinality() < pieces) {
+                        throw new IOException("Upload of " + remoteName + " is incomplete (" + done.cardinality() + " of " + pieces + " pieces), it will resume with the next upload");
+                    }
+                }
+                // a server that truncates on a restarted STOR loses what was written past the piece
+                long uploaded = sftp ? size : remoteSize();
+                if (uploaded >= 0 && uploaded != size) {
+                    eBackup.getPlugin().getLogger().warning("The FTP server of " + target + " left " + remoteName + " at " + uploaded + " of " + size
+                            + " bytes, it truncates files written at an offset. Uploading it whole instead, set its connections to 1 to skip trying.");
+                    storeWhole();
+                }
+            }
+        }
+        if (sftp) {
+            rename((SftpBackend) target.backend());
+        } else {
+            rename((FtpBackend) target.backend());
+        }
+        journal.delete();
+    }
+
+    // the whole file as one plain STOR without REST, which every ftp server supports
+    private void storeWhole() throws IOException {
+        Connection c = new Connection();
+        boolean ok = false;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            c.upload(in, fileKey != null ? new BackupCrypto.EncryptedFile(fileKey, in) : null, 0, size, new byte[1024 * 1024]);
+            ok = true;
+        } catch (SftpException e) {
+            throw new IOException(e); // ftp only
+        } finally {
+            if (ok) {
+                c.release();
+            } else {
+                c.discard();
+            }
+        }
+        synchronized (done) {
+            done.set(0, pieces);
+        }
+    }
+
+    // size of the uploaded file on the ftp server, -1 if it isn't known
+    private long remoteSize() throws IOException {
+        FTPClient ftpClient = ftpPool.borrow();
+        boolean ok = false;
+        try {
+            FTPFile[] files = ftpClient.listFiles(partialName);
+            ok = true;
+            return files.length == 1 ? files[0].getSize() : -1;
+        } finally {
+            giveBack(ftpPool, ftpClient, ok);
+        }
+    }
+
+    // gives the complete file its real name
+    private <C> void rename(RemoteBackend<C> backend) throws IOException {
+        C c = backend.pool.borrow();
+        boolean ok = false;
+        try {
+            backend.rename(c, partialName, remoteName);
+            ok = true;
+        } finally {
+            giveBack(backend.pool, c, ok);
+        }
+    }
+
+    // start workers on separate connections and wait for them, pieces that failed stay in the queue
+    private void runWorkers(Queue<Integer> queue, int count) throws IOException {
+        if (queue.isEmpty()) return;
+        AtomicReference<Exception> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            String name = "eBackup-upload-" + (target.isMain() ? "" : target.name + "-") + i;
+            Thread t = new Thread(() -> work(queue, error), name);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        try {
+            for (Thread t : threads) t.join();
+        } catch (InterruptedException e) {
+            for (Thread t : threads) t.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + remoteName);
+        }
+        if (error.get() != null) {
+            eBackup.getPlugin().getLogger().warning("Upload connection failed: " + error.get().getMessage());
+        }
+    }
+
+    private void work(Queue<Integer> queue, AtomicReference<Exception> error) {
+        Connection c = null;
+        byte[] buf = new byte[1024 * 1024];
+        int failures = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            BackupCrypto.EncryptedFile encrypted = fileKey != null ? new BackupCrypto.EncryptedFile(fileKey, in) : null;
+            Integer piece;
+            while ((piece = queue.poll()) != null) {
+                try {
+                    if (c == null) c = new Connection();
+                    long start = piece * PIECE_SIZE;
+                    c.upload(in, encrypted, start, Math.min(PIECE_SIZE, size - start), buf);
+                    markDone(piece);
+                } catch (RestRefusedException e) {
+                    // no piece but the first can be written, see run
+                    restRefused = true;
+                    queue.clear();
+                    return;
+                } catch (Exception e) {
+                    queue.add(piece); // let this or another connection try again
+                    if (c != null) c.discard();
+                    c = null;
+                    if (++failures >= ATTEMPTS) {
+                        error.compareAndSet(null, e);
+                        return;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            error.compareAndSet(null, e);
+        } finally {
+            if (c != null) c.release();
+        }
+    }
+
+    private void markDone(int piece) throws IOException {
+        synchronized (done) {
+            done.set(piece);
+            saveJournal();
+        }
+    }
+
+    // create the remote file if needed, or start over if it doesn't match the journal
+    private void prepare(boolean resuming) throws IOException, SftpException {
+        if (sftp) {
+            ChannelSftp sftpChannel = sftpPool.borrow();
+            boolean ok = false;
+            try {
+                SftpATTRS attrs = null;
+                try {
+                    attrs = sftpChannel.stat(remote);
+                } catch (SftpException e) {
+                    if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) throw e;
+                }
+                if (!resuming || attrs == null || attrs.getSize() != size) {
+                    done.clear();
+                    if (attrs == null) sftpChannel.put(remote, (SftpProgressMonitor) null, ChannelSftp.APPEND).close();
+                    attrs = sftpChannel.stat(remote);
+                    attrs.setSIZE(size);
+                    sftpChannel.setStat(remote, attrs);
+                }
+                ok = true;
+            } catch (IOException e) {
+                throw new IOException("Unable to create " + remote + " on the SFTP server", e);
+            } finally {
+                giveBack(sftpPool, sftpChannel, ok);
+            }
+        } else if (resuming) {
+            FTPClient ftpClient = ftpPool.borrow();
+            boolean ok = false;
+            try {
+                if (ftpClient.listFiles(partialName).length == 0) done.clear();
+                ok = true;
+            } finally {
+                giveBack(ftpPool, ftpClient, ok);
+            }
+        }
+        if (pieces == 0 && !sftp) {
+            // nothing to write in pieces, just create the file
+            FTPClient ftpClient = ftpPool.borrow();
+            boolean ok = false;
+            try {
+                ok = ftpClient.storeFile(partialName, new ByteArrayInputStream(new byte[0]));
+                if (!ok) throw new IOException("FTP server failed to store " + remoteName + ": " + ftpClient.getReplyString());
+            } finally {
+                giveBack(ftpPool, ftpClient, ok);
+            }
+        }
+    }
+
+    private static <C> void giveBack(ConnectionPool<C> pool, C c, boolean ok) {
+        if (ok) {
+            pool.release(c);
+        } else {
+            pool.discard(c);
+        }
+    }
+
+    // true if a journal of the same file exists
+    private boolean loadJournal() {
+        if (!journal.exists()) return false;
+        Properties p = new Properties();
+        try (Reader r = new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8)) {
+            p.load(r);
+        } catch (IOException e) {
+            return false;
+        }
+        if (!remote.equals(p.getProperty("remote")) || !(target.host + ":" + target.port).equals(p.getProperty("host"))
+                || size != Long.parseLong(p.getProperty("size", "-1")) || modified != Long.parseLong(p.getProperty("modified", "-1"))
+                || PIECE_SIZE != Long.parseLong(p.getProperty("piece-size", "-1"))) {
+            return false;
+        }
+        if (key != null) {
+            // the key changed, start over
+            try {
+                fileKey = BackupCrypto.FileKey.read(key, Base64.getDecoder().decode(p.getProperty("header", "")));
+                if (!MessageDigest.isEqual(fileKey.check(), Base64.getDecoder().decode(p.getProperty("key-check", "")))) {
+                    fileKey = null;
+                    return false;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                fileKey = null;
+                return false;
+            }
+        }
+        for (String s : p.getProperty("done", "").split(",")) {
+            if (!s.isEmpty()) done.set(Integer.parseInt(s));
+        }
+        return true;
+    }
+
+    private void saveJournal() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("host", target.host + ":" + target.port);
+        p.setProperty("remote", remote);
+        p.setProperty("size", Long.toString(size));
+        p.setProperty("modified", Long.toString(modified));
+        p.setProperty("piece-size", Long.toString(PIECE_SIZE));
+        if (fileKey != null) {
+            p.setProperty("header", Base64.getEncoder().encodeToString(fileKey.header));
+            p.setProperty("key-check", Base64.getEncoder().encodeToString(fileKey.check()));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = done.nextSetBit(0); i >= 0; i = done.nextSetBit(i + 1)) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(i);
+        }
+        p.setProperty("done", sb.toString());
+
+        File temp = new File(journal.getPath() + ".tmp");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            p.store(w, "eBackup upload journal");
+        }
+        Files.move(temp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class RestRefusedException extends IOException {
+        RestRefusedException(String message) {
+            super(message);
+        }
+    }
+
+    // one pooled connection to the server, used by one worker
+    private class Connection {
+        private ChannelSftp sftpChannel;
+        private FTPClient ftpClient;
+
+        Connection() throws IOException {
+            if (sftp) {
+                sftpChannel = sftpPool.borrow();
+            } else {
+                ftpClient = ftpPool.borrow();
+            }
+        }
+
+        // encrypted is null if the file is uploaded as it is
+        void upload(RandomAccessFile in, BackupCrypto.EncryptedFile encrypted, long start, long length, byte[] buf) throws IOException, SftpException {
+            OutputStream out;
+            if (sftp) {
+                // RESUME adds the remote size (the final size, see prepare) to the offset, which makes it a plain positional write
+                out = sftpChannel.put(remote, null, ChannelSftp.RESUME, start - size);
+            } else {
+                ftpClient.setRestartOffset(start);
+                out = ftpClient.storeFileStream(partialName);
+                if (out == null) {
+                    // REST is sent first, these replies mean the server doesn't know or allow it
+                    int reply = ftpClient.getReplyCode();
+                    if (start > 0 && (reply == 500 || reply == 501 || reply == 502 || reply == 504)) {
+                        throw new RestRefusedException(ftpClient.getReplyString());
+                    }
+                    throw new IOException("FTP server refused to store " + remoteName + ": " + ftpClient.getReplyString());
+                }
+            }
+
+            try {
+                long written = 0;
+                while (written < length) {
+                    int n = (int) Math.min(buf.length, length - written);
+                    if (encrypted != null) {
+                        encrypted.read(start + written, buf, 0, n);
+                    } else {
+                        in.seek(start + written);
+                        in.readFully(buf, 0, n);
+                    }
+                    long writeStart = System.nanoTime();
+                    out.write(buf, 0, n);
+                    eBackup.getPlugin().throttle.pace(System.nanoTime() - writeStart);
+                    written += n;
+                }
+            } finally {
+                // waits for the server to acknowledge every write
+                out.close();
+            }
+            if (!sftp && !ftpClient.completePendingCommand()) {
+                throw new IOException("FTP server failed to store " + remoteName + ": " + ftpClient.getReplyString());
+            }
+        }
+
+        // back to the pool for the next transfer
+        void release() {
+            if (sftp) {
+                sftpPool.release(sftpChannel);
+            } else {
+                ftpClient.setRestartOffset(0);
+                ftpPool.release(ftpClient);
+            }
+        }
+
+        // after a failure, it isn't used again
+        void discard() {
+            if (sftp) {
+                sftpPool.discard(sftpChannel);
+            } else {
+                ftpPool.discard(ftpClient);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package dev.espi.ebackup;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Stores backups on an SFTP server, over SSH sessions that are kept open between transfers.
+ */
+class SftpBackend extends RemoteBackend<ChannelSftp> {
+
+    SftpBackend(UploadTarget target) {
+        super(target, new ConnectionPool.Factory<ChannelSftp>() {
+            @Override
+            public ChannelSftp open() throws Exception {
+                return target.connectSFTP();
+            }
+
+            @Override
+            public boolean isAlive(ChannelSftp c) {
+                if (!c.isConnected()) return false;
+                try {
+                    c.stat(".");
+                    return true;
+                } catch (SftpException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void close(ChannelSftp c) {
+                UploadTarget.disconnectSFTP(c);
+            }
+        });
+    }
+
+    private String remote(String name) {
+        return target.path + "/" + name;
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String name, File f) {
+        return submit(c -> {
+            try (OutputStream out = c.put(remote(partial(name)))) {
+                copy(f, out, target.throttle);
+            }
+            rename(c, partial(name), name);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> list() {
+        return submit(c -> {
+            List<String> names = new ArrayList<>();
+            for (Object o : c.ls(target.path)) {
+                ChannelSftp.LsEntry e = (ChannelSftp.LsEntry) o;
+                if (!e.getAttrs().isDir() && !e.getFilename().endsWith(PARTIAL_EXTENSION)) names.add(e.getFilename());
+            }
+            return names;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(String name) {
+        return submit(c -> {
+            try {
+                c.rm(remote(name));
+                return true;
+            } catch (SftpException e) {
+                if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) return false;
+                throw e;
+            }
+        });
+    }
+
+    @Override
+    public Upload openUpload(String name) throws IOException {
+        ChannelSftp c = pool.borrow();
+        try {
+            return uploading(c, c.put(remote(partial(name))), name, done -> {
+            });
+        } catch (SftpException e) {
+            pool.release(c);
+            throw new IOException("Unable to create " + name + " on " + target, e);
+        }
+    }
+
+    @Override
+    void rename(ChannelSftp c, String from, String to) throws IOException {
+        try {
+            // SFTP servers don't rename over an existing file
+            try {
+                c.rm(remote(to));
+            } catch (SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) throw e;
+            }
+            c.rename(remote(from), remote(to));
+        } catch (SftpException e) {
+            throw new IOException("Unable to rename " + from + " to " + to + " on " + target, e);
+        }
+    }
+
+    @Override
+    public InputStream openDownload(String name) throws IOException {
+        ChannelSftp c = pool.borrow();
+        try {
+            return returning(c, c.get(remote(name)), done -> {
+            });
+        } catch (SftpException e) {
+            pool.release(c);
+            throw new IOException("Unable to read " + name + " from " + target, e);
+        }
+    }
+}
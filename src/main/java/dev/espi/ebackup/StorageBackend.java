@@ -0,0 +1,74 @@
+package dev.espi.ebackup;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Where uploaded backups are stored, see {@link UploadTarget#backend()}.
+ *
+ * Operations run in the background and return a future, at most a fixed number of them (the connections
+ * setting of the target) at once; the rest wait for their turn. The streams count against that limit for
+ * as long as they are open. Names are file names in the folder of the target.
+ *
+ * Uploads are written under a temporary name and renamed once complete, so the target never has a partial
+ * upload under the real name.
+ */
+public interface StorageBackend {
+
+    // added to the name of an upload until it is complete, files with it aren't listed
+    String PARTIAL_EXTENSION = ".part";
+
+    /**
+     * Stream writing into a file. Closing it completes the upload, {@link #abort()} gives up on it instead
+     * and removes what was written so far.
+     */
+    abstract class Upload extends FilterOutputStream {
+
+        protected Upload(OutputStream out) {
+            super(out);
+        }
+
+        // leaves nothing under the name, doesn't throw since the upload failed anyway
+        public abstract void abort();
+    }
+
+    // uploads a file, replacing a file with the same name
+    CompletableFuture<Void> put(String name, File f);
+
+    // names of the files in the folder
+    CompletableFuture<List<String>> list();
+
+    // completes with false if there was no such file
+    CompletableFuture<Boolean> delete(String name);
+
+    // stream writing into a file, the upload is complete once it is closed
+    Upload openUpload(String name) throws IOException;
+
+    // stream reading a file
+    InputStream openDownload(String name) throws IOException;
+
+    // closes the idle connections, running operations and open streams still finish
+    void close();
+}
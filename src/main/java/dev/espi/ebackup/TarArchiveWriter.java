@@ -0,0 +1,185 @@
+package dev.espi.ebackup;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Tar archive compressed as a whole with zstd ({@value #ZSTD}, multithreaded by zstd itself) or
+ * lz4 ({@value #LZ4}, single threaded but very fast).
+ *
+ * Tar headers declare the size up front, so files are archived with the size they had when they were
+ * added; a file that shrinks meanwhile is padded with zeros and reported like a read error.
+ */
+public class TarArchiveWriter implements ArchiveWriter {
+
+    static final String ZSTD = "tar.zst", LZ4 = "tar.lz4";
+
+    private final TarArchiveOutputStream tar;
+    private final boolean hashContent;
+    private final Map<String, String> hashes = new HashMap<>();
+    private final byte[] buf = new byte[ParallelZipWriter.BLOCK_SIZE];
+    private Throttle throttle = Throttle.NONE;
+    private boolean closed = false;
+
+    public TarArchiveWriter(OutputStream out, String format, int level, int threads, boolean hashContent) throws IOException {
+        OutputStream compressed;
+        if (format.equals(ZSTD)) {
+            compressed = new ZstdOutputStream(out, level).setWorkers(threads);
+        } else if (format.equals(LZ4)) {
+            compressed = new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+        } else {
+            throw new IllegalArgumentException("Unknown tar format " + format);
+        }
+        this.tar = new TarArchiveOutputStream(new BufferedOutputStream(compressed, 1024 * 1024), "UTF-8");
+        this.tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        this.tar.setAddPaxHeadersForNonAsciiNames(true);
+        this.hashContent = hashContent;
+    }
+
+    // slows reading down while the server is busy, compression keeps up with it
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void putDirectory(String name, long time) {
+        TarArchiveEntry e = new TarArchiveEntry(name.endsWith("/") ? name : name + "/");
+        e.setModTime(time);
+        try {
+            tar.putArchiveEntry(e);
+            tar.closeArchiveEntry();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    public void putFile(String name, File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            long size = file.length();
+            TarArchiveEntry e = new TarArchiveEntry(name);
+            e.setSize(size);
+            e.setModTime(file.lastModified());
+            write(() -> tar.putArchiveEntry(e));
+
+            // same block hash list as BackupManifest.contentHash
+            MessageDigest outer = hashContent ? BackupManifest.newDigest() : null, inner = hashContent ? BackupManifest.newDigest() : null;
+            long remaining = size, read = 0;
+            IOException readError = null;
+            boolean first = true;
+            while (first || remaining > 0) {
+                int want = (int) Math.min(buf.length, remaining), len;
+                long start = System.nanoTime();
+                try {
+                    len = readFully(in, want);
+                } catch (IOException ex) {
+                    readError = ex;
+                    len = 0;
+                }
+                throttle.pace(System.nanoTime() - start);
+                if (len < want && readError == null) readError = new EOFException("it shrank while it was being archived");
+
+                if (hashContent && (first || len > 0)) {
+                    inner.update(buf, 0, len);
+                    outer.update(inner.digest());
+                }
+                int n = len;
+                write(() -> tar.write(buf, 0, n));
+                remaining -= len;
+                read += len;
+                first = false;
+
+                if (readError != null) {
+                    // keep the archive readable, the rest of the declared size is zeros
+                    byte[] zeros = new byte[(int) Math.min(buf.length, remaining)];
+                    while (remaining > 0) {
+                        int z = (int) Math.min(zeros.length, remaining);
+                        write(() -> tar.write(zeros, 0, z));
+                        remaining -= z;
+                    }
+                    break;
+                }
+                if (len < buf.length) break;
+            }
+            write(tar::closeArchiveEntry);
+            if (readError != null) {
+                throw new TruncatedEntryException("only " + read + " of " + size + " bytes could be read, the rest is zeros: " + readError.getMessage(), readError);
+            }
+            if (hashContent) hashes.put(name, BackupManifest.toHex(outer.digest()));
+        }
+    }
+
+    @Override
+    public void putBytes(String name, byte[] data, long time) {
+        TarArchiveEntry e = new TarArchiveEntry(name);
+        e.setSize(data.length);
+        e.setModTime(time);
+        write(() -> {
+            tar.putArchiveEntry(e);
+            tar.write(data);
+            tar.closeArchiveEntry();
+        });
+    }
+
+    @Override
+    public Map<String, String> getContentHashes() {
+        return hashes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            tar.finish();
+        } finally {
+            tar.close();
+        }
+    }
+
+    private int readFully(InputStream in, int len) throws IOException {
+        int n = 0, r;
+        while (n < len && (r = in.read(buf, n, len - n)) >= 0) {
+            n += r;
+        }
+        return n;
+    }
+
+    private interface Output {
+        void run() throws IOException;
+    }
+
+    // failures writing the archive are fatal, see ArchiveWriter
+    private static void write(Output o) {
+        try {
+            o.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package dev.espi.ebackup;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Shared speed limit for backup work, as a factor from 1 (full speed) down to {@value #MIN_FACTOR}.
+ *
+ * Readers and uploads call {@link #pace(long)} after each piece of work, which sleeps so they are only busy
+ * for that factor of the time; compression workers take one of the allowed thread slots with
+ * {@link #acquire()}. The slots are counted against one budget for everything using this throttle, so
+ * archives written side by side share it instead of each getting their own. The factor is set by
+ * {@link TickMonitor} from the server tick times: halved while ticks run over budget, raised step by step
+ * again while there is room.
+ */
+public class Throttle {
+
+    // never slows anything down, acquire and release don't even count
+    static final Throttle NONE = new Throttle(0);
+
+    private static final double MIN_FACTOR = 0.05, STEP = 0.1;
+    // longest single pause, so work keeps trickling even when the server lags badly
+    private static final long MAX_PAUSE_NANOS = 2_000_000_000L;
+
+    private final int threads;
+    private volatile double factor = 1;
+    private final AtomicInteger active = new AtomicInteger();
+    // same factor, own thread slots
+    private final List<Throttle> followers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param threads how many compression threads may be busy at full speed, across all archives
+     */
+    public Throttle(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * A throttle slowed down together with this one but with its own budget of threads, for work like
+     * verifying that runs next to backups and shouldn't take their thread slots.
+     */
+    public Throttle follower(int threads) {
+        if (this == NONE) return NONE;
+        Throttle t = new Throttle(threads);
+        t.factor = factor;
+        followers.add(t);
+        return t;
+    }
+
+    public double getFactor() {
+        return factor;
+    }
+
+    void update(double mspt, double budget) {
+        if (mspt > budget) {
+            setFactor(Math.max(MIN_FACTOR, factor / 2));
+        } else if (mspt < budget * 0.8 && factor < 1) {
+            setFactor(Math.min(1, factor + STEP));
+        }
+    }
+
+    private void setFactor(double f) {
+        boolean raised = f > factor;
+        factor = f;
+        if (raised) {
+            synchronized (this) {
+                notifyAll(); // more thread slots
+            }
+        }
+        for (Throttle t : followers) t.setFactor(f);
+    }
+
+    /**
+     * Sleeps after work that took busyNanos, long enough that the caller runs at the current factor.
+     */
+    public void pace(long busyNanos) throws InterruptedIOException {
+        double f = factor;
+        if (f >= 1 || busyNanos <= 0) return;
+        long pause = Math.min(MAX_PAUSE_NANOS, (long) (busyNanos * (1 / f - 1)));
+        try {
+            Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /**
+     * Waits until fewer than the allowed share of the threads are busy, pair with {@link #release()}.
+     */
+    public void acquire() throws InterruptedException {
+        if (this == NONE) return;
+        while (true) {
+            // at full speed this is only the count, the lock is for waiting while slowed down
+            int a = active.get();
+            double f = factor;
+            if (f >= 1 || a < slots(f)) {
+                if (active.compareAndSet(a, a + 1)) return;
+                continue;
+            }
+            synchronized (this) {
+                if (factor < 1 && active.get() >= slots(factor)) wait(1000);
+            }
+        }
+    }
+
+    public void release() {
+        if (this == NONE) return;
+        active.decrementAndGet();
+        if (factor < 1) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private int slots(double f) {
+        return Math.max(1, (int) Math.ceil(threads * f));
+    }
+}
@@ -0,0 +1,88 @@
+package dev.espi.ebackup;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Method;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Samples server tick health on the main thread and feeds it to a {@link Throttle} once a second.
+ *
+ * On Paper the time the server actually spends per tick (MSPT) is used. Other servers only expose the
+ * time between ticks, which stays at 50 ms while the server keeps up, so there only ticks running late
+ * count as over budget.
+ */
+public class TickMonitor {
+
+    private static final int UPDATE_TICKS = 20;
+
+    private final Throttle throttle;
+    private final double budget;
+    private final Method averageTickTime;
+    private BukkitTask task;
+    private long lastTick = 0;
+    private double interval = 50; // smoothed milliseconds between ticks
+    private int ticks = 0;
+
+    public TickMonitor(Throttle throttle, double budget) {
+        this.throttle = throttle;
+        this.budget = budget;
+
+        Method m = null;
+        try {
+            m = Bukkit.getServer().getClass().getMethod("getAverageTickTime"); // paper
+        } catch (NoSuchMethodException ignored) {
+        }
+        this.averageTickTime = m;
+    }
+
+    public void start(Plugin plugin) {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::tick, 1, 1);
+    }
+
+    public void stop() {
+        if (task != null) task.cancel();
+        task = null;
+    }
+
+    // milliseconds per tick, see above for servers other than paper
+    public double getMspt() {
+        if (averageTickTime != null) {
+            try {
+                return ((Number) averageTickTime.invoke(Bukkit.getServer())).doubleValue();
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+        return interval > 51 ? interval : 0;
+    }
+
+    public double getTps() {
+        return Math.min(20, 1000 / interval);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        if (lastTick != 0) interval = interval * 0.9 + (now - lastTick) / 1e6 * 0.1;
+        lastTick = now;
+
+        if (++ticks % UPDATE_TICKS == 0) throttle.update(getMspt(), budget);
+    }
+}
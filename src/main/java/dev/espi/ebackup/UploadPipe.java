@@ -0,0 +1,162 @@
+package dev.espi.ebackup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Output stream that hands its data to another thread, which writes it to a (slow) sink such as an upload.
+ *
+ * At most a fixed number of buffers are queued, writers block once the queue is full, so archiving runs
+ * at the speed of the upload without buffering more than that in memory. If the sink fails, the next
+ * write or {@link #close()} throws its exception. {@link #abort(Throwable)} gives up on an upload without
+ * completing it, e.g. when the data turns out to be incomplete.
+ */
+public class UploadPipe extends OutputStream {
+
+    private static final byte[] EOF = new byte[0], ABORT = new byte[0];
+
+    private final StorageBackend.Upload sink;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread thread;
+    private final int bufferSize;
+    private byte[] buffer;
+    private int count = 0;
+    private volatile IOException error;
+    private volatile Throttle throttle = Throttle.NONE;
+    private boolean closed = false;
+
+    public UploadPipe(StorageBackend.Upload sink, int bufferSize, int buffers, String name) {
+        this.sink = sink;
+        this.bufferSize = bufferSize;
+        this.buffer = new byte[bufferSize];
+        this.queue = new ArrayBlockingQueue<>(buffers);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // limits upload bandwidth while the server is busy
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    private void run() {
+        boolean eof = false;
+        try {
+            byte[] b;
+            while ((b = queue.take()) != EOF) {
+                if (b == ABORT) {
+                    sink.abort();
+                    return;
+                }
+                long start = System.nanoTime();
+                sink.write(b);
+                throttle.pace(System.nanoTime() - start);
+            }
+            eof = true;
+            sink.close();
+        } catch (IOException e) {
+            error = e;
+            if (!eof) sink.abort();
+            // keep taking buffers so the writer never blocks on a dead pipe
+            try {
+                byte[] b;
+                while (!eof && (b = queue.take()) != EOF && b != ABORT) ;
+            } catch (InterruptedException ignored) {
+            }
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("Upload interrupted");
+            sink.abort();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        while (len > 0) {
+            int n = Math.min(len, bufferSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == bufferSize) {
+                put(buffer);
+                buffer = new byte[bufferSize];
+                count = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (count > 0 && error == null) queue.put(Arrays.copyOf(buffer, count));
+            buffer = null;
+            queue.put(EOF);
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing the upload");
+        }
+        if (error != null) throw new IOException(error.getMessage(), error);
+    }
+
+    /**
+     * Gives up on the upload: what is queued is dropped and the sink is aborted instead of closed, so the
+     * incomplete data is never stored under its name. Does nothing once the pipe is closed.
+     */
+    public void abort(Throwable cause) {
+        if (closed) return;
+        closed = true;
+        buffer = null;
+        if (error == null) error = new IOException("Upload aborted" + (cause != null ? ": " + cause.getMessage() : ""), cause);
+        // this is the only writer, so there is room once the queue is cleared
+        queue.clear();
+        queue.offer(ABORT);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(byte[] b) throws IOException {
+        if (error != null) throw error;
+        try {
+            queue.put(b);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading");
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package dev.espi.ebackup;
+
+import com.jcraft.jsch.*;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * An FTP or SFTP server (or a local folder) backups are uploaded to.
+ *
+ * The ftp section of the config is the "main" target, ftp.targets adds more that take the settings they
+ * leave out from it. Backups are sent to all targets at once (see {@link FanOutUpload}); a backup counts as
+ * uploaded once every required target has it. The transfers themselves go through its {@link StorageBackend}.
+ */
+public class UploadTarget {
+
+    static final String MAIN = "main";
+
+    final String name;
+    String type, host, user, pass, path, privateKeyPath, privateKeyPassword;
+    // the sftp server's key must be in knownHosts, or have the SHA256 fingerprint hostKey if set
+    String knownHosts, hostKey;
+    // connections is also the most transfers at once, idle ones are closed after keepAlive seconds
+    int port, connections, keepAlive;
+    boolean useKeyAuth;
+    // the backup only counts as uploaded (and is deleted locally after upload) once this target has it
+    boolean required = true;
+    // slows down whole-file uploads while the server lags
+    Throttle throttle = Throttle.NONE;
+
+    private StorageBackend backend;
+
+    UploadTarget(String name) {
+        this.name = name;
+    }
+
+    boolean isMain() {
+        return name.equals(MAIN);
+    }
+
+    boolean isSftp() {
+        return type.equals("sftp");
+    }
+
+    // a folder instead of a server, see LocalBackend
+    boolean isLocal() {
+        return type.equals("local");
+    }
+
+    @Override
+    public String toString() {
+        return (isMain() ? "" : name + " ") + "(" + type.toUpperCase() + " " + (isLocal() ? path : host) + ")";
+    }
+
+    ChannelSftp connectSFTP() throws JSchException {
+        JSch jsch = new JSch();
+
+        // ssh key auth if enabled
+        if (useKeyAuth) {
+            if (privateKeyPassword.equals("")) {
+                jsch.addIdentity(privateKeyPath);
+            } else {
+                jsch.addIdentity(privateKeyPath, privateKeyPassword);
+            }
+        }
+
+        // never connect to a server whose key isn't known, it could be anyone in between
+        if (hostKey.isEmpty()) {
+            jsch.setKnownHosts(knownHosts);
+        } else {
+            jsch.setHostKeyRepository(new Fingerprint(hostKey));
+        }
+
+        Session session = jsch.getSession(user, host, port);
+        // password auth if using password
+        if (!useKeyAuth) {
+            session.setPassword(pass);
+        }
+        session.setConfig("StrictHostKeyChecking", "yes");
+        try {
+            session.connect();
+        } catch (JSchException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("HostKey")) throw e;
+            throw new JSchException("The host key of " + host + " is not trusted (" + e.getMessage() + "). Add it to " + knownHosts
+                    + ", e.g. with ssh-keyscan -p " + port + " " + host + " >> " + knownHosts + ", or set host-key to its SHA256 fingerprint.", e);
+        }
+
+        Channel channel = session.openChannel("sftp");
+        channel.connect();
+        return (ChannelSftp) channel;
+    }
+
+    // trusts only the host key with a fingerprint, as shown by ssh-keygen -l
+    private static class Fingerprint implements HostKeyRepository {
+        private final String fingerprint;
+
+        Fingerprint(String fingerprint) {
+            this.fingerprint = fingerprint.startsWith("SHA256:") ? fingerprint.substring(7) : fingerprint;
+        }
+
+        @Override
+        public int check(String host, byte[] key) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(key);
+                String actual = Base64.getEncoder().withoutPadding().encodeToString(hash);
+                return MessageDigest.isEqual(actual.getBytes(StandardCharsets.US_ASCII), fingerprint.getBytes(StandardCharsets.US_ASCII)) ? OK : CHANGED;
+            } catch (NoSuchAlgorithmException e) {
+                return CHANGED;
+            }
+        }
+
+        @Override
+        public void add(HostKey hostkey, UserInfo ui) {
+        }
+
+        @Override
+        public void remove(String host, String type) {
+        }
+
+        @Override
+        public void remove(String host, String type, byte[] key) {
+        }
+
+        @Override
+        public String getKnownHostsRepositoryID() {
+            return "host-key";
+        }
+
+        @Override
+        public HostKey[] getHostKey() {
+            return new HostKey[0];
+        }
+
+        @Override
+        public HostKey[] getHostKey(String host, String type) {
+            return new HostKey[0];
+        }
+    }
+
+    static void disconnectSFTP(ChannelSftp sftpChannel) {
+        sftpChannel.exit();
+        try {
+            sftpChannel.getSession().disconnect();
+        } catch (JSchException ignored) {
+        }
+    }
+
+    void connectFTP(FTPClient ftpClient) throws IOException {
+        ftpClient.setDataTimeout(180 * 1000);
+        ftpClient.setConnectTimeout(180 * 1000);
+        ftpClient.setDefaultTimeout(180 * 1000);
+        ftpClient.setControlKeepAliveTimeout(60);
+
+        ftpClient.connect(host, port);
+        ftpClient.enterLocalPassiveMode();
+
+        ftpClient.login(user, pass);
+        ftpClient.setUseEPSVwithIPv4(true);
+
+        ftpClient.changeWorkingDirectory(path);
+        ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+        ftpClient.setBufferSize(1024 * 1024 * 16);
+    }
+
+    /**
+     * Where the backups of this target are stored, created on first use. Its connections are kept open
+     * until {@link #close()}.
+     */
+    synchronized StorageBackend backend() {
+        if (backend == null) {
+            if (isSftp()) {
+                backend = new SftpBackend(this);
+            } else if (type.equals("ftp")) {
+                backend = new FtpBackend(this);
+            } else {
+                backend = new LocalBackend(this);
+            }
+        }
+        return backend;
+    }
+
+    synchronized void close() {
+        if (backend != null) backend.close();
+        backend = null;
+    }
+}
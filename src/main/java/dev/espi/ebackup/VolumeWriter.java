@@ -0,0 +1,151 @@
+package dev.espi.ebackup;
+
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Splits a backup into volumes of about a fixed size, each a complete archive of its own, so a big backup
+ * can be uploaded (and deleted) a piece at a time while the rest is still being written.
+ *
+ * Files are never split between volumes: the next volume starts once the current one has grown past the
+ * volume size, so a volume can be larger by one file plus what the compressor still had in flight. The
+ * volumes are listed in a {@link BackupSet} like the archives of a per-world backup, which restoring,
+ * verifying and uploading already handle.
+ *
+ * A backup that fails calls {@link #abort()} before closing, so the volume it was writing is closed as it is
+ * and never handed to the listener.
+ */
+public class VolumeWriter implements ArchiveWriter {
+
+    // opens the archive of a volume on its file
+    public interface Opener {
+        ArchiveWriter open(OutputStream out) throws IOException;
+    }
+
+    // gets each volume once it is complete, may block to hold the next one back
+    public interface Listener {
+        void finished(File volume) throws IOException;
+    }
+
+    final BackupSet set = new BackupSet();
+
+    private final File dir;
+    private final String fileName, extension;
+    private final long volumeSize;
+    private final Opener opener;
+    private final Listener listener;
+    private final List<File> files;
+    private final Map<String, String> contentHashes = new HashMap<>();
+
+    private ArchiveWriter archive;
+    private File file;
+    private BackupUtil.CountingOutputStream counted;
+    private MessageDigest checksum;
+    private boolean aborted = false;
+
+    /**
+     * @param files gets each volume as it is created, e.g. to delete them if the backup fails
+     * @param listener null if nothing waits for the volumes
+     */
+    public VolumeWriter(File dir, String fileName, String extension, long volumeSize, Opener opener, Listener listener, List<File> files) {
+        this.dir = dir;
+        this.fileName = fileName;
+        this.extension = extension;
+        this.volumeSize = volumeSize;
+        this.opener = opener;
+        this.listener = listener;
+        this.files = files;
+    }
+
+    // "volume 001", sorts in order for up to a thousand volumes
+    static String volumeName(int n) {
+        return String.format("volume %03d", n);
+    }
+
+    @Override
+    public void putDirectory(String name, long time) throws IOException {
+        current().putDirectory(name, time);
+        next();
+    }
+
+    @Override
+    public void putFile(String name, File file) throws IOException {
+        current().putFile(name, file);
+        next();
+    }
+
+    @Override
+    public void putBytes(String name, byte[] data, long time) throws IOException {
+        current().putBytes(name, data, time);
+        next();
+    }
+
+    @Override
+    public Map<String, String> getContentHashes() {
+        return Collections.unmodifiableMap(contentHashes);
+    }
+
+    // the backup failed, close only releases the current volume
+    public void abort() {
+        aborted = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (aborted) {
+            ArchiveWriter a = archive;
+            archive = null;
+            if (a != null) a.close();
+            return;
+        }
+        // an empty backup still has a volume
+        if (archive != null || set.parts.isEmpty()) finish(current());
+    }
+
+    private ArchiveWriter current() throws IOException {
+        if (archive != null) return archive;
+        String world = volumeName(set.parts.size() + 1);
+        file = new File(dir, BackupSet.partName(fileName, world, extension));
+        files.add(file);
+        checksum = BackupManifest.newDigest();
+        counted = new BackupUtil.CountingOutputStream(new DigestOutputStream(new FileOutputStream(file), checksum));
+        archive = opener.open(counted);
+        return archive;
+    }
+
+    // starts a new volume once the current one is full
+    private void next() throws IOException {
+        if (counted.count < volumeSize) return;
+        finish(archive);
+    }
+
+    private void finish(ArchiveWriter a) throws IOException {
+        archive = null;
+        a.close();
+        contentHashes.putAll(a.getContentHashes());
+        set.parts.add(new BackupSet.Part(volumeName(set.parts.size() + 1), file.getName(), counted.count, BackupManifest.toHex(checksum.digest())));
+        if (listener != null) listener.finished(file);
+    }
+}
@@ -0,0 +1,175 @@
+package dev.espi.ebackup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/*
+   Copyright 2020 EspiDev
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+/**
+ * Point in time copy of a world folder in a staging folder, so the world can be compressed after autosave
+ * is turned back on.
+ *
+ * "reflink" makes copy-on-write clones with cp (btrfs, xfs, zfs), which takes no extra space and is almost
+ * instant; it falls back to "copy" where that isn't supported. Hard links are not an option, since region
+ * files are written in place and would change under the backup. Copies keep the last modified times, so
+ * incremental backups see the same files as in the world itself.
+ *
+ * A copy leaves out what an incremental backup takes from the previous one anyway: unchanged files, and
+ * folders the change tracker saw no changes in, which are created empty. The backup gets the left out
+ * files back from the previous manifest.
+ */
+public class WorldSnapshot {
+
+    // what the backup takes from the previous one, by path relative to the server folder
+    public interface Unchanged {
+        boolean folder(String path);
+
+        boolean file(String path, long size, long modified);
+    }
+
+    /**
+     * Copies the world folder to target, skipping ignored files.
+     *
+     * @param worldPath path of the world relative to the server folder, as used by the ignore rules
+     * @param unchanged null to copy every file
+     * @return the files left out of a copy as unchanged
+     */
+    public static List<String> create(File world, String worldPath, File target, IgnoreMatcher ignore, Unchanged unchanged, String method, int threads, Logger log) throws IOException {
+        if (target.exists()) delete(target);
+        Files.createDirectories(target.toPath());
+
+        if (method.equals("reflink")) {
+            if (reflink(world, target)) return Collections.emptyList();
+            log.info("Reflink copies are not supported here, copying the world instead...");
+            delete(target);
+            Files.createDirectories(target.toPath());
+        }
+        return copy(world.toPath(), worldPath, target.toPath(), ignore, unchanged, threads, log);
+    }
+
+    // cp --reflink=always fails instead of silently doing a full copy, so the fallback can use threads
+    private static boolean reflink(File world, File target) throws IOException {
+        try {
+            Process p = new ProcessBuilder("cp", "-a", "--reflink=always", world.getPath() + "/.", target.getPath())
+                    .redirectErrorStream(true).start();
+            try (InputStream out = p.getInputStream()) {
+                while (out.read() >= 0) ; // errors are expected where reflinks aren't supported
+            }
+            return p.waitFor() == 0;
+        } catch (IOException e) {
+            return false; // no cp, e.g. on windows
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + world);
+        }
+    }
+
+    private static List<String> copy(Path world, String worldPath, Path target, IgnoreMatcher ignore, Unchanged unchanged, int threads, Logger log) throws IOException {
+        // walk on this thread, copy on the pool
+        List<Path> files = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        long[] size = {0};
+        Files.walkFileTree(world, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String path = worldPath + "/" + world.relativize(dir).toString();
+                if (!dir.equals(world) && ignore.isIgnored(path)) return FileVisitResult.SKIP_SUBTREE;
+                Files.createDirectories(target.resolve(world.relativize(dir).toString()));
+                if (!dir.equals(world) && unchanged != null && unchanged.folder(path)) return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String path = worldPath + "/" + world.relativize(file).toString();
+                if (ignore.isIgnored(path)) return FileVisitResult.CONTINUE;
+                if (unchanged != null && unchanged.file(path, attrs.size(), attrs.lastModifiedTime().toMillis())) {
+                    skipped.add(path);
+                } else {
+                    files.add(file);
+                    size[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                log.warning("Error while copying file " + file + ", backup will ignore this file: " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (target.toFile().getUsableSpace() < size[0]) throw new IOException("not enough disk space in " + target);
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "eBackup-copy-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        Files.copy(file, target.resolve(world.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (IOException e) {
+                        // e.g. session.lock on windows
+                        log.warning("Error while copying file " + file + ", backup will ignore this file: " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> f : futures) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + world);
+        } catch (ExecutionException e) {
+            throw new IOException("Error while copying " + world, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return skipped;
+    }
+
+    public static void delete(File folder) throws IOException {
+        if (!folder.exists()) return;
+        Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -6,9 +6,9 @@ import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitTask;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.player.PlayerJoinEvent;
@@ -17,9 +17,19 @@ import org.bukkit.entity.Player;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
 
 /*
    Copyright 2020 EspiDev
@@ -42,33 +52,77 @@ public class eBackup extends JavaPlugin implements CommandExecutor, Listener {
 
     // lock
     AtomicBoolean isInBackup = new AtomicBoolean(false);
-    AtomicBoolean isInUpload = new AtomicBoolean(false);
+    // uploads waiting or running, at most maxUploads run at once
+    AtomicInteger uploadsRunning = new AtomicInteger(0);
+    ExecutorService uploads = null;
 
     // config options
-    String crontask, backupFormat, backupDateFormat;
-    File backupPath;
-    int maxBackups;
+    String backupDateFormat;
+    // the default job first
+    Map<String, BackupJob> jobs = new LinkedHashMap<>();
     boolean onlyBackupIfPlayersWereOn;
+    boolean incrementalEnable, incrementalRegionDeltas;
+    int incrementalFullEvery;
     boolean deleteAfterUpload;
-    int compressionLevel;
-
-    String ftpType, ftpHost, ftpUser, ftpPass, ftpPath, sftpPrivateKeyPath, sftpPrivateKeyPassword;
-    int ftpPort;
-    boolean ftpEnable, useSftpKeyAuth;
+    int compressionLevel, compressionThreads, zstdLevel;
+    List<String> compressionStore;
+    Map<String, Integer> compressionLevels;
+    double compressionMinSavings;
+    boolean perWorldEnable;
+    int perWorldThreads;
+    // bytes per volume, 0 to write each backup as one archive
+    long volumeSize;
+    int volumeMaxPending;
+    boolean throttleEnable;
+    boolean snapshotEnable;
+    String snapshotMethod;
+    File snapshotPath;
+    double throttleMaxMspt;
+
+    // the main ftp/sftp server first, then the other targets
+    List<UploadTarget> uploadTargets;
+    int uploadRetries, uploadRetryDelay, maxUploads;
+    boolean ftpEnable, ftpStream, ftpStreamKeepLocal, ftpPrune;
+    boolean deltaEnable;
+    int deltaBlockSize, deltaFullEvery;
+    // uploads are encrypted with it, null if encryption is off
+    BackupCrypto.Key encryptionKey;
+    int encryptionThreads;
 
     boolean backupPluginJars, backupPluginConfs;
     List<String> filesToIgnore;
-    List<File> ignoredFiles = new ArrayList<>();
+    IgnoreMatcher ignoreMatcher;
+
+    // knows which folders changed since the last backup, null if change tracking is off
+    ChangeTracker changeTracker = null;
+    boolean changeTrackingEnable, changeTrackingSkipUnchanged;
+    int changeTrackingReconcileMinutes;
+
+    BackupScheduler scheduler = null;
 
-    BukkitTask bukkitCronTask = null;
+    // slows backups down while the server lags
+    Throttle throttle = Throttle.NONE;
+    TickMonitor tickMonitor = null;
 
-    // track if players were on
-    AtomicBoolean playersWereOnSinceLastBackup = new AtomicBoolean(false);
+    // spreads world saves over ticks
+    SaveCoordinator saveCoordinator = null;
+    double saveTickBudget;
+    int saveMaxWaitTicks;
+
+    // reads new backups back in the background
+    BackupVerifier verifier = null;
+    boolean verifyEnable, verifyRemote;
+    int verifyThreads;
+
+    // kept over reloads, the totals count since the server started
+    BackupMetrics metrics = new BackupMetrics();
+    MetricsServer metricsServer = null;
+    String metricsBind;
+    int metricsPort;
+    File metricsFile;
 
     // called on reload and when the plugin first loads
     public void loadPlugin() {
-        ignoredFiles.clear();
-
         saveDefaultConfig();
         getConfig().options().copyDefaults(true);
 
@@ -85,13 +139,12 @@ public class eBackup extends JavaPlugin implements CommandExecutor, Listener {
         getServer().getPluginManager().registerEvents(this, this);
 
         // load config data
-        crontask = getConfig().getString("crontask");
-        backupFormat = getConfig().getString("backup-format");
         backupDateFormat = getConfig().getString("backup-date-format");
-        backupPath = new File(getConfig().getString("backup-path"));
-        maxBackups = getConfig().getInt("max-backups");
         onlyBackupIfPlayersWereOn = getConfig().getBoolean("only-backup-if-players-were-on");
         deleteAfterUpload = getConfig().getBoolean("delete-after-upload");
+        incrementalEnable = getConfig().getBoolean("incremental.enable");
+        incrementalFullEvery = getConfig().getInt("incremental.full-every", 7);
+        incrementalRegionDeltas = getConfig().getBoolean("incremental.region-deltas", true);
         compressionLevel = getConfig().getInt("compression-level");
         if (!getConfig().contains("compression-level") || compressionLevel > 9 || compressionLevel < 0) {
             if (compressionLevel > 9 || compressionLevel < 0) {
@@ -99,49 +152,338 @@ public class eBackup extends JavaPlugin implements CommandExecutor, Listener {
             }
             compressionLevel = 4;
         }
+        compressionLevels = new LinkedHashMap<>();
+        for (String s : getConfig().getStringList("compression-policy.levels")) {
+            // "<glob>=<level>", yaml keys can't hold the dots of file extensions
+            int eq = s.lastIndexOf('=');
+            try {
+                if (eq < 0) throw new NumberFormatException();
+                int level = Integer.parseInt(s.substring(eq + 1).trim());
+                if (level < 0 || level > 9) throw new NumberFormatException();
+                compressionLevels.put(s.substring(0, eq).trim(), level);
+            } catch (NumberFormatException e) {
+                getLogger().warning("Invalid compression level rule " + s + ", must be <pattern>=<0-9>. It will be skipped.");
+            }
+        }
+        compressionStore = getConfig().getStringList("compression-policy.store");
+        compressionMinSavings = getConfig().getDouble("compression-policy.min-savings", 0.05);
+        snapshotEnable = getConfig().getBoolean("snapshot.enable", false);
+        snapshotMethod = getConfig().getString("snapshot.method", "copy");
+        if (!snapshotMethod.equals("copy") && !snapshotMethod.equals("reflink")) {
+            getLogger().warning("Invalid snapshot method set! Must be copy or reflink. Defaulting to copy.");
+            snapshotMethod = "copy";
+        }
+        snapshotPath = new File(getConfig().getString("snapshot.path", "plugins/eBackup/staging"));
+        perWorldEnable = getConfig().getBoolean("per-world-archives.enable", false);
+        perWorldThreads = Math.max(1, getConfig().getInt("per-world-archives.threads", 3));
+        volumeSize = Math.max(0, getConfig().getLong("volumes.size", 0)) * 1024 * 1024;
+        volumeMaxPending = Math.max(1, getConfig().getInt("volumes.max-pending", 2));
+        if (volumeSize > 0 && perWorldEnable) {
+            getLogger().warning("Backups are not split into volumes while per-world archives are enabled.");
+        }
+        zstdLevel = getConfig().getInt("zstd-level", 3);
+        if (zstdLevel < 1 || zstdLevel > 22) {
+            getLogger().warning("Invalid zstd level set! Must be between 1-22. Defaulting to 3.");
+            zstdLevel = 3;
+        }
+        throttleEnable = getConfig().getBoolean("throttle.enable", true);
+        throttleMaxMspt = getConfig().getDouble("throttle.max-mspt", 45);
+        saveTickBudget = getConfig().getDouble("world-save.tick-budget", 10);
+        if (saveTickBudget <= 0 || saveTickBudget > 50) {
+            getLogger().warning("Invalid world save tick budget set! Must be between 0-50. Defaulting to 10.");
+            saveTickBudget = 10;
+        }
+        saveMaxWaitTicks = Math.max(0, getConfig().getInt("world-save.max-wait-ticks", 100));
+        changeTrackingEnable = getConfig().getBoolean("change-tracking.enable", false);
+        changeTrackingSkipUnchanged = getConfig().getBoolean("change-tracking.skip-unchanged", true);
+        changeTrackingReconcileMinutes = Math.max(0, getConfig().getInt("change-tracking.reconcile-minutes", 30));
+        metricsPort = getConfig().getInt("metrics.port", 0);
+        metricsBind = getConfig().getString("metrics.bind", "127.0.0.1");
+        verifyEnable = getConfig().getBoolean("verify.enable", true);
+        verifyRemote = getConfig().getBoolean("verify.remote", false);
+        verifyThreads = Math.max(1, getConfig().getInt("verify.threads", 2));
+        String file = getConfig().getString("metrics.file", "");
+        metricsFile = file.isEmpty() ? null : new File(file);
+        compressionThreads = getConfig().getInt("compression-threads");
+        if (compressionThreads <= 0) {
+            compressionThreads = Runtime.getRuntime().availableProcessors();
+        }
 
         ftpEnable = getConfig().getBoolean("ftp.enable");
-        ftpType = getConfig().getString("ftp.type");
-        ftpHost = getConfig().getString("ftp.host");
-        ftpPort = getConfig().getInt("ftp.port");
-        ftpUser = getConfig().getString("ftp.user");
-        ftpPass = getConfig().getString("ftp.pass");
-        useSftpKeyAuth = getConfig().getBoolean("ftp.use-key-auth");
-        sftpPrivateKeyPath = getConfig().getString("ftp.private-key");
-        sftpPrivateKeyPassword = getConfig().getString("ftp.private-key-password");
-        ftpPath = getConfig().getString("ftp.path");
+        // connections of the old targets close once their uploads are done
+        if (uploadTargets != null) {
+            for (UploadTarget t : uploadTargets) t.close();
+        }
+        uploadTargets = new ArrayList<>();
+        uploadTargets.add(loadTarget(UploadTarget.MAIN, getConfig().getConfigurationSection("ftp"), null));
+        ConfigurationSection targetsSection = getConfig().getConfigurationSection("ftp.targets");
+        if (targetsSection != null) {
+            for (String name : targetsSection.getKeys(false)) {
+                if (name.equals(UploadTarget.MAIN) || !targetsSection.isConfigurationSection(name)) {
+                    getLogger().warning("Invalid upload target " + name + ", it will be skipped.");
+                    continue;
+                }
+                uploadTargets.add(loadTarget(name, targetsSection.getConfigurationSection(name), uploadTargets.get(0)));
+            }
+        }
+        uploadRetries = Math.max(0, getConfig().getInt("ftp.retries", 3));
+        uploadRetryDelay = Math.max(1, getConfig().getInt("ftp.retry-delay", 30));
+        maxUploads = Math.max(1, getConfig().getInt("ftp.max-uploads", 2));
+        ftpStream = getConfig().getBoolean("ftp.stream");
+        if (ftpStream && volumeSize > 0) {
+            getLogger().warning("Streaming uploads are off while backups are split into volumes, each volume is uploaded once it is written instead.");
+            ftpStream = false;
+        }
+        ftpStreamKeepLocal = getConfig().getBoolean("ftp.stream-keep-local");
+        ftpPrune = getConfig().getBoolean("ftp.prune");
+        deltaEnable = getConfig().getBoolean("ftp.delta.enable", false);
+        deltaBlockSize = getConfig().getInt("ftp.delta.block-size", 65536);
+        if (deltaBlockSize < 1024 || deltaBlockSize > 16 * 1024 * 1024) {
+            getLogger().warning("Invalid delta block size set! Must be between 1024-16777216. Defaulting to 65536.");
+            deltaBlockSize = 65536;
+        }
+        deltaFullEvery = Math.max(1, getConfig().getInt("ftp.delta.full-every", 10));
+        encryptionKey = null;
+        encryptionThreads = getConfig().getInt("ftp.encryption.threads", 0);
+        if (encryptionThreads <= 0) encryptionThreads = compressionThreads;
+        if (getConfig().getBoolean("ftp.encryption.enable", false)) {
+            String keyFile = getConfig().getString("ftp.encryption.key-file", ""), passphrase = getConfig().getString("ftp.encryption.passphrase", "");
+            try {
+                if (!keyFile.isEmpty()) {
+                    encryptionKey = BackupCrypto.Key.file(new File(keyFile));
+                } else if (!passphrase.isEmpty()) {
+                    encryptionKey = BackupCrypto.Key.passphrase(passphrase);
+                } else {
+                    throw new IOException("set a key file or a passphrase");
+                }
+            } catch (IOException e) {
+                // never upload in the clear by mistake
+                getLogger().warning("Unable to load the encryption key, uploads are disabled: " + e.getMessage());
+                ftpEnable = false;
+            }
+        }
         backupPluginJars = getConfig().getBoolean("backup.pluginjars");
         backupPluginConfs = getConfig().getBoolean("backup.pluginconfs");
         filesToIgnore = getConfig().getStringList("backup.ignore");
+        ignoreMatcher = new IgnoreMatcher(Collections.emptyList());
         for (String s : filesToIgnore) {
-            ignoredFiles.add(new File(s));
+            try {
+                if (!ignoreMatcher.add(s)) getLogger().warning("Ignore path " + s + " is outside the server folder and is never backed up anyway, it will be skipped.");
+            } catch (PatternSyntaxException e) {
+                getLogger().warning("Invalid ignore pattern " + s + ", it will be skipped: " + e.getDescription());
+            }
+        }
+
+        // the main settings are the default job, the jobs section adds more
+        jobs = new LinkedHashMap<>();
+        jobs.put(BackupJob.DEFAULT, loadJob(BackupJob.DEFAULT, getConfig(), null));
+        ConfigurationSection jobsSection = getConfig().getConfigurationSection("jobs");
+        if (jobsSection != null) {
+            for (String name : jobsSection.getKeys(false)) {
+                if (name.equals(BackupJob.DEFAULT) || !jobsSection.isConfigurationSection(name)) {
+                    getLogger().warning("Invalid backup job " + name + ", it will be skipped.");
+                    continue;
+                }
+                jobs.put(name, loadJob(name, jobsSection.getConfigurationSection(name), jobs.get(BackupJob.DEFAULT)));
+            }
+        }
+
+        // stop the scheduler if it is running, queued backups are dropped
+        if (scheduler != null)
+            scheduler.stop();
+
+        // restart tick monitor
+        if (tickMonitor != null)
+            tickMonitor.stop();
+        tickMonitor = null;
+        throttle = Throttle.NONE;
+        if (throttleEnable) {
+            throttle = new Throttle(compressionThreads);
+            tickMonitor = new TickMonitor(throttle, throttleMaxMspt);
+            tickMonitor.start(this);
+        }
+        for (UploadTarget t : uploadTargets)
+            t.throttle = throttle;
+
+        // restart world saving, saves waiting for a tick fail their backup
+        if (saveCoordinator != null)
+            saveCoordinator.stop();
+        saveCoordinator = new SaveCoordinator(this, saveTickBudget, saveMaxWaitTicks, tickMonitor, metrics);
+
+        // restart change tracking, the next backup of each job reads everything again
+        if (changeTracker != null)
+            changeTracker.stop();
+        changeTracker = null;
+        if (changeTrackingEnable) {
+            IgnoreMatcher tracked = ignoreMatcher.copy();
+            tracked.add(snapshotPath.getPath());
+            changeTracker = new ChangeTracker(Paths.get("").toAbsolutePath().normalize(), tracked, changeTrackingReconcileMinutes, getLogger());
+            try {
+                changeTracker.start();
+            } catch (IOException e) {
+                getLogger().warning("Unable to watch the server folder for changes, change tracking is off: " + e.getMessage());
+                changeTracker.stop();
+                changeTracker = null;
+            }
+        }
+
+        // restart verification, it slows down with the new throttle
+        if (verifier != null)
+            verifier.stop();
+        // verifying gets its own verify-threads next to the compression-threads of the backups, slowed down just the same
+        verifier = verifyEnable ? new BackupVerifier(verifyThreads, throttle.follower(verifyThreads)) : null;
+
+        // restart metrics endpoint
+        if (metricsServer != null)
+            metricsServer.stop();
+        metricsServer = null;
+        if (metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(metrics, metricsBind, metricsPort);
+            } catch (IOException e) {
+                getLogger().warning("Unable to serve metrics on " + metricsBind + ":" + metricsPort + ": " + e.getMessage());
+            }
+        }
+
+        // restart the upload queue, queued uploads still run
+        if (uploads != null)
+            uploads.shutdown();
+        AtomicInteger uploadThreads = new AtomicInteger();
+        uploads = Executors.newFixedThreadPool(maxUploads, r -> {
+            Thread t = new Thread(r, "eBackup-uploads-" + uploadThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        // start the scheduler
+        scheduler = new BackupScheduler(this::runJob, getLogger());
+        scheduler.start(jobs.values());
+    }
+
+    // settings of an upload target, those it leaves out come from the main one
+    private UploadTarget loadTarget(String name, ConfigurationSection c, UploadTarget main) {
+        UploadTarget t = new UploadTarget(name);
+        t.type = c.getString("type", main == null ? "sftp" : main.type);
+        if (!t.type.equals("sftp") && !t.type.equals("ftp") && !t.isLocal()) {
+            getLogger().warning("Invalid upload type set" + (main == null ? "" : " for target " + name) + " (only ftp/sftp/local accepted), defaulting to sftp.");
+            t.type = "sftp";
+        }
+        t.host = c.getString("host", main == null ? "localhost" : main.host);
+        t.port = c.getInt("port", main == null ? 22 : main.port);
+        t.user = c.getString("user", main == null ? "" : main.user);
+        t.pass = c.getString("pass", main == null ? "" : main.pass);
+        t.useKeyAuth = c.getBoolean("use-key-auth", main != null && main.useKeyAuth);
+        t.privateKeyPath = c.getString("private-key", main == null ? "" : main.privateKeyPath);
+        t.privateKeyPassword = c.getString("private-key-password", main == null ? "" : main.privateKeyPassword);
+        t.knownHosts = c.getString("known-hosts", main == null ? "~/.ssh/known_hosts" : main.knownHosts);
+        // a fingerprint only holds for its own server
+        t.hostKey = c.getString("host-key", main != null && t.host.equals(main.host) ? main.hostKey : "").trim();
+        t.path = c.getString("path", main == null ? "" : main.path);
+        t.connections = Math.max(1, c.getInt("connections", main == null ? 4 : main.connections));
+        t.keepAlive = Math.max(0, c.getInt("keep-alive", main == null ? 120 : main.keepAlive));
+        t.required = c.getBoolean("required", true);
+        return t;
+    }
+
+    // settings of a job, those it leaves out come from the default job
+    private BackupJob loadJob(String name, ConfigurationSection c, BackupJob defaults) {
+        BackupJob job = new BackupJob(name);
+        job.crontask = c.getString("crontask", "");
+        job.backupFormat = c.getString("backup-format", defaults == null ? null : name + " " + defaults.backupFormat);
+        job.archiveFormat = c.getString("archive-format", defaults == null ? "zip" : defaults.archiveFormat);
+        if (!job.archiveFormat.equals("zip") && !job.archiveFormat.equals(TarArchiveWriter.ZSTD) && !job.archiveFormat.equals(TarArchiveWriter.LZ4) && !job.archiveFormat.equals("repository")) {
+            getLogger().warning("Invalid archive format set" + (defaults == null ? "" : " for job " + name) + "! Must be zip, tar.zst, tar.lz4 or repository. Defaulting to zip.");
+            job.archiveFormat = "zip";
+        }
+        job.backupPath = new File(c.getString("backup-path", defaults == null ? null : new File(defaults.backupPath, name).getPath()));
+
+        int maxBackups = c.getInt("max-backups", defaults == null ? 0 : getConfig().getInt("max-backups"));
+        int hourly = c.getInt("retention.hourly", defaults == null ? 0 : getConfig().getInt("retention.hourly")),
+                daily = c.getInt("retention.daily", defaults == null ? 0 : getConfig().getInt("retention.daily")),
+                weekly = c.getInt("retention.weekly", defaults == null ? 0 : getConfig().getInt("retention.weekly")),
+                monthly = c.getInt("retention.monthly", defaults == null ? 0 : getConfig().getInt("retention.monthly"));
+        // local backups are pruned before the next one is made, uploads after
+        job.retention = new RetentionPolicy(maxBackups > 0 ? maxBackups - 1 : -1, hourly, daily, weekly, monthly);
+        job.remoteRetention = new RetentionPolicy(maxBackups > 0 ? maxBackups : -1, hourly, daily, weekly, monthly);
+
+        int level = defaults == null ? compressionLevel : c.getInt("compression-level", compressionLevel);
+        if (level > 9 || level < 0) {
+            getLogger().warning("Invalid compression level set for job " + name + "! Must be between 0-9. Defaulting to " + compressionLevel + ".");
+            level = compressionLevel;
+        }
+        try {
+            job.compressionPolicy = new CompressionPolicy(level, compressionStore, compressionLevels, compressionMinSavings);
+        } catch (PatternSyntaxException e) {
+            getLogger().warning("Invalid compression policy pattern, compressing everything with level " + level + ": " + e.getDescription());
+            job.compressionPolicy = new CompressionPolicy(level);
         }
 
+        // scope, the default job backs up everything
+        if (c.isList("worlds") && !c.getStringList("worlds").isEmpty()) job.worlds = new HashSet<>(c.getStringList("worlds"));
+        job.otherFiles = c.getBoolean("other-files", true);
+        job.upload = c.getBoolean("upload", true);
+
         // make sure backup location exists
-        if (!backupPath.exists())
-            backupPath.mkdir();
-
-        // stop cron task if it is running
-        if (bukkitCronTask != null)
-            bukkitCronTask.cancel();
-
-        // start cron task
-        CronUtil.checkCron();
-        bukkitCronTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
-            if (CronUtil.run()) {
-                if (isInBackup.get()) {
-                    getLogger().warning("A backup was scheduled to happen now, but a backup was detected to be in progress. Skipping...");
-                } else if (onlyBackupIfPlayersWereOn && !playersWereOnSinceLastBackup.get()) {
-                    getLogger().info("No players were detected to have joined since the last backup or server start, skipping backup...");
-                } else {
-                    BackupUtil.doBackup(true);
+        if (!job.backupPath.exists())
+            job.backupPath.mkdirs();
 
-                    if (Bukkit.getServer().getOnlinePlayers().size() == 0) {
-                        playersWereOnSinceLastBackup.set(false);
-                    }
+        // load the backup catalog, rebuilding it from the backup folder if it is broken
+        try {
+            job.catalog = BackupCatalog.load(job.backupPath);
+        } catch (IOException | RuntimeException e) {
+            getLogger().warning("Unable to read the backup catalog, rebuilding it from the backup folder (uploads it listed are forgotten): " + e.getMessage());
+            new File(job.backupPath, BackupCatalog.FILE_NAME).delete();
+            try {
+                job.catalog = BackupCatalog.load(job.backupPath);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        // an empty cron task only runs from /ebackup backup
+        if (job.crontask != null && !job.crontask.isEmpty()) {
+            try {
+                job.executionTime = CronUtil.checkCron(job);
+            } catch (IllegalArgumentException e) {
+                getLogger().warning("Invalid cron task " + job.crontask + (job.isDefault() ? "" : " for job " + name) + ", it will not run on its own: " + e.getMessage());
+            }
+        }
+        return job;
+    }
+
+    // called by the scheduler, one job at a time
+    private void runJob(BackupJob job) {
+        if (onlyBackupIfPlayersWereOn && !job.playersWereOn.get()) {
+            getLogger().info("No players were detected to have joined since the last backup" + (job.isDefault() ? "" : " of job " + job.name) + " or server start, skipping backup...");
+            return;
+        }
+        // players online may have changes that aren't saved yet
+        if (changeTrackingSkipUnchanged && Bukkit.getServer().getOnlinePlayers().isEmpty() && BackupUtil.isUnchanged(job)) {
+            getLogger().info("Nothing has changed since the last backup" + (job.isDefault() ? "" : " of job " + job.name) + ", skipping backup...");
+            return;
+        }
+
+        // a backup started by command runs outside the scheduler, wait for it
+        if (isInBackup.get()) {
+            getLogger().info("A backup is in progress, backup job " + job.name + " will start after it.");
+            while (isInBackup.get()) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
                 }
             }
-        }, 20, 20);
+        }
+
+        BackupUtil.doBackup(job, job.upload);
+
+        if (Bukkit.getServer().getOnlinePlayers().size() == 0) {
+            job.playersWereOn.set(false);
+        }
+    }
+
+    BackupJob getJob(String name) {
+        return jobs.get(name == null ? BackupJob.DEFAULT : name);
     }
 
     @Override
@@ -162,17 +504,33 @@ public class eBackup extends JavaPlugin implements CommandExecutor, Listener {
 
     @Override
     public void onDisable() {
-        if (isInBackup.get() || isInUpload.get()) {
+        if (isInBackup.get() || uploadsRunning.get() > 0) {
             getLogger().info("Any running tasks (uploads or backups) will now be cancelled due to the server shutdown.");
         }
         Bukkit.getScheduler().cancelTasks(this);
+        if (scheduler != null)
+            scheduler.stop();
+        if (saveCoordinator != null)
+            saveCoordinator.stop();
+        if (verifier != null)
+            verifier.stop();
+        if (changeTracker != null)
+            changeTracker.stop();
+        if (metricsServer != null)
+            metricsServer.stop();
+        if (uploads != null)
+            uploads.shutdownNow();
+        if (uploadTargets != null)
+            uploadTargets.forEach(UploadTarget::close);
 
         getLogger().info("Disabled eBackup!");
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onPlayerJoin(PlayerJoinEvent e) {
-        playersWereOnSinceLastBackup.set(true);
+        for (BackupJob job : jobs.values()) {
+            job.playersWereOn.set(true);
+        }
     }
 
     @Override
@@ -185,46 +543,96 @@ public class eBackup extends JavaPlugin implements CommandExecutor, Listener {
         switch (args[0]) {
             case "help":
                 sender.sendMessage(ChatColor.GRAY + "" + ChatColor.STRIKETHROUGH + "=====" + ChatColor.RESET + ChatColor.DARK_AQUA + " eBackup v" + getPlugin().getDescription().getVersion() + " Help " + ChatColor.RESET + ChatColor.GRAY + ChatColor.STRIKETHROUGH + "=====");
-                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup backup - Starts a backup of the server.");
-                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup backuplocal - Starts a backup of the server, but does not upload to FTP/SFTP.");
-                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup list - Lists the backups in the folder.");
-                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup stats - Shows disk space.");
+                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup backup [job] - Starts a backup of the server.");
+                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup backuplocal [job] - Starts a backup of the server, but does not upload to FTP/SFTP.");
+                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup list [job] - Lists the backups in the folder.");
+                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup jobs - Lists the backup jobs and when they run next.");
+                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup restore <backup> [paths...] - Extracts a backup (or only the given files/folders) to plugins/eBackup/restore.");
+                sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup stats - Shows disk space and how the last backup went.");
                 sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup testupload - Test uploading a file to FTP/SFTP without creating a backup.");
                 sender.sendMessage(ChatColor.AQUA + "> " + ChatColor.GRAY + "/ebackup reload - Reloads the plugin settings from the config.");
                 break;
             case "backup":
-                if (isInBackup.get()) {
+            case "backuplocal":
+                BackupJob job = getJob(args.length > 1 ? args[1] : null);
+                if (job == null) {
+                    sender.sendMessage(ChatColor.RED + "There is no backup job named " + args[1] + "!");
+                } else if (isInBackup.get()) {
                     sender.sendMessage(ChatColor.RED + "A backup is currently in progress!");
                 } else {
                     sender.sendMessage(ChatColor.GRAY + "Starting backup (check console logs for details)...");
                     Bukkit.getScheduler().runTaskAsynchronously(getPlugin(), () -> {
-                        BackupUtil.doBackup(true);
+                        BackupUtil.doBackup(job, args[0].equals("backup") && job.upload);
                         sender.sendMessage(ChatColor.GRAY + "Finished!");
                     });
                 }
                 break;
-            case "backuplocal":
-                if (isInBackup.get()) {
-                    sender.sendMessage(ChatColor.RED + "A backup is currently in progress!");
-                } else {
-                    sender.sendMessage(ChatColor.GRAY + "Starting backup (check console logs for details)...");
-                    Bukkit.getScheduler().runTaskAsynchronously(getPlugin(), () -> {
-                        BackupUtil.doBackup(false);
-                        sender.sendMessage(ChatColor.GRAY + "Finished!");
-                    });
+            case "jobs":
+                sender.sendMessage(ChatColor.AQUA + "Backup jobs:");
+                for (BackupJob j : jobs.values()) {
+                    sender.sendMessage(ChatColor.GRAY + "- " + j.name + " (" + (j.nextExecution == null ? "not scheduled" : "next at " + j.nextExecution.toLocalDateTime().withNano(0)) + ", "
+                            + (j.worlds == null ? "all worlds" : "worlds " + String.join(", ", j.worlds)) + (j.otherFiles ? " and other files" : "") + ", " + j.archiveFormat + ")");
                 }
                 break;
             case "list":
-                sender.sendMessage(ChatColor.AQUA + "Local Backups:");
-                for (File f : getPlugin().backupPath.listFiles()) {
-                    sender.sendMessage(ChatColor.GRAY + "- " + f.getName());
+                BackupJob listJob = getJob(args.length > 1 ? args[1] : null);
+                if (listJob == null) {
+                    sender.sendMessage(ChatColor.RED + "There is no backup job named " + args[1] + "!");
+                    break;
+                }
+                sender.sendMessage(ChatColor.AQUA + "Backups:");
+                for (BackupCatalog.Backup b : listJob.catalog.list()) {
+                    String type = b.type.equals(BackupCatalog.SNAPSHOT) ? "repository" : b.type;
+                    String location = b.local && b.remote ? "local, uploaded" : b.local ? "local" : "uploaded";
+                    String verified = b.verifiedLocal != null ? b.verifiedLocal : b.verifiedRemote;
+                    if (BackupVerifier.FAILED.equals(b.verifiedLocal) || BackupVerifier.FAILED.equals(b.verifiedRemote)) verified = BackupVerifier.FAILED;
+                    sender.sendMessage((BackupVerifier.OK.equals(verified) || verified == null ? ChatColor.GRAY : ChatColor.RED) + "- " + b.name + " (" + type + ", " + location + ", "
+                            + (b.isSet() ? b.parts.size() + " archives, " : "") + (b.size / 1024 / 1024) + "MB" + (verified == null ? "" : verified.equals(BackupVerifier.OK) ? ", verified" : ", verification " + verified) + ")");
+                }
+                break;
+            case "restore":
+                if (args.length < 2) {
+                    sender.sendMessage(ChatColor.RED + "Usage: /ebackup restore <backup> [paths...], e.g. /ebackup restore backup-2020-01-01.zip world/region");
+                    break;
                 }
+                // the job that made the backup
+                BackupJob restoreJob = null;
+                for (BackupJob j : jobs.values()) {
+                    if (restoreJob == null && j.catalog.get(args[1]) != null) restoreJob = j;
+                }
+                if (restoreJob == null) {
+                    sender.sendMessage(ChatColor.RED + "There is no backup named " + args[1] + "!");
+                    break;
+                }
+                BackupCatalog restoreCatalog = restoreJob.catalog;
+
+                // never over the running server, the files are copied in by hand after stopping it
+                File restoreTarget = new File(getDataFolder(), "restore/" + args[1]);
+                sender.sendMessage(ChatColor.GRAY + "Restoring " + args[1] + " to " + restoreTarget + " (check console logs for details)...");
+                Bukkit.getScheduler().runTaskAsynchronously(getPlugin(), () -> {
+                    BackupRestore restore = new BackupRestore(restoreCatalog.getDir(), restoreTarget, Arrays.asList(args).subList(2, args.length), compressionThreads, getLogger());
+                    try {
+                        long start = System.currentTimeMillis();
+                        restore.restore(restoreCatalog, args[1]);
+                        sender.sendMessage(ChatColor.GRAY + "Restored " + restore.getFiles() + " files (" + restore.getBytes() / 1024 / 1024 + "MB) in " + (System.currentTimeMillis() - start) / 1000 + "s to " + restoreTarget + ".");
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        sender.sendMessage(ChatColor.RED + "Restore failed: " + e.getMessage());
+                    }
+                });
                 break;
             case "stats":
                 sender.sendMessage(ChatColor.GRAY + "" + ChatColor.STRIKETHROUGH + "=====" + ChatColor.RESET + ChatColor.DARK_AQUA + " Disk Stats " + ChatColor.RESET + ChatColor.GRAY + ChatColor.STRIKETHROUGH + "=====");
-                sender.sendMessage(ChatColor.AQUA + "Total size: " + ChatColor.GRAY + (getPlugin().backupPath.getTotalSpace()/1024/1024/1024) + "GB");
-                sender.sendMessage(ChatColor.AQUA + "Space usable: " + ChatColor.GRAY + (getPlugin().backupPath.getUsableSpace()/1024/1024/1024) + "GB");
-                sender.sendMessage(ChatColor.AQUA + "Space free: " + ChatColor.GRAY + (getPlugin().backupPath.getFreeSpace()/1024/1024/1024) + "GB");
+                sender.sendMessage(ChatColor.AQUA + "Total size: " + ChatColor.GRAY + (getJob(null).backupPath.getTotalSpace()/1024/1024/1024) + "GB");
+                sender.sendMessage(ChatColor.AQUA + "Space usable: " + ChatColor.GRAY + (getJob(null).backupPath.getUsableSpace()/1024/1024/1024) + "GB");
+                sender.sendMessage(ChatColor.AQUA + "Space free: " + ChatColor.GRAY + (getJob(null).backupPath.getFreeSpace()/1024/1024/1024) + "GB");
+                List<String> summary = getPlugin().metrics.summary();
+                if (!summary.isEmpty()) {
+                    sender.sendMessage(ChatColor.GRAY + "" + ChatColor.STRIKETHROUGH + "=====" + ChatColor.RESET + ChatColor.DARK_AQUA + " Backup Stats " + ChatColor.RESET + ChatColor.GRAY + ChatColor.STRIKETHROUGH + "=====");
+                    for (String line : summary) {
+                        sender.sendMessage(ChatColor.GRAY + line);
+                    }
+                }
                 break;
             case "testupload":
                 sender.sendMessage(ChatColor.GRAY + "Starting upload test...");